@@ -0,0 +1,103 @@
+package transaction.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import transaction.server.TransactionServer;
+import transaction.server.account.AccountManager;
+import transaction.server.lock.LockManager;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [AccountManagerBenchmark] Reads and writes through the account manager, i.e. account
+ * lookup, locking, before images or write buffer, and the commit, with immediate and deferred
+ * updates. Run with -t to vary the number of threads.
+ *
+ * @author wolfdieterotte
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountManagerBenchmark {
+
+    private static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"100000"})
+    public int numberAccounts;
+
+    @Param({BenchmarkSetup.UNIFORM, BenchmarkSetup.SKEWED})
+    public String distribution;
+
+    @Param({"false", "true"})
+    public boolean deferredUpdates;
+
+    private int[] sequence;
+
+    private TransactionManager transactionManager;
+    private AccountManager accountManager;
+    private LockManager lockManager;
+
+    @Setup
+    public void setUp() {
+        TransactionServer server = BenchmarkSetup.setUp(numberAccounts, deferredUpdates);
+        transactionManager = server.getTransactionManager();
+        accountManager = server.getAccountManager();
+        lockManager = server.getLockManager();
+        sequence = BenchmarkSetup.accountSequence(numberAccounts, distribution, SEQUENCE_LENGTH);
+    }
+
+    @Benchmark
+    public int read() {
+        Transaction transaction = transactionManager.createInternalTransaction();
+        int balance = -1;
+
+        try {
+            balance = accountManager.read(sequence[ThreadLocalRandom.current().nextInt(SEQUENCE_LENGTH)], transaction);
+        } catch (TransactionAbortedException e) {
+            // conflict, counts as an operation all the same
+        }
+        lockManager.unLock(transaction);
+        transactionManager.releaseUndoLog(transaction);
+
+        return balance;
+    }
+
+    @Benchmark
+    public boolean transfer() {
+        Transaction transaction = transactionManager.createInternalTransaction();
+        int index = ThreadLocalRandom.current().nextInt(SEQUENCE_LENGTH);
+        int from = sequence[index];
+        int to = sequence[(index + 1) & (SEQUENCE_LENGTH - 1)];
+        boolean committed = true;
+
+        try {
+            int balance = accountManager.read(from, transaction);
+            accountManager.write(from, transaction, balance - 1);
+            balance = accountManager.read(to, transaction);
+            accountManager.write(to, transaction, balance + 1);
+            accountManager.install(transaction);
+        } catch (TransactionAbortedException e) {
+            transaction.getUndoLog().rollback(accountManager);
+            committed = false;
+        }
+        lockManager.unLock(transaction);
+        transactionManager.releaseUndoLog(transaction);
+
+        return committed;
+    }
+}
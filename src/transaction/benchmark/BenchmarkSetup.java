@@ -0,0 +1,66 @@
+package transaction.benchmark;
+
+import java.util.Properties;
+import transaction.server.TransactionServer;
+import utils.ZipfianGenerator;
+
+/**
+ * Class [BenchmarkSetup] Sets up an embedded server, without networking, so benchmarks can call
+ * straight into its lock and account code.
+ *
+ * @author wolfdieterotte
+ */
+public class BenchmarkSetup {
+
+    // account distributions
+    public static final String UNIFORM = "UNIFORM";
+    public static final String SKEWED  = "SKEWED";
+
+    // skew of the SKEWED distribution
+    private static final double THETA = 0.99;
+
+    // the server the benchmarks run against
+    private static TransactionServer server = null;
+
+    /**
+     * Creates the server, replacing the one of the previous trial; finished transactions are not kept
+     *
+     * @param numberAccounts number of accounts
+     * @param deferredUpdates true if writes are buffered until commit
+     * @return the server
+     */
+    public static TransactionServer setUp(int numberAccounts, boolean deferredUpdates) {
+        Properties properties = new Properties();
+        properties.setProperty("NUMBER_ACCOUNTS", Integer.toString(numberAccounts));
+        properties.setProperty("INITIAL_BALANCE", "10");
+        properties.setProperty("APPLY_LOCKING", "true");
+        properties.setProperty("UPDATE_MODE", deferredUpdates ? "DEFERRED" : "IMMEDIATE");
+        properties.setProperty("TRANSACTION_HISTORY", "NONE");
+        properties.setProperty("TRANSACTION_HISTORY_SIZE", "0");
+        properties.setProperty("LOG_LEVEL", "OFF");
+
+        if (server != null) {
+            server.shutDown();
+        }
+        server = TransactionServer.embedded(properties);
+        return server;
+    }
+
+    /**
+     * Precomputes a sequence of account numbers, so drawing one in the measured code is an array read
+     *
+     * @param numberAccounts number of accounts
+     * @param distribution UNIFORM or SKEWED
+     * @param length length of the sequence, a power of two
+     * @return the account numbers
+     */
+    public static int[] accountSequence(int numberAccounts, String distribution, int length) {
+        int[] sequence = new int[length];
+        ZipfianGenerator zipfian = new ZipfianGenerator(numberAccounts, SKEWED.equals(distribution) ? THETA : 0);
+
+        for (int i = 0; i < length; i++) {
+            sequence[i] = (int) zipfian.next();
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,80 @@
+package transaction.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import transaction.server.TransactionServer;
+import transaction.server.account.Account;
+import transaction.server.lock.Lock;
+import transaction.server.lock.LockTypes;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [LockBenchmark] Acquire and release of a single lock, shared by all benchmark threads,
+ * with writePercent of the acquisitions asking for a write lock. Run with -t to vary the number
+ * of threads. A conflicting acquisition aborts, as on the server, and counts as an operation too.
+ *
+ * Every operation runs on behalf of a new transaction, as a lock is never set twice by the same
+ * one; createTransaction is the baseline for what that costs on its own.
+ *
+ * @author wolfdieterotte
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark implements LockTypes {
+
+    @Param({"0", "10", "50", "100"})
+    public int writePercent;
+
+    private Lock lock;
+
+    private TransactionManager transactionManager;
+
+    @Setup
+    public void setUp() {
+        TransactionServer server = BenchmarkSetup.setUp(1, false);
+        transactionManager = server.getTransactionManager();
+        lock = new Lock(new Account(0, 10));
+    }
+
+    @Benchmark
+    public Transaction createTransaction() {
+        Transaction transaction = transactionManager.createInternalTransaction();
+        transactionManager.releaseUndoLog(transaction);
+
+        return transaction;
+    }
+
+    @Benchmark
+    public boolean acquireRelease() {
+        Transaction transaction = transactionManager.createInternalTransaction();
+        int lockType = ThreadLocalRandom.current().nextInt(100) < writePercent ? WRITE_LOCK : READ_LOCK;
+        boolean granted = true;
+
+        try {
+            lock.acquire(transaction, lockType);
+        } catch (TransactionAbortedException e) {
+            granted = false;
+        }
+        lock.release(transaction);
+        transactionManager.releaseUndoLog(transaction);
+
+        return granted;
+    }
+}
@@ -0,0 +1,83 @@
+package transaction.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import transaction.server.TransactionServer;
+import transaction.server.account.Account;
+import transaction.server.lock.LockManager;
+import transaction.server.lock.LockTypes;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [LockManagerBenchmark] A transaction write-locking a source and a destination account and
+ * releasing both, i.e. the locking of a transfer, through the lock manager. Accounts are drawn
+ * uniformly or skewed (Zipfian, theta 0.99), and a transaction running into a conflict aborts.
+ * Run with -t to vary the number of threads.
+ *
+ * @author wolfdieterotte
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockManagerBenchmark implements LockTypes {
+
+    private static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"1000", "100000"})
+    public int numberAccounts;
+
+    @Param({BenchmarkSetup.UNIFORM, BenchmarkSetup.SKEWED})
+    public String distribution;
+
+    private Account[] sequence;
+
+    private TransactionManager transactionManager;
+    private LockManager lockManager;
+
+    @Setup
+    public void setUp() {
+        TransactionServer server = BenchmarkSetup.setUp(numberAccounts, false);
+        transactionManager = server.getTransactionManager();
+        lockManager = server.getLockManager();
+
+        int[] accountNumbers = BenchmarkSetup.accountSequence(numberAccounts, distribution, SEQUENCE_LENGTH);
+        sequence = new Account[SEQUENCE_LENGTH];
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+            sequence[i] = server.getAccountManager().getAccount(accountNumbers[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean lockUnLock() {
+        Transaction transaction = transactionManager.createInternalTransaction();
+        int index = ThreadLocalRandom.current().nextInt(SEQUENCE_LENGTH);
+        boolean granted = true;
+
+        try {
+            lockManager.lock(sequence[index], transaction, WRITE_LOCK);
+            lockManager.lock(sequence[(index + 1) & (SEQUENCE_LENGTH - 1)], transaction, WRITE_LOCK);
+        } catch (TransactionAbortedException e) {
+            granted = false;
+        }
+        lockManager.unLock(transaction);
+        transactionManager.releaseUndoLog(transaction);
+
+        return granted;
+    }
+}
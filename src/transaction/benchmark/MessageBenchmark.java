@@ -0,0 +1,73 @@
+package transaction.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+
+/**
+ * Class [MessageBenchmark] Encoding and decoding of a write request with object streams, as
+ * the client and the server do it. encodeOnStream reuses one stream like a connection does,
+ * resetting it after each message; encodeOnNewStream pays for the stream header and class
+ * descriptors every time, decode decodes such a self-contained message.
+ *
+ * @author wolfdieterotte
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark implements MessageTypes {
+
+    private ByteArrayOutputStream buffer;
+    private ObjectOutputStream stream;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        buffer = new ByteArrayOutputStream(1024);
+        stream = new ObjectOutputStream(buffer);
+        encoded = encodeOnNewStream();
+    }
+
+    @Benchmark
+    public int encodeOnStream() throws IOException {
+        buffer.reset();
+        stream.writeObject(new Message(WRITE_REQUEST, new Object[]{17, 42}));
+        stream.reset();
+        stream.flush();
+        return buffer.size();
+    }
+
+    @Benchmark
+    public byte[] encodeOnNewStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new Message(WRITE_REQUEST, new Object[]{17, 42}));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Message decode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+            return (Message) in.readObject();
+        }
+    }
+}
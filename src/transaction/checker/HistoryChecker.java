@@ -0,0 +1,490 @@
+package transaction.checker;
+
+import java.io.IOException;
+import java.util.Arrays;
+import transaction.comm.HistoryFile;
+import transaction.comm.MessageTypes;
+
+/**
+ * Class [HistoryChecker] Verifies the history a server wrote (see HISTORY_FILE), streaming it in
+ * commit order with bounded memory:
+ *
+ * - conservation: the writes of every transaction add up to no change in the money on the books,
+ *   and at the end, the money on the books is what there was to begin with
+ * - consistent reads: a transaction read the balance of the version it read, and only versions
+ *   committed before it committed
+ * - conflict-serializability: the precedence graph has no cycle. The versions of an account give
+ *   its write-read, write-write and read-write (anti-)dependencies; edges are kept for the last
+ *   WINDOW transactions. As transactions come in commit order, a new transaction can only close
+ *   a cycle if it depends on a transaction that committed before it, which strict 2PL never
+ *   allows, so the graph is only searched for such transactions and checking stays cheap.
+ *
+ * Dependencies on transactions that dropped out of the window, and reads of versions more than
+ * RECENT versions back, are counted but cannot be checked.
+ *
+ * Run as: java transaction.checker.HistoryChecker history-file [window]
+ *
+ * @author wolfdieterotte
+ */
+public class HistoryChecker implements MessageTypes
+{
+
+    // versions of an account kept to place reads of older versions, a power of two
+    private static final int RECENT = 8;
+
+    // violations printed in detail, the others are only counted
+    private static final int PRINTED_VIOLATIONS = 20;
+
+    // seconds between two progress lines
+    private static final long PROGRESS_SECONDS = 10;
+
+    // per account: latest version and balance, and writers and balances of the recent versions
+    private final int numberAccounts;
+    private final long initialTotal;
+    private final long[] versions;
+    private final int[] balances;
+    private final long[] recentWriters;
+    private final int[] recentBalances;
+
+    // per account: the transactions that read its latest version
+    private final long[][] readers;
+    private final int[] readerCounts;
+
+    // the window of the last transactions, by sequence number modulo its size: their IDs and successors in the graph
+    private final int window;
+    private final int[] transactionIDs;
+    private final long[][] successors;
+    private final int[] successorCounts;
+    private final long[] visited;
+    private final long[] dependedOn;
+
+    // the dependencies of the transaction being checked, and the depth-first search stack
+    private long[] ins = new long[16];
+    private long[] outs = new long[16];
+    private int inCount;
+    private int outCount;
+    private long[] stack = new long[64];
+
+    // sequence number of the transaction being checked, in commit order
+    private long sequence = 0;
+
+    // counters
+    private long operations = 0;
+    private long edges = 0;
+    private long edgesPastWindow = 0;
+    private long searches = 0;
+    private long cycles = 0;
+    private long conservationViolations = 0;
+    private long readViolations = 0;
+    private long versionViolations = 0;
+    private long printed = 0;
+
+    /**
+     * Constructor
+     *
+     * @param numberAccounts number of accounts on the server
+     * @param initialBalance their initial balance
+     * @param windowSize number of transactions the precedence graph is kept for, rounded up to a power of two
+     */
+    public HistoryChecker(int numberAccounts, int initialBalance, int windowSize)
+    {
+        this.numberAccounts = numberAccounts;
+        this.initialTotal = (long) numberAccounts * initialBalance;
+
+        versions = new long[numberAccounts];
+        balances = new int[numberAccounts];
+        Arrays.fill(balances, initialBalance);
+        recentWriters = new long[numberAccounts * RECENT];
+        recentBalances = new int[numberAccounts * RECENT];
+        for (int account = 0; account < numberAccounts; account++)
+        {
+            // version 0, the initial balance, written by nobody
+            recentWriters[account * RECENT] = -1;
+            recentBalances[account * RECENT] = initialBalance;
+        }
+        readers = new long[numberAccounts][];
+        readerCounts = new int[numberAccounts];
+
+        window = Integer.highestOneBit(Math.max(2, windowSize) - 1) << 1;
+        transactionIDs = new int[window];
+        successors = new long[window][];
+        successorCounts = new int[window];
+        visited = new long[window];
+        dependedOn = new long[window];
+        Arrays.fill(visited, -1);
+        Arrays.fill(dependedOn, -1);
+    }
+
+    /**
+     * Checks the next transaction of the history
+     *
+     * @param entry the transaction, in commit order
+     */
+    public void check(HistoryFile.Entry entry)
+    {
+        long current = sequence++;
+        int slot = slot(current);
+        long delta = 0;
+
+        transactionIDs[slot] = entry.transactionID;
+        successorCounts[slot] = 0;
+        inCount = 0;
+        outCount = 0;
+        operations += entry.size;
+
+        // reads first, a transaction reads an account before writing it
+        for (int i = 0; i < entry.size; i++)
+        {
+            if (entry.types[i] != READ_REQUEST)
+            {
+                continue;
+            }
+
+            int account = entry.accounts[i];
+            long version = entry.versions[i];
+            if (!isAccount(entry, account))
+            {
+                continue;
+            }
+
+            if (version > versions[account])
+            {
+                readViolations++;
+                report(entry, "read version " + version + " of account #" + account + ", which was not committed yet");
+                continue;
+            }
+            if (versions[account] - version >= RECENT)
+            {
+                edgesPastWindow++;
+                continue;
+            }
+
+            int recent = account * RECENT + (int) (version & (RECENT - 1));
+            if (recentBalances[recent] != entry.balances[i])
+            {
+                readViolations++;
+                report(entry, "read $" + entry.balances[i] + " from version " + version + " of account #" + account
+                        + ", which holds $" + recentBalances[recent]);
+            }
+
+            // write-read: the writer of the version read comes first
+            addIn(recentWriters[recent], current);
+
+            if (version < versions[account])
+            {
+                // read-write: the writer of the next version overwrote what was read, it must come after
+                addOut(recentWriters[account * RECENT + (int) ((version + 1) & (RECENT - 1))], current);
+            }
+            else
+            {
+                addReader(account, current);
+            }
+        }
+
+        for (int i = 0; i < entry.size; i++)
+        {
+            if (entry.types[i] != WRITE_REQUEST)
+            {
+                continue;
+            }
+
+            int account = entry.accounts[i];
+            long version = entry.versions[i];
+            if (!isAccount(entry, account))
+            {
+                continue;
+            }
+
+            if (version != versions[account] + 1)
+            {
+                versionViolations++;
+                report(entry, "created version " + version + " of account #" + account + ", the latest one was " + versions[account]);
+            }
+
+            // write-write: the writer of the version overwritten comes first
+            addIn(recentWriters[account * RECENT + (int) (versions[account] & (RECENT - 1))], current);
+
+            // read-write: the readers of the version overwritten come first
+            for (int r = 0; r < readerCounts[account]; r++)
+            {
+                addIn(readers[account][r], current);
+            }
+
+            delta += entry.balances[i] - balances[account];
+
+            versions[account] = version;
+            balances[account] = entry.balances[i];
+            int recent = account * RECENT + (int) (version & (RECENT - 1));
+            recentWriters[recent] = current;
+            recentBalances[recent] = entry.balances[i];
+            readerCounts[account] = 0;
+        }
+
+        if (delta != 0)
+        {
+            conservationViolations++;
+            report(entry, "changed the money on the books by $" + delta);
+        }
+
+        // a cycle needs a dependency on a transaction that committed before
+        if (outCount > 0)
+        {
+            searchCycle(entry, current);
+        }
+
+        for (int i = 0; i < inCount; i++)
+        {
+            addSuccessor(ins[i], current);
+        }
+        for (int i = 0; i < outCount; i++)
+        {
+            addSuccessor(current, outs[i]);
+        }
+    }
+
+    /**
+     * Helper method looking for a path from one of the transactions the current one must come
+     * before back to one it must come after
+     */
+    private void searchCycle(HistoryFile.Entry entry, long current)
+    {
+        searches++;
+        for (int i = 0; i < inCount; i++)
+        {
+            dependedOn[slot(ins[i])] = current;
+        }
+
+        for (int i = 0; i < outCount; i++)
+        {
+            int top = 0;
+            stack[top++] = outs[i];
+
+            while (top > 0)
+            {
+                long node = stack[--top];
+                int slot = slot(node);
+
+                if (dependedOn[slot] == current)
+                {
+                    cycles++;
+                    report(entry, "closes a cycle: it must come before #" + transactionIDs[slot(outs[i])]
+                            + ", which leads to #" + transactionIDs[slot] + ", which it must come after");
+                    return;
+                }
+                if (visited[slot] == current)
+                {
+                    continue;
+                }
+                visited[slot] = current;
+
+                for (int s = 0; s < successorCounts[slot]; s++)
+                {
+                    long successor = successors[slot][s];
+                    if (successor > current - window && successor != current)
+                    {
+                        if (top == stack.length)
+                        {
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = successor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes the check, comparing the money on the books with what there was to begin with
+     */
+    public void finish()
+    {
+        long total = 0;
+        for (int account = 0; account < numberAccounts; account++)
+        {
+            total += balances[account];
+        }
+
+        if (total != initialTotal)
+        {
+            conservationViolations++;
+            System.out.println("VIOLATION: $" + total + " on the books at the end, $" + initialTotal + " at the beginning");
+        }
+    }
+
+    public boolean isCorrect()
+    {
+        return cycles + conservationViolations + readViolations + versionViolations == 0;
+    }
+
+    public String getSummary()
+    {
+        return String.format("%d transactions, %d operations, %d dependencies (%d past the window), %d searches%n"
+                + "cycles: %d, conservation violations: %d, inconsistent reads: %d, version gaps: %d",
+                sequence, operations, edges, edgesPastWindow, searches,
+                cycles, conservationViolations, readViolations, versionViolations);
+    }
+
+    private int slot(long node)
+    {
+        return (int) (node & (window - 1));
+    }
+
+    private boolean isAccount(HistoryFile.Entry entry, int account)
+    {
+        if (account >= 0 && account < numberAccounts)
+        {
+            return true;
+        }
+        versionViolations++;
+        report(entry, "touched account #" + account + ", which does not exist");
+        return false;
+    }
+
+    /**
+     * Helper method noting that a transaction must come before the current one
+     */
+    private void addIn(long node, long current)
+    {
+        if (node < 0 || node == current)
+        {
+            return;
+        }
+        if (node <= current - window)
+        {
+            edgesPastWindow++;
+            return;
+        }
+        if (inCount == ins.length)
+        {
+            ins = Arrays.copyOf(ins, inCount * 2);
+        }
+        ins[inCount++] = node;
+    }
+
+    /**
+     * Helper method noting that a transaction must come after the current one
+     */
+    private void addOut(long node, long current)
+    {
+        if (node < 0 || node == current)
+        {
+            return;
+        }
+        if (node <= current - window)
+        {
+            edgesPastWindow++;
+            return;
+        }
+        if (outCount == outs.length)
+        {
+            outs = Arrays.copyOf(outs, outCount * 2);
+        }
+        outs[outCount++] = node;
+    }
+
+    private void addSuccessor(long node, long successor)
+    {
+        int slot = slot(node);
+
+        if (successors[slot] == null)
+        {
+            successors[slot] = new long[4];
+        }
+        else if (successorCounts[slot] == successors[slot].length)
+        {
+            successors[slot] = Arrays.copyOf(successors[slot], successorCounts[slot] * 2);
+        }
+        successors[slot][successorCounts[slot]++] = successor;
+        edges++;
+    }
+
+    private void addReader(int account, long current)
+    {
+        if (readers[account] == null)
+        {
+            readers[account] = new long[4];
+        }
+        else if (readerCounts[account] == readers[account].length)
+        {
+            // drop the readers that left the window before making room
+            int kept = 0;
+            for (int r = 0; r < readerCounts[account]; r++)
+            {
+                if (readers[account][r] > current - window)
+                {
+                    readers[account][kept++] = readers[account][r];
+                }
+            }
+            readerCounts[account] = kept;
+            if (kept == readers[account].length)
+            {
+                readers[account] = Arrays.copyOf(readers[account], kept * 2);
+            }
+        }
+        readers[account][readerCounts[account]++] = current;
+    }
+
+    private void report(HistoryFile.Entry entry, String violation)
+    {
+        if (printed++ < PRINTED_VIOLATIONS)
+        {
+            System.out.println("VIOLATION: transaction #" + entry.transactionID + " " + violation);
+        }
+    }
+
+    /**
+     * main()
+     *
+     * @param args history file, and optionally the window size
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: java transaction.checker.HistoryChecker history-file [window]");
+            System.exit(2);
+        }
+
+        HistoryFile historyFile = null;
+        try
+        {
+            historyFile = HistoryFile.open(args[0]);
+            HistoryChecker checker = new HistoryChecker(historyFile.getNumberAccounts(), historyFile.getInitialBalance(),
+                    args.length > 1 ? Integer.parseInt(args[1]) : 1 << 17);
+            HistoryFile.Entry entry = new HistoryFile.Entry();
+
+            long start = System.nanoTime();
+            long nextProgress = start + PROGRESS_SECONDS * 1_000_000_000L;
+            while (historyFile.read(entry))
+            {
+                checker.check(entry);
+
+                if ((checker.sequence & 0xFFF) == 0 && System.nanoTime() > nextProgress)
+                {
+                    System.out.println("[HistoryChecker] " + checker.sequence + " transactions checked");
+                    nextProgress += PROGRESS_SECONDS * 1_000_000_000L;
+                }
+            }
+            checker.finish();
+
+            double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.out.println(checker.getSummary());
+            System.out.println(String.format("checked in %.2fs, %.0f operations/s", seconds, checker.operations / seconds));
+            System.out.println(checker.isCorrect() ? "---> history is serializable and conserves money" : "---> history is NOT correct");
+
+            System.exit(checker.isCorrect() ? 0 : 1);
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            System.out.println("[HistoryChecker.main] Cannot check \"" + args[0] + "\": " + e.getMessage());
+            System.exit(2);
+        }
+        finally
+        {
+            if (historyFile != null)
+            {
+                historyFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package transaction.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import utils.ZipfianGenerator;
+
+/**
+ * Class [AccountSelector] Draws the accounts transactions of the load generator work on.
+ *
+ * UNIFORM draws every account with the same probability. ZIPFIAN draws account i with a probability
+ * proportional to 1/(i+1)^theta, so #0 is the hottest account. HOTSPOT sends a given share of the
+ * draws to the first accounts, the hot set, and the rest uniformly to the others.
+ *
+ * @author wolfdieterotte
+ */
+public class AccountSelector {
+
+    public static final String UNIFORM = "UNIFORM";
+    public static final String ZIPFIAN = "ZIPFIAN";
+    public static final String HOTSPOT = "HOTSPOT";
+
+    private final String distribution;
+    private final int numberAccounts;
+
+    private ZipfianGenerator zipfian = null;
+    private int hotAccounts;
+    private double hotProbability;
+
+    /**
+     * Constructor
+     *
+     * @param distribution UNIFORM, ZIPFIAN or HOTSPOT
+     * @param numberAccounts number of accounts on the server
+     * @param theta skew of ZIPFIAN, 0 <= theta < 1
+     * @param hotFraction share of the accounts in the hot set of HOTSPOT
+     * @param hotProbability share of the draws going to the hot set of HOTSPOT
+     */
+    public AccountSelector(String distribution, int numberAccounts, double theta, double hotFraction, double hotProbability) {
+        this.distribution = distribution.trim().toUpperCase();
+        this.numberAccounts = numberAccounts;
+
+        switch (this.distribution) {
+            case UNIFORM:
+                break;
+            case ZIPFIAN:
+                zipfian = new ZipfianGenerator(numberAccounts, theta);
+                break;
+            case HOTSPOT:
+                this.hotAccounts = Math.max(1, Math.min(numberAccounts - 1, (int) (numberAccounts * hotFraction)));
+                this.hotProbability = hotProbability;
+                break;
+            default:
+                throw new IllegalArgumentException("[AccountSelector] Unknown distribution \"" + distribution + "\"");
+        }
+    }
+
+    /**
+     * Draws an account
+     *
+     * @return the account number
+     */
+    public int next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (distribution) {
+            case ZIPFIAN:
+                return (int) zipfian.next();
+            case HOTSPOT:
+                if (random.nextDouble() < hotProbability) {
+                    return random.nextInt(hotAccounts);
+                }
+                return hotAccounts + random.nextInt(numberAccounts - hotAccounts);
+            default:
+                return random.nextInt(numberAccounts);
+        }
+    }
+
+    /**
+     * Draws distinct accounts
+     *
+     * @param accounts array to fill with account numbers, all different
+     */
+    public void next(int[] accounts) {
+        for (int i = 0; i < accounts.length; i++) {
+            boolean distinct;
+            do {
+                accounts[i] = next();
+                distinct = true;
+                for (int j = 0; j < i; j++) {
+                    distinct &= accounts[j] != accounts[i];
+                }
+            } while (!distinct);
+        }
+    }
+
+    public String getDescription() {
+        switch (distribution) {
+            case ZIPFIAN:
+                return ZIPFIAN + " (theta " + zipfian.getTheta() + ")";
+            case HOTSPOT:
+                return HOTSPOT + " (" + hotAccounts + " hot accounts get " + Math.round(hotProbability * 100) + "%)";
+            default:
+                return UNIFORM;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Properties;
+import utils.Histogram;
+import utils.PropertyHandler;
+
+/**
+ * Class [LoadGenerator] Closed-loop load generator for capacity testing.
+ *
+ * A fixed number of client sessions run transactions back to back for a given duration, each
+ * session starting its next transaction as soon as the previous one committed. Aborted
+ * transactions are restarted on the same accounts, after the wait the retry policy prescribes. Several session counts can be
+ * given, they are run one after the other, so throughput and latency can be followed while the
+ * load goes up, to find the knee of the throughput curve for a given contention level.
+ *
+ * The transactions are drawn from a Workload, i.e. a mix of transfers, read-only inquiries and
+ * multi-account transactions over accounts drawn from a configurable distribution.
+ *
+ * Every interval, throughput, aborts and latency percentiles are reported; the latency of a
+ * transaction is measured from its first attempt to its commit, so it includes the restarts.
+ *
+ * @author wolfdieterotte
+ */
+public class LoadGenerator {
+
+    private Workload workload;
+
+    private int[] sessionLevels;
+    private int durationSeconds;
+    private int warmupSeconds;
+    private int intervalSeconds;
+
+    // set to false to stop the sessions of the current level
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param clientPropertiesFile Containing properties on the client side
+     * @param serverPropertiesFile Containing properties on the server side
+     */
+    public LoadGenerator(String clientPropertiesFile, String serverPropertiesFile) {
+        try {
+            Properties clientProperties = new PropertyHandler(clientPropertiesFile);
+            workload = new Workload(new PropertyHandler(serverPropertiesFile), clientProperties);
+
+            sessionLevels = Workload.parseInts(clientProperties.getProperty("LOAD_SESSIONS", "1,2,4,8,16,32"));
+            durationSeconds = Integer.parseInt(clientProperties.getProperty("LOAD_DURATION_SECONDS", "10").trim());
+            warmupSeconds = Integer.parseInt(clientProperties.getProperty("LOAD_WARMUP_SECONDS", "2").trim());
+            intervalSeconds = Math.max(1, Integer.parseInt(clientProperties.getProperty("LOAD_INTERVAL_SECONDS", "1").trim()));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.out.println("[LoadGenerator.LoadGenerator] Bad configuration: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Overrides the session counts and the duration configured
+     *
+     * @param sessions session counts, separated by commas
+     * @param seconds duration of each level, null to keep the configured one
+     */
+    public void setLevels(String sessions, String seconds) {
+        sessionLevels = Workload.parseInts(sessions);
+        if (seconds != null) {
+            durationSeconds = Integer.parseInt(seconds);
+        }
+    }
+
+    /**
+     * Runs all levels and prints a summary line for each
+     */
+    public void run() {
+        ArrayList<String> summary = new ArrayList<>();
+
+        System.out.println("LOAD " + workload.getDescription() + ", " + durationSeconds + "s per level after " + warmupSeconds + "s warmup");
+        for (int sessions : sessionLevels) {
+            summary.add(runLevel(sessions));
+        }
+
+        System.out.println("\n======================================= SUMMARY =======================================");
+        System.out.println(String.format("%8s %12s %10s %7s %10s %10s %10s", "sessions", "commits/s", "aborts/s", "abort%", "p50 ms", "p99 ms", "p99.9 ms"));
+        for (String line : summary) {
+            System.out.println(line);
+        }
+        System.out.print("\n" + workload.getRetryPolicy().getReport());
+
+        workload.close();
+    }
+
+    /**
+     * Runs one level, i.e. a number of sessions for the configured duration
+     *
+     * @return the summary line for this level
+     */
+    private String runLevel(int numberSessions) {
+        ArrayList<Session> sessions = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        Histogram levelLatency = new Histogram();
+        long levelCommits = 0;
+        long levelAborts = 0;
+
+        System.out.println("\n--- " + numberSessions + " sessions ---");
+        System.out.println(String.format("%8s %12s %10s %7s %10s %10s %10s %10s", "time s", "commits/s", "aborts/s", "abort%", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        running = true;
+        for (int i = 0; i < numberSessions; i++) {
+            Session session = new Session();
+            Thread thread = new Thread(session, "Session-" + i);
+            sessions.add(session);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        long end = start + (warmupSeconds + durationSeconds) * 1_000_000_000L;
+        long next = start;
+        Histogram intervalLatency = new Histogram();
+
+        while (next < end) {
+            long previous = next;
+            next = Math.min(end, next + intervalSeconds * 1_000_000_000L);
+            Workload.sleepUntil(next);
+
+            long commits = 0;
+            long aborts = 0;
+            intervalLatency.reset();
+            for (Session session : sessions) {
+                synchronized (session) {
+                    intervalLatency.add(session.latency);
+                    session.latency.reset();
+                    commits += session.commits;
+                    aborts += session.aborts;
+                    session.commits = 0;
+                    session.aborts = 0;
+                }
+            }
+
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double seconds = (next - previous) / 1e9;
+            System.out.println(format(String.format("%8.0f", elapsed), commits / seconds, aborts / seconds, commits, aborts, intervalLatency)
+                    + String.format(" %10.2f", intervalLatency.getMax() / 1e6) + (elapsed <= warmupSeconds ? "  (warmup)" : ""));
+
+            if (elapsed > warmupSeconds) {
+                levelLatency.add(intervalLatency);
+                levelCommits += commits;
+                levelAborts += aborts;
+            }
+        }
+
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // just go on
+            }
+        }
+
+        return format(String.format("%8d", numberSessions), (double) levelCommits / durationSeconds, (double) levelAborts / durationSeconds,
+                levelCommits, levelAborts, levelLatency);
+    }
+
+    /**
+     * Helper method formatting throughput, abort rate and latency percentiles
+     */
+    private static String format(String first, double commitRate, double abortRate, long commits, long aborts, Histogram latency) {
+        return String.format("%s %12.1f %10.1f %7.1f %10.2f %10.2f %10.2f", first, commitRate, abortRate,
+                commits + aborts == 0 ? 0.0 : 100.0 * aborts / (commits + aborts),
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6);
+    }
+
+    /**
+     * One client session, running transactions back to back while the level is running.
+     * What it records is collected and reset by the generator every interval, under the session's monitor
+     */
+    private class Session implements Runnable {
+
+        final Histogram latency = new Histogram();
+        long commits = 0;
+        long aborts = 0;
+
+        @Override
+        public void run() {
+            Workload.Task task = workload.new Task();
+
+            while (running) {
+                workload.next(task);
+
+                long start = System.nanoTime();
+                boolean committed;
+                do {
+                    committed = workload.attempt(task);
+                    if (!committed) {
+                        synchronized (this) {
+                            aborts++;
+                        }
+                        if (running) {
+                            workload.backOff(task);
+                        }
+                    }
+                } while (!committed && running);
+
+                if (committed) {
+                    long elapsed = System.nanoTime() - start;
+                    synchronized (this) {
+                        latency.record(elapsed);
+                        commits++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.Histogram;
+import utils.PropertyHandler;
+
+/**
+ * Class [OpenLoopGenerator] Open-loop load generator producing a latency-vs-throughput curve.
+ *
+ * Transactions are issued at a fixed target rate, on a schedule that does not depend on how fast
+ * the server answers: transaction i is due at start + i / rate. A pool of connections takes the
+ * transactions in schedule order; when all of them are busy, transactions start late, and since
+ * latency is measured from the time a transaction was due rather than from when it actually
+ * started, a server stall shows up in the latencies of all transactions it held up, instead of
+ * being hidden by a client that stopped sending (coordinated omission).
+ *
+ * Latency runs until the commit, including restarts of aborted attempts. The target rates are
+ * given as a list, or swept automatically, going up by a factor until the server falls behind the
+ * schedule or the 99th percentile exceeds the SLO.
+ *
+ * @author wolfdieterotte
+ */
+public class OpenLoopGenerator {
+
+    // the server counts as keeping up as long as it commits this share of the target rate
+    private static final double KEEP_UP = 0.9;
+
+    private Workload workload;
+
+    private double[] rates;
+    private boolean autoSweep;
+    private double startRate;
+    private double rateFactor;
+    private double maxRate;
+    private double sloMillis;
+    private int connections;
+    private int durationSeconds;
+    private int warmupSeconds;
+
+    /**
+     * Constructor
+     *
+     * @param clientPropertiesFile Containing properties on the client side
+     * @param serverPropertiesFile Containing properties on the server side
+     */
+    public OpenLoopGenerator(String clientPropertiesFile, String serverPropertiesFile) {
+        try {
+            Properties clientProperties = new PropertyHandler(clientPropertiesFile);
+            workload = new Workload(new PropertyHandler(serverPropertiesFile), clientProperties);
+
+            setRates(clientProperties.getProperty("OPEN_LOOP_RATES", "AUTO"));
+            startRate = Double.parseDouble(clientProperties.getProperty("OPEN_LOOP_START_RATE", "100"));
+            rateFactor = Math.max(1.01, Double.parseDouble(clientProperties.getProperty("OPEN_LOOP_RATE_FACTOR", "1.5")));
+            maxRate = Double.parseDouble(clientProperties.getProperty("OPEN_LOOP_MAX_RATE", "100000"));
+            sloMillis = Double.parseDouble(clientProperties.getProperty("OPEN_LOOP_SLO_MILLIS", "50"));
+            connections = Integer.parseInt(clientProperties.getProperty("OPEN_LOOP_CONNECTIONS", "256").trim());
+            durationSeconds = Integer.parseInt(clientProperties.getProperty("LOAD_DURATION_SECONDS", "10").trim());
+            warmupSeconds = Integer.parseInt(clientProperties.getProperty("LOAD_WARMUP_SECONDS", "2").trim());
+        } catch (IOException | IllegalArgumentException ex) {
+            System.out.println("[OpenLoopGenerator.OpenLoopGenerator] Bad configuration: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Overrides the target rates and the duration configured
+     *
+     * @param rateList target rates in transactions per second, separated by commas, or AUTO
+     * @param seconds duration of each rate, null to keep the configured one
+     */
+    public void setRates(String rateList, String seconds) {
+        setRates(rateList);
+        if (seconds != null) {
+            durationSeconds = Integer.parseInt(seconds);
+        }
+    }
+
+    private void setRates(String rateList) {
+        autoSweep = rateList.trim().equalsIgnoreCase("AUTO");
+        if (!autoSweep) {
+            String[] items = rateList.split(",");
+            rates = new double[items.length];
+            for (int i = 0; i < items.length; i++) {
+                rates[i] = Double.parseDouble(items[i].trim());
+            }
+        }
+    }
+
+    /**
+     * Runs all target rates and prints the latency-vs-throughput curve
+     */
+    public void run() {
+        ArrayList<String> curve = new ArrayList<>();
+        String columns = String.format("%10s %10s %7s %9s %9s %9s %9s %9s %8s", "target/s", "commits/s", "abort%",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "late%");
+
+        System.out.println("OPEN LOOP " + workload.getDescription() + ", " + connections + " connections, "
+                + durationSeconds + "s per rate after " + warmupSeconds + "s warmup");
+        System.out.println(columns);
+
+        if (autoSweep) {
+            for (double rate = startRate; rate <= maxRate; rate *= rateFactor) {
+                Result result = runRate(rate);
+                curve.add(result.line);
+                System.out.println(result.line);
+
+                if (result.commitRate < KEEP_UP * rate || result.p99Millis > sloMillis) {
+                    System.out.println("saturated at " + Math.round(rate) + "/s"
+                            + (result.p99Millis > sloMillis ? ", p99 above SLO of " + sloMillis + "ms" : ", server falls behind"));
+                    break;
+                }
+            }
+        } else {
+            for (double rate : rates) {
+                Result result = runRate(rate);
+                curve.add(result.line);
+                System.out.println(result.line);
+            }
+        }
+
+        System.out.println("\n================================ LATENCY VS THROUGHPUT ================================");
+        System.out.println(columns);
+        for (String line : curve) {
+            System.out.println(line);
+        }
+        System.out.print("\n" + workload.getRetryPolicy().getReport());
+
+        workload.close();
+    }
+
+    /**
+     * Outcome of one target rate
+     */
+    private static class Result {
+        double commitRate;
+        double p99Millis;
+        String line;
+    }
+
+    /**
+     * Issues transactions at one target rate for the configured duration
+     */
+    private Result runRate(double rate) {
+        ArrayList<Connection> pool = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+
+        long interval = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime() + 10_000_000L;
+        long measureStart = start + warmupSeconds * 1_000_000_000L;
+        long end = measureStart + durationSeconds * 1_000_000_000L;
+        AtomicLong nextSlot = new AtomicLong();
+
+        for (int i = 0; i < connections; i++) {
+            Connection connection = new Connection(nextSlot, start, interval, measureStart, end);
+            Thread thread = new Thread(connection, "Connection-" + i);
+            pool.add(connection);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Histogram latency = new Histogram();
+        long commits = 0;
+        long aborts = 0;
+        long late = 0;
+        long lastCommit = measureStart;
+
+        for (int i = 0; i < connections; i++) {
+            try {
+                threads.get(i).join();
+            } catch (InterruptedException e) {
+                // just go on
+            }
+            Connection connection = pool.get(i);
+            latency.add(connection.latency);
+            commits += connection.commits;
+            aborts += connection.aborts;
+            late += connection.late;
+            lastCommit = Math.max(lastCommit, connection.lastCommit);
+        }
+
+        Result result = new Result();
+        result.commitRate = commits / Math.max(durationSeconds, (lastCommit - measureStart) / 1e9);
+        result.p99Millis = latency.getValueAtPercentile(99) / 1e6;
+        result.line = String.format("%10.0f %10.1f %7.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8.1f", rate, result.commitRate,
+                commits + aborts == 0 ? 0.0 : 100.0 * aborts / (commits + aborts),
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6, result.p99Millis,
+                latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6,
+                commits == 0 ? 0.0 : 100.0 * late / commits);
+        return result;
+    }
+
+    /**
+     * One connection of the pool, taking the next transaction due until the schedule runs out.
+     * Only read after its thread has been joined
+     */
+    private class Connection implements Runnable {
+
+        private final AtomicLong nextSlot;
+        private final long start;
+        private final long interval;
+        private final long measureStart;
+        private final long end;
+
+        final Histogram latency = new Histogram();
+        long commits = 0;
+        long aborts = 0;
+        long late = 0;
+        long lastCommit = 0;
+
+        Connection(AtomicLong nextSlot, long start, long interval, long measureStart, long end) {
+            this.nextSlot = nextSlot;
+            this.start = start;
+            this.interval = interval;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            Workload.Task task = workload.new Task();
+
+            while (true) {
+                // the time this transaction is due, whether or not we get to it in time
+                long due = start + nextSlot.getAndIncrement() * interval;
+                if (due >= end) {
+                    return;
+                }
+
+                Workload.sleepUntil(due);
+                boolean measured = due >= measureStart;
+                if (measured && System.nanoTime() - due > interval) {
+                    late++;
+                }
+
+                workload.next(task);
+                int attempts = 1;
+                while (!workload.attempt(task)) {
+                    workload.backOff(task);
+                    attempts++;
+                }
+
+                if (measured) {
+                    lastCommit = System.nanoTime();
+                    latency.record(lastCommit - due);
+                    commits++;
+                    aborts += attempts - 1;
+                }
+            }
+        }
+    }
+}
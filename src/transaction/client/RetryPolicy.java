@@ -0,0 +1,193 @@
+package transaction.client;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.TransactionAbortedException;
+
+/**
+ * Class [RetryPolicy] Decides how long a client waits before restarting a transaction that aborted,
+ * or was turned away by a busy server. Configured by the RETRY_* client properties:
+ *
+ * IMMEDIATE restarts right away. FIXED waits RETRY_BASE_MICROS each time. EXPONENTIAL waits a
+ * random time between 0 and RETRY_BASE_MICROS doubled with each restart, capped at
+ * RETRY_MAX_MICROS, so clients colliding once do not collide again in lockstep. CONTENTION does
+ * the same, but scales the ceiling with the number of transactions the server reported in the way
+ * of the aborted one, which have to get done before a restart gets through; without that hint, it
+ * backs off exponentially.
+ *
+ * Other policies plug in by overriding delayNanos(). Whatever the policy, it counts the attempts
+ * each committed transaction took, the aborts by cause, and the time spent backing off.
+ *
+ * @author wolfdieterotte
+ */
+public class RetryPolicy implements AbortCauses {
+
+    public static final String IMMEDIATE = "IMMEDIATE";
+    public static final String FIXED = "FIXED";
+    public static final String EXPONENTIAL = "EXPONENTIAL";
+    public static final String CONTENTION = "CONTENTION";
+
+    // transactions taking this many attempts or more are counted together
+    private static final int MAX_ATTEMPTS_COUNTED = 16;
+
+    // configuration
+    private final String policy;
+    protected final long baseNanos;
+    protected final long maxNanos;
+
+    // counters, committed transactions by the number of attempts they took, index 0 unused
+    private final AtomicLongArray commitsByAttempts = new AtomicLongArray(MAX_ATTEMPTS_COUNTED + 1);
+    private final AtomicLongArray abortsByCause = new AtomicLongArray(NUMBER_ABORT_CAUSES);
+    private final AtomicLong backoffs = new AtomicLong();
+    private final AtomicLong backoffNanos = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param clientProperties the client's properties, for the RETRY_* settings
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public RetryPolicy(Properties clientProperties) {
+        policy = clientProperties.getProperty("RETRY_POLICY", EXPONENTIAL).trim().toUpperCase();
+        baseNanos = Long.parseLong(clientProperties.getProperty("RETRY_BASE_MICROS", "1000").trim()) * 1000;
+        maxNanos = Math.max(baseNanos, Long.parseLong(clientProperties.getProperty("RETRY_MAX_MICROS", "100000").trim()) * 1000);
+
+        if (!policy.equals(IMMEDIATE) && !policy.equals(FIXED) && !policy.equals(EXPONENTIAL) && !policy.equals(CONTENTION)) {
+            throw new IllegalArgumentException("Unknown RETRY_POLICY " + policy);
+        }
+    }
+
+    /**
+     * Waits before restarting a transaction
+     *
+     * @param attempt number of the attempt that aborted, from 1
+     * @param abort why it aborted, null if not known
+     */
+    public void backOff(int attempt, TransactionAbortedException abort) {
+        int abortCause = abort != null ? abort.getAbortCause() : LOCK_CONFLICT;
+        if (abortCause >= 0 && abortCause < NUMBER_ABORT_CAUSES) {
+            abortsByCause.incrementAndGet(abortCause);
+        }
+
+        long nanos = delayNanos(attempt, abort);
+        backoffs.incrementAndGet();
+        backoffNanos.addAndGet(nanos);
+
+        // parkNanos may return early, so park until the time is up
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Helper method telling whether a transaction that did not commit is worth restarting
+     *
+     * @param abort why it did not commit, null if not known
+     * @return false if the server refused the request as such, e.g. a partitioned server asked to
+     *         run a transaction request by request, which no restart changes
+     */
+    public static boolean isRetriable(TransactionAbortedException abort) {
+        return abort == null || abort.getAbortCause() != INVALID_REQUEST;
+    }
+
+    /**
+     * Counts a transaction that committed
+     *
+     * @param attempts number of attempts it took, including the one that committed
+     */
+    public void recordCommit(int attempts) {
+        commitsByAttempts.incrementAndGet(Math.max(1, Math.min(attempts, MAX_ATTEMPTS_COUNTED)));
+    }
+
+    /**
+     * Helper method returning how long to wait before the next attempt
+     *
+     * @param attempt number of the attempt that aborted, from 1
+     * @param abort why it aborted, null if not known
+     * @return the time to wait in nanoseconds
+     */
+    protected long delayNanos(int attempt, TransactionAbortedException abort) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int contention = abort != null ? abort.getContention() : 0;
+
+        switch (policy) {
+            case IMMEDIATE:
+                return 0;
+
+            case FIXED:
+                return baseNanos;
+
+            case CONTENTION:
+                if (contention > 0) {
+                    long ceiling = contention >= maxNanos / Math.max(1, baseNanos) ? maxNanos : baseNanos * contention;
+                    return random.nextLong(ceiling + 1);
+                }
+                // no hint, back off exponentially
+                return exponentialNanos(attempt);
+
+            default:
+                return exponentialNanos(attempt);
+        }
+    }
+
+    /**
+     * Helper method returning a random time up to the base doubled with each restart, capped
+     */
+    private long exponentialNanos(int attempt) {
+        int doublings = Math.max(0, attempt - 1);
+
+        // doubled any further, the base would overflow
+        long ceiling = doublings >= Long.numberOfLeadingZeros(baseNanos) - 1 ? maxNanos : Math.min(maxNanos, baseNanos << doublings);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public String getDescription() {
+        return policy.equals(IMMEDIATE) ? policy : policy + " " + baseNanos / 1000 + "us" + (policy.equals(FIXED) ? "" : " up to " + maxNanos / 1000 + "us");
+    }
+
+    /**
+     * Helper method returning the restarts and the attempts the transactions took as text
+     *
+     * @return one line for the restarts, one for the aborts, and one per number of attempts
+     */
+    public String getReport() {
+        long restarts = backoffs.get();
+        StringBuilder report = new StringBuilder();
+
+        report.append("retry policy ").append(getDescription()).append(": ").append(restarts).append(" restarts, ")
+                .append(String.format("%.1fms", backoffNanos.get() / 1e6)).append(" backed off, ")
+                .append(String.format("%.3fms", restarts == 0 ? 0.0 : backoffNanos.get() / 1e6 / restarts)).append(" on average\n");
+
+        report.append("aborts by cause:");
+        for (int cause = 0; cause < NUMBER_ABORT_CAUSES; cause++) {
+            if (abortsByCause.get(cause) > 0) {
+                report.append(" ").append(TransactionAbortedException.getAbortCauseString(cause)).append(" ").append(abortsByCause.get(cause));
+            }
+        }
+        report.append("\n");
+
+        // a committed transaction that took n attempts reached each attempt up to n
+        long reached = 0;
+        for (int attempts = 1; attempts <= MAX_ATTEMPTS_COUNTED; attempts++) {
+            reached += commitsByAttempts.get(attempts);
+        }
+        report.append(String.format("%8s %10s %10s %8s%n", "attempt", "reached", "committed", "commit%"));
+        for (int attempts = 1; attempts <= MAX_ATTEMPTS_COUNTED && reached > 0; attempts++) {
+            long committed = commitsByAttempts.get(attempts);
+            report.append(String.format("%8s %10d %10d %8.1f%n", attempts + (attempts == MAX_ATTEMPTS_COUNTED ? "+" : ""),
+                    reached, committed, 100.0 * committed / reached));
+            reached -= committed;
+        }
+        return report.toString();
+    }
+}
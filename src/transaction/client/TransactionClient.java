@@ -2,6 +2,7 @@ package transaction.client;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -25,6 +26,10 @@ import static utils.TerminalColors.RESTARTED_COLOR;
  */
 public class TransactionClient implements Runnable {
 
+    // configuration, looked up in the current directory and along the class path
+    public static final String CLIENT_PROPERTIES_FILE = "config/TransactionClient.properties";
+    public static final String SERVER_PROPERTIES_FILE = "config/TransactionServer.properties";
+
     public static int numberTransactions;
     public static int numberAccounts;
     public static int initialBalance;
@@ -37,6 +42,9 @@ public class TransactionClient implements Runnable {
     public ArrayList<Thread> threads = new ArrayList();
     public static boolean restartTransactions = true;
 
+    // how long to wait before restarting a transaction, shared by all threads
+    public static RetryPolicy retryPolicy;
+
     /**
      * Default Constructor
      *
@@ -59,7 +67,18 @@ public class TransactionClient implements Runnable {
             numberTransactions = Integer.parseInt(clientProperties.getProperty("NUMBER_TRANSACTIONS"));
             restartTransactions = Boolean.valueOf(clientProperties.getProperty("RESTART_TRANSACTIONS"));
             sleepMilliseconds = Integer.parseInt(clientProperties.getProperty("SLEEP_MILLISECONDS"));
-        } catch (IOException | NumberFormatException ex) {
+            retryPolicy = new RetryPolicy(clientProperties);
+
+            // replicas serving read-only transactions, given as host:port,host:port,...
+            ArrayList<InetSocketAddress> replicas = new ArrayList<>();
+            for (String replica : clientProperties.getProperty("REPLICAS", "").split(",")) {
+                if (!replica.trim().isEmpty()) {
+                    String[] hostAndPort = replica.trim().split(":");
+                    replicas.add(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+                }
+            }
+            TransactionServerProxy.setReplicas(replicas.toArray(new InetSocketAddress[0]));
+        } catch (IOException | IllegalArgumentException ex) {
             ex.printStackTrace();
         }
 
@@ -100,6 +119,7 @@ public class TransactionClient implements Runnable {
         }
 
         System.out.println("============================================================= WE ARE DONE, SHUTTING DOWN =============================================================");
+        System.out.print(retryPolicy.getReport());
 
         // here we have finished all transactions, let's shut down server
         try {
@@ -130,6 +150,7 @@ public class TransactionClient implements Runnable {
 
             int transactionID;
             int priorTransactionID = 0;
+            int attempts = 0;
 
             int accountFrom;
             int accountTo;
@@ -148,7 +169,24 @@ public class TransactionClient implements Runnable {
             do {
                 // open transaction
                 TransactionServerProxy transaction = new TransactionServerProxy(host, port);
-                transactionID = transaction.openTransaction();
+                attempts++;
+                try {
+                    transactionID = transaction.openTransaction(priorTransactionID > 0 ? priorTransactionID : -1);
+                } catch (TransactionAbortedException ex) {
+                    // refused for good, e.g. by a server running scripts only
+                    if (!RetryPolicy.isRetriable(ex)) {
+                        System.out.println("\tTransfer $" + amount + ": " + accountFrom + "->" + accountTo + " refused, "
+                                + ABORT_COLOR + TransactionAbortedException.getAbortCauseString(ex.getAbortCause()) + RESET_COLOR);
+                        break;
+                    }
+
+                    // server too busy to admit us, wait and try again
+                    System.out.println("\tTransfer $" + amount + ": " + accountFrom + "->" + accountTo + " turned away, server " + ABORT_COLOR + "BUSY" + RESET_COLOR);
+                    if (restartTransactions) {
+                        retryPolicy.backOff(attempts, ex);
+                    }
+                    continue;
+                }
 
                 // check if we are here the first time or in a restart
                 if (priorTransactionID == 0) {
@@ -195,10 +233,14 @@ public class TransactionClient implements Runnable {
                     transaction.write(accountTo, balance + amount);
                 } catch (TransactionAbortedException ex) {
                     // deal with abort - start over
-                    System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR + " due to deadlock");
+                    System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR + " due to "
+                            + TransactionAbortedException.getAbortCauseString(ex.getAbortCause()));
                     priorTransactionID = transactionID;
 
-                    // jump back to beginning of loop and restart right away
+                    // jump back to beginning of loop and restart, after backing off
+                    if (restartTransactions) {
+                        retryPolicy.backOff(attempts, ex);
+                    }
                     continue;
                 }
 
@@ -209,10 +251,14 @@ public class TransactionClient implements Runnable {
                 switch (returnStatus) {
                     case TRANSACTION_COMMITTED:
                         System.out.println("Transaction #" + transactionID + " " + COMMIT_COLOR + "COMMITTED" + RESET_COLOR);
+                        retryPolicy.recordCommit(attempts);
                         break;
                     case TRANSACTION_ABORTED:
                         System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR + " by server");
                         priorTransactionID = transactionID;
+                        if (restartTransactions) {
+                            retryPolicy.backOff(attempts, transaction.getAbort());
+                        }
                         break;
                     default:
                     // cannot occur
@@ -229,6 +275,39 @@ public class TransactionClient implements Runnable {
      * @param args
      */
     public static void main(String[] args) {
-        (new TransactionClient("/root/distributedSystems/TransactionalServer/src/config/TransactionClient.properties", "/root/distributedSystems/TransactionalServer/src/config/TransactionServer.properties")).run();
+        // operator mode: print a snapshot of the running server and leave
+        if (args.length > 0 && args[0].equalsIgnoreCase("STATS")) {
+            new TransactionClient(CLIENT_PROPERTIES_FILE, SERVER_PROPERTIES_FILE);
+            System.out.println(new TransactionServerProxy(host, port).getStats(args.length > 1 ? Integer.parseInt(args[1]) : 10));
+            return;
+        }
+
+        // load generator mode: LOAD [sessions,sessions,...] [seconds per level]
+        if (args.length > 0 && args[0].equalsIgnoreCase("LOAD")) {
+            LoadGenerator loadGenerator = new LoadGenerator(CLIENT_PROPERTIES_FILE, SERVER_PROPERTIES_FILE);
+            if (args.length > 1) {
+                loadGenerator.setLevels(args[1], args.length > 2 ? args[2] : null);
+            }
+            loadGenerator.run();
+            return;
+        }
+
+        // replay mode: REPLAY capture-file [ORIGINAL|MAX|speed-up factor]
+        if (args.length > 1 && args[0].equalsIgnoreCase("REPLAY")) {
+            new WorkloadReplay(CLIENT_PROPERTIES_FILE, SERVER_PROPERTIES_FILE, args[1], args.length > 2 ? args[2] : null).run();
+            return;
+        }
+
+        // open-loop mode: OPEN [rate,rate,...|AUTO] [seconds per rate]
+        if (args.length > 0 && args[0].equalsIgnoreCase("OPEN")) {
+            OpenLoopGenerator openLoopGenerator = new OpenLoopGenerator(CLIENT_PROPERTIES_FILE, SERVER_PROPERTIES_FILE);
+            if (args.length > 1) {
+                openLoopGenerator.setRates(args[1], args.length > 2 ? args[2] : null);
+            }
+            openLoopGenerator.run();
+            return;
+        }
+
+        (new TransactionClient(CLIENT_PROPERTIES_FILE, SERVER_PROPERTIES_FILE)).run();
     }
 }
@@ -1,40 +1,53 @@
 package transaction.client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.Connector;
 import transaction.comm.Message;
+import transaction.comm.MessageChannel;
 import transaction.comm.MessageTypes;
+import transaction.comm.SocketMessageChannel;
+import transaction.comm.TransactionScript;
+import transaction.server.lock.AbortCauses;
 import transaction.server.lock.TransactionAbortedException;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-
 
 /**
  * This class represents the proxy that acts on behalf of the transaction server on the client side.
  * It provides an implementation of the coordinator interface to the client, hiding the fact
- * that there is a network in between.
+ * that there is a network in between - or not, when connected to a server embedded in the same process.
  * From the client's perspective, an object of this class IS the transaction.
  * @author wolfdieterotte
  */
 public class TransactionServerProxy implements MessageTypes{
 
-    String host = null;
-    int port;
-
-    private Socket dbConnection = null;
-    private ObjectOutputStream writeToNet = null;
-    private ObjectInputStream readFromNet = null;
+    private Connector connector;
+    private MessageChannel channel = null;
     private Integer transactionID = 0;
 
+    // read-only transactions are routed to a replica, if there are any
+    private boolean readOnly = false;
+    private static InetSocketAddress[] replicas = new InetSocketAddress[0];
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+
+    // replicas that could not be reached or were not in sync, passed over until the time given
+    private static final long REPLICA_AVOID_MILLIS = 1000;
+    private static final ConcurrentHashMap<InetSocketAddress, Long> avoidedReplicas = new ConcurrentHashMap<>();
+
+    // the replica serving this transaction, null if it is the primary
+    private InetSocketAddress replica = null;
+
+    // how far the replica serving this transaction was behind the primary, in milliseconds
+    private long replicationLag = 0;
+
+    // why the transaction aborted, as the server reported it, null while it did not
+    private TransactionAbortedException abort = null;
+
+    // whether to report closing a transaction, the load generator turns it off
+    private static boolean verbose = true;
+
 
     /**
      * Constructor
@@ -42,8 +55,48 @@ public class TransactionServerProxy implements MessageTypes{
      * @param port port number of the transaction server
      */
     TransactionServerProxy(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this.connector = SocketMessageChannel.connector(host, port);
+    }
+
+
+    /**
+     * Constructor
+     * @param host IP address of the transaction server
+     * @param port port number of the transaction server
+     * @param readOnly true if the transaction only reads, so it can be served by a replica
+     */
+    TransactionServerProxy(String host, int port, boolean readOnly) {
+        this(host, port);
+        this.readOnly = readOnly;
+    }
+
+
+    /**
+     * Constructor
+     * @param connector opens the connection to the transaction server, e.g. an embedded server
+     * @param readOnly true if the transaction only reads, so it can be served by a replica
+     */
+    public TransactionServerProxy(Connector connector, boolean readOnly) {
+        this.connector = connector;
+        this.readOnly = readOnly;
+    }
+
+
+    /**
+     * Sets the replicas read-only transactions are spread across, round robin
+     * @param replicaAddresses the replicas, may be empty
+     */
+    static void setReplicas(InetSocketAddress[] replicaAddresses) {
+        replicas = replicaAddresses;
+    }
+
+
+    /**
+     * Sets whether to report each transaction closed
+     * @param verboseClose true to report each transaction closed
+     */
+    static void setVerbose(boolean verboseClose) {
+        verbose = verboseClose;
     }
 
 
@@ -51,37 +104,50 @@ public class TransactionServerProxy implements MessageTypes{
      * Opens a transaction
      * 
      * @return the transaction ID 
+     * @throws transaction.server.lock.TransactionAbortedException if the server is too busy to admit it
+     */
+    public int openTransaction() throws TransactionAbortedException {
+        return openTransaction(-1);
+    }
+
+
+    /**
+     * Opens a transaction restarting one that aborted, servers capping the number of running
+     * transactions admit restarts first
+     * 
+     * @param priorTransactionID ID of the aborted transaction, best its first attempt, -1 if this is no restart
+     * @return the transaction ID 
+     * @throws transaction.server.lock.TransactionAbortedException if the server is too busy to admit it,
+     *         or does not run transactions request by request, INVALID_REQUEST
      */
-    public int openTransaction() {
+    public int openTransaction(int priorTransactionID) throws TransactionAbortedException {
+        Message refusal = null;
+
         try 
         {
             // Clean up any previous connection
-            if (dbConnection != null && !dbConnection.isClosed()) {
-                dbConnection.close();
-            }
-            if (writeToNet != null) {
-                writeToNet.close();
-            }
-            if (readFromNet != null) {
-                readFromNet.close();
+            if (channel != null) {
+                channel.close();
             }
 
-            // make connection to server
-            dbConnection = new Socket(host, port);
-            writeToNet = new ObjectOutputStream(dbConnection.getOutputStream());
-            writeToNet.flush();
-            readFromNet = new ObjectInputStream(dbConnection.getInputStream());
+            // make connection to server, or to a replica if that is good enough
+            channel = connect(readOnly);
 
             // make message
-            Message message = new Message(OPEN_TRANSACTION);
+            Message message = new Message(OPEN_TRANSACTION, priorTransactionID >= 0 ? priorTransactionID : null);
 
             // send message
-            writeToNet.writeObject(message);
+            channel.send(message);
 
             // read response message
-            message = (Message)readFromNet.readObject();
+            message = channel.receive();
 
-            transactionID = (Integer)message.getContent();
+            if (message.getType() == TRANSACTION_BUSY || message.getType() == TRANSACTION_ABORTED) {
+                refusal = message;
+                channel.close();
+            } else {
+                transactionID = (Integer)message.getContent();
+            }
         }
         catch(Exception e)
         {
@@ -89,6 +155,11 @@ public class TransactionServerProxy implements MessageTypes{
             e.printStackTrace();
             System.exit(0);
         }
+
+        if (refusal != null) {
+            abort = aborted(refusal);
+            throw abort;
+        }
         
         return transactionID;
     }
@@ -108,21 +179,27 @@ public class TransactionServerProxy implements MessageTypes{
             Message message = new Message(CLOSE_TRANSACTION, transactionID);
 
             // send message
-            writeToNet.writeObject(message);
+            channel.send(message);
 
             // receive status response
-            message = (Message)readFromNet.readObject();
+            message = channel.receive();
 
             returnStatus = message.getType();
 
-            // close streams
-            writeToNet.close();
-            readFromNet.close();
-            dbConnection.close();
+            // a replica reports its replication lag along with the commit
+            if (message.getContent() instanceof Long) {
+                replicationLag = (Long) message.getContent();
+            }
+            if (returnStatus == TRANSACTION_ABORTED) {
+                abort = aborted(message);
+            }
 
-            Thread.sleep(1000);
+            // close connection
+            channel.close();
 
-            System.out.println("\nTransaction #" + transactionID + " closed connection");
+            if (verbose) {
+                System.out.println("\nTransaction #" + transactionID + " closed connection");
+            }
         }
         catch(Exception e)
         {
@@ -133,7 +210,154 @@ public class TransactionServerProxy implements MessageTypes{
         return returnStatus;
     }
 
+
+    /**
+     * Drops the connection in the middle of the transaction, instead of closing it, so the server
+     * rolls it back
+     */
+    public void abandonTransaction() {
+        try
+        {
+            channel.close();
+        }
+        catch(Exception e)
+        {
+            System.out.println("\n[abandonTransaction] Transaction #" + transactionID + " failed to close streams");
+        }
+    }
+
     
+    /**
+     * Asks the server for a snapshot of its state, without running a transaction
+     * 
+     * @param topN number of most contended accounts to list
+     * @return the snapshot as text
+     */
+    public String getStats(int topN) {
+        String stats = null;
+
+        try
+        {
+            channel = connector.connect();
+
+            channel.send(new Message(STATS_REQUEST, topN));
+            stats = (String) channel.receive().getContent();
+
+            channel.close();
+        }
+        catch(Exception e)
+        {
+            System.out.println("[getStats] Failed: " + e.getMessage());
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * Runs a transaction script on the server, in one round trip: the server runs all of its steps
+     * and commits, or aborts it as a whole. A read-only script can be served by a replica
+     * 
+     * @param script the script
+     * @return the balances read, one per step
+     * @throws transaction.server.lock.TransactionAbortedException if the script aborted, or the server was too busy to admit it
+     */
+    public int[] executeScript(TransactionScript script) throws TransactionAbortedException {
+        Message message = null;
+
+        try
+        {
+            channel = connect(script.isReadOnly());
+
+            channel.send(new Message(EXECUTE_SCRIPT, script));
+            message = channel.receive();
+
+            channel.close();
+        }
+        catch(Exception e)
+        {
+            System.out.println("\n[executeScript] Failed to open streams or send message or receive message: " + e.getMessage());
+        }
+
+        if (message == null || message.getType() != EXECUTE_SCRIPT_RESPONSE) {
+            abort = aborted(message);
+            throw abort;
+        }
+        return (int[]) message.getContent();
+    }
+
+
+    /**
+     * Helper method returning why the transaction aborted, as the server reported it
+     * 
+     * @return the abort, with its cause and how many other transactions were in the way, null if it did not abort
+     */
+    public TransactionAbortedException getAbort() {
+        return abort;
+    }
+
+
+    /**
+     * Helper method connecting to a replica, if it is good enough and the next one in turn is
+     * not passed over, otherwise to the primary
+     */
+    private MessageChannel connect(boolean replicaAllowed) throws IOException {
+        replica = null;
+
+        if (replicaAllowed && replicas.length > 0) {
+            InetSocketAddress candidate = replicas[Math.floorMod(nextReplica.getAndIncrement(), replicas.length)];
+            Long avoidedUntil = avoidedReplicas.get(candidate);
+
+            if (avoidedUntil == null || avoidedUntil < System.currentTimeMillis()) {
+                try {
+                    MessageChannel replicaChannel = SocketMessageChannel.connector(candidate.getHostString(), candidate.getPort()).connect();
+                    replica = candidate;
+                    return replicaChannel;
+                } catch (IOException e) {
+                    avoidReplica(candidate);
+                }
+            }
+        }
+        return connector.connect();
+    }
+
+    /**
+     * Helper method passing over a replica for a while, its transactions go to the primary meanwhile
+     */
+    private static void avoidReplica(InetSocketAddress replica) {
+        avoidedReplicas.put(replica, System.currentTimeMillis() + REPLICA_AVOID_MILLIS);
+    }
+
+    /**
+     * Helper method making the exception for an abort the server reported, the reply holds
+     * the abort cause and how many other transactions were in the way. A replica turning a
+     * read away is not in sync with the primary, so the restart goes elsewhere
+     */
+    private TransactionAbortedException aborted(Message message) {
+        if (message != null && message.getType() == TRANSACTION_BUSY) {
+            return new TransactionAbortedException(AbortCauses.SERVER_BUSY);
+        }
+        if (message != null && message.getContent() instanceof int[]) {
+            int[] content = (int[]) message.getContent();
+            if (content[0] == AbortCauses.READ_ONLY_REPLICA && replica != null) {
+                avoidReplica(replica);
+            }
+            return new TransactionAbortedException(content[0], content[1]);
+        }
+        return new TransactionAbortedException();
+    }
+
+
+    /**
+     * Helper method returning the replication lag reported when this transaction committed on a replica
+     * 
+     * @return the lag in milliseconds, 0 if the transaction ran on the primary
+     */
+    public long getReplicationLag() {
+        return replicationLag;
+    }
+
+
    /**
      * Reading a value from an account
      * 
@@ -150,9 +374,9 @@ public class TransactionServerProxy implements MessageTypes{
         try
         {
             // send message to server and receive response
-            writeToNet.writeObject(message);
+            channel.send(message);
 
-            message = (Message)readFromNet.readObject();
+            message = channel.receive();
         }
         catch(Exception e)
         {
@@ -169,19 +393,16 @@ public class TransactionServerProxy implements MessageTypes{
         {
             try
             {
-                // close streams
-                if (writeToNet != null) writeToNet.close();
-                if (readFromNet != null) readFromNet.close();
-                if (dbConnection != null) dbConnection.close();
-
-                Thread.sleep(1000);
+                // close connection
+                if (channel != null) channel.close();
             }
             catch (Exception e)
             {
                 System.out.println("Failed to close streams in case of abortion");
             }
 
-            throw new TransactionAbortedException();
+            abort = aborted(message);
+            throw abort;
         }
     }
 
@@ -202,8 +423,8 @@ public class TransactionServerProxy implements MessageTypes{
         try
         {
             // send message to server and receive response
-            writeToNet.writeObject(message);
-            message = (Message)readFromNet.readObject();
+            channel.send(message);
+            message = channel.receive();
         }
         catch(Exception e)
         {
@@ -217,19 +438,16 @@ public class TransactionServerProxy implements MessageTypes{
 
             try
             {
-                // close streams
-                if (writeToNet != null) writeToNet.close();
-                if (readFromNet != null) readFromNet.close();
-                if (dbConnection != null) dbConnection.close();
-
-                Thread.sleep(1000);
+                // close connection
+                if (channel != null) channel.close();
             }
             catch (Exception e)
             {
                 System.out.println("Failed to close streams in case of abortion");
             }            
 
-            throw new TransactionAbortedException();
+            abort = aborted(message);
+            throw abort;
         }
     }
 }
@@ -0,0 +1,324 @@
+package transaction.client;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import transaction.comm.Connector;
+import transaction.comm.MessageTypes;
+import transaction.comm.SocketMessageChannel;
+import transaction.comm.TransactionScript;
+import transaction.server.TransactionServer;
+import transaction.server.lock.TransactionAbortedException;
+
+/**
+ * Class [Workload] The mix of transactions the load generators run: transfers between two accounts,
+ * read-only inquiries over several accounts, which are routed to the replicas if there are any, and
+ * multi-account transactions moving money from one account to several others. Accounts are drawn
+ * by an AccountSelector. Configured by the LOAD_* client properties.
+ *
+ * With LOAD_EMBEDDED, the workload starts a server of its own in this process and talks to it
+ * through in-memory channels, measuring the server without the network and serialization.
+ * With LOAD_SCRIPTS, each transaction is sent as one script instead of request by request.
+ * Transactions that did not commit are restarted after the wait the RetryPolicy prescribes.
+ *
+ * @author wolfdieterotte
+ */
+public class Workload implements MessageTypes {
+
+    // transaction types
+    static final int TRANSFER = 0;
+    static final int READ_ONLY = 1;
+    static final int MULTI_ACCOUNT = 2;
+
+    final String host;
+    final int port;
+    final int numberAccounts;
+    final int initialBalance;
+
+    // opens the connections, to the server over the network or to the embedded one
+    private final Connector connector;
+    private TransactionServer embeddedServer = null;
+
+    private final int[] mix;
+    private final int multiAccounts;
+    private final AccountSelector accountSelector;
+
+    // true to send each transaction as a script, in one round trip
+    private final boolean scripts;
+
+    // how long to wait before restarting a transaction
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * One transaction of the mix, reused by a session from one transaction to the next
+     */
+    class Task {
+        int type;
+        int amount;
+        int[] accounts;
+
+        // the first attempt, once one aborted, so the server admits the restart first and lets it
+        // keep its age under wait-die
+        int priorTransactionID = -1;
+
+        // attempts made so far, and why the last one aborted
+        int attempts = 0;
+        TransactionAbortedException abort = null;
+
+        private final int[] transferAccounts = new int[2];
+        private final int[] multiAccountAccounts = new int[multiAccounts];
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serverProperties the server's properties, for host, port and accounts
+     * @param clientProperties the client's properties, for the LOAD_* settings
+     * @throws IllegalArgumentException if the configuration makes no sense
+     */
+    Workload(Properties serverProperties, Properties clientProperties) {
+        host = serverProperties.getProperty("HOST");
+        port = Integer.parseInt(serverProperties.getProperty("PORT"));
+        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS"));
+        initialBalance = Integer.parseInt(serverProperties.getProperty("INITIAL_BALANCE"));
+
+        mix = parseInts(clientProperties.getProperty("LOAD_MIX", "80,15,5"));
+        multiAccounts = Math.max(2, Integer.parseInt(clientProperties.getProperty("LOAD_MULTI_ACCOUNTS", "4").trim()));
+
+        accountSelector = new AccountSelector(clientProperties.getProperty("LOAD_DISTRIBUTION", AccountSelector.UNIFORM),
+                numberAccounts,
+                Double.parseDouble(clientProperties.getProperty("LOAD_ZIPF_THETA", "0.99")),
+                Double.parseDouble(clientProperties.getProperty("LOAD_HOT_FRACTION", "0.01")),
+                Double.parseDouble(clientProperties.getProperty("LOAD_HOT_PROBABILITY", "0.9")));
+
+        scripts = Boolean.parseBoolean(clientProperties.getProperty("LOAD_SCRIPTS", "false").trim());
+
+        if (mix.length != 3 || numberAccounts < multiAccounts) {
+            throw new IllegalArgumentException("LOAD_MIX needs three weights, NUMBER_ACCOUNTS at least LOAD_MULTI_ACCOUNTS");
+        }
+
+
+        if (Boolean.parseBoolean(clientProperties.getProperty("LOAD_EMBEDDED", "false").trim())) {
+            if (!scripts && "PARTITIONED".equalsIgnoreCase(serverProperties.getProperty("EXECUTION_MODE", "").trim())) {
+                throw new IllegalArgumentException("EXECUTION_MODE = PARTITIONED only runs scripts, set LOAD_SCRIPTS = true");
+            }
+            embeddedServer = TransactionServer.embedded(serverProperties);
+            connector = embeddedServer;
+        } else {
+            connector = SocketMessageChannel.connector(host, port);
+        }
+
+        retryPolicy = new RetryPolicy(clientProperties);
+        TransactionServerProxy.setVerbose(false);
+    }
+
+    /**
+     * Helper method returning what opens the connections, to the server or to the embedded one
+     *
+     * @return the connector
+     */
+    Connector getConnector() {
+        return connector;
+    }
+
+    String getServerDescription() {
+        return embeddedServer != null ? "embedded server" : host + ":" + port;
+    }
+
+    public String getDescription() {
+        return getServerDescription() + ", " + numberAccounts + " accounts, " + accountSelector.getDescription()
+                + ", mix transfer/read-only/multi-account " + mix[TRANSFER] + "/" + mix[READ_ONLY] + "/" + mix[MULTI_ACCOUNT]
+                + (scripts ? ", as scripts" : "") + ", retry " + retryPolicy.getDescription();
+    }
+
+    /**
+     * Draws the next transaction of the mix
+     *
+     * @param task the task to fill in
+     */
+    void next(Task task) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int draw = random.nextInt(mix[TRANSFER] + mix[READ_ONLY] + mix[MULTI_ACCOUNT]);
+
+        if (draw < mix[TRANSFER]) {
+            task.type = TRANSFER;
+        } else {
+            task.type = draw < mix[TRANSFER] + mix[READ_ONLY] ? READ_ONLY : MULTI_ACCOUNT;
+        }
+        task.accounts = task.type == TRANSFER ? task.transferAccounts : task.multiAccountAccounts;
+        task.amount = 1 + random.nextInt(Math.max(1, initialBalance));
+        accountSelector.next(task.accounts);
+        task.priorTransactionID = -1;
+        task.attempts = 0;
+        task.abort = null;
+    }
+
+    /**
+     * Runs one attempt of a transaction. A server refusing the transaction as such refuses all of
+     * them, so the load cannot run at all, and the process ends
+     *
+     * @param task the transaction
+     * @return true if it committed
+     */
+    boolean attempt(Task task) {
+        task.attempts++;
+        boolean committed = scripts ? attemptScript(task) : attemptOperations(task);
+        if (committed) {
+            retryPolicy.recordCommit(task.attempts);
+        } else if (!RetryPolicy.isRetriable(task.abort)) {
+            System.out.println("[Workload.attempt] Server refused the transaction, "
+                    + TransactionAbortedException.getAbortCauseString(task.abort.getAbortCause())
+                    + ": accounts or LOAD_SCRIPTS do not match the server, a PARTITIONED server only runs scripts");
+            System.exit(1);
+        }
+        return committed;
+    }
+
+    /**
+     * Waits as long as the retry policy says before restarting a transaction that did not commit
+     *
+     * @param task the transaction
+     */
+    void backOff(Task task) {
+        retryPolicy.backOff(task.attempts, task.abort);
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Runs one attempt of a transaction request by request
+     *
+     * @param task the transaction
+     * @return true if it committed
+     */
+    private boolean attemptOperations(Task task) {
+        int[] accounts = task.accounts;
+        TransactionServerProxy transaction = new TransactionServerProxy(connector, task.type == READ_ONLY);
+        int transactionID;
+
+        try {
+            transactionID = transaction.openTransaction(task.priorTransactionID);
+        } catch (TransactionAbortedException e) {
+            // turned away by a busy server, not counted as a restart, or refused
+            task.abort = e;
+            return false;
+        }
+
+        try {
+            switch (task.type) {
+                case TRANSFER:
+                    transaction.write(accounts[0], transaction.read(accounts[0]) - task.amount);
+                    transaction.write(accounts[1], transaction.read(accounts[1]) + task.amount);
+                    break;
+
+                case READ_ONLY:
+                    for (int account : accounts) {
+                        transaction.read(account);
+                    }
+                    break;
+
+                case MULTI_ACCOUNT:
+                    // the first account pays the same amount to each of the others
+                    transaction.write(accounts[0], transaction.read(accounts[0]) - task.amount * (accounts.length - 1));
+                    for (int i = 1; i < accounts.length; i++) {
+                        transaction.write(accounts[i], transaction.read(accounts[i]) + task.amount);
+                    }
+                    break;
+            }
+        } catch (TransactionAbortedException e) {
+            task.abort = e;
+            restarted(task, transactionID);
+            return false;
+        }
+
+        if (transaction.closeTransaction() != TRANSACTION_COMMITTED) {
+            task.abort = transaction.getAbort();
+            restarted(task, transactionID);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs one attempt of a transaction as a script
+     *
+     * @param task the transaction
+     * @return true if it committed
+     */
+    private boolean attemptScript(Task task) {
+        int[] accounts = task.accounts;
+        TransactionScript script;
+
+        switch (task.type) {
+            case TRANSFER:
+                script = TransactionScript.transfer(accounts[0], accounts[1], task.amount);
+                break;
+
+            case READ_ONLY:
+                script = TransactionScript.read(accounts);
+                break;
+
+            default:
+                // the first account pays the same amount to each of the others
+                int[] amounts = new int[accounts.length];
+                amounts[0] = -task.amount * (accounts.length - 1);
+                for (int i = 1; i < accounts.length; i++) {
+                    amounts[i] = task.amount;
+                }
+                script = new TransactionScript(accounts.clone(), amounts);
+        }
+
+        try {
+            new TransactionServerProxy(connector, task.type == READ_ONLY).executeScript(script);
+            return true;
+        } catch (TransactionAbortedException e) {
+            task.abort = e;
+            return false;
+        }
+    }
+
+    /**
+     * Helper method remembering the first attempt of a transaction that aborted
+     */
+    private static void restarted(Task task, int transactionID) {
+        if (task.priorTransactionID < 0) {
+            task.priorTransactionID = transactionID;
+        }
+    }
+
+    /**
+     * Shuts down the embedded server, if there is one, so its capture and history files are complete
+     */
+    void close() {
+        if (embeddedServer != null) {
+            embeddedServer.shutDown();
+        }
+    }
+
+    /**
+     * Helper method sleeping until a point in time
+     *
+     * @param deadline the point in time, as System.nanoTime()
+     */
+    static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    static int[] parseInts(String list) {
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+
+        for (int i = 0; i < items.length; i++) {
+            values[i] = Integer.parseInt(items[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,345 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.CaptureFile;
+import transaction.comm.Connector;
+import transaction.comm.MessageTypes;
+import transaction.comm.TransactionScript;
+import transaction.server.lock.TransactionAbortedException;
+import utils.Histogram;
+import utils.PropertyHandler;
+
+/**
+ * Class [WorkloadReplay] Replays a request stream a server captured (see CAPTURE_FILE) against a
+ * server, and compares throughput, aborts and latency with the original run.
+ *
+ * Each captured connection is replayed as it came in: the same requests in the same order, scripts
+ * with the captured steps, and writes adding the captured amount to the balance the replay read,
+ * so the same money moves and the branch total holds, whatever the balances are. Captures before
+ * version 3 hold the balances written, which are written as they are. At ORIGINAL speed, requests
+ * go out at the times they were captured, a number speeds that up by the factor, and MAX sends
+ * them as fast as the server takes them. A pool of connections takes the captured connections in
+ * order of their start.
+ *
+ * A transaction aborted in the replay is not restarted: the restarts of the original run are
+ * connections of their own in the capture, and they are replayed as such. A transaction the
+ * original run aborted, but the replay got through, ends after its last captured request with
+ * the connection dropped, so the server rolls back the part of it the capture holds, rather than
+ * commit half a transfer.
+ *
+ * @author wolfdieterotte
+ */
+public class WorkloadReplay implements MessageTypes {
+
+    public static final String ORIGINAL = "ORIGINAL";
+    public static final String MAX = "MAX";
+
+    private Workload workload;
+    private String fileName;
+    private double speed;
+    private int connections;
+
+    // the captured transactions, in order of their start
+    private ArrayList<CapturedTransaction> transactions = new ArrayList<>();
+    private long captureStartMillis;
+
+    // whether the capture holds the balances written rather than the amounts added
+    private boolean absoluteWrites;
+
+    /**
+     * The requests captured on one connection, and how the original run ended it
+     */
+    private static class CapturedTransaction {
+        int size = 0;
+        int[] types = new int[8];
+        long[] times = new long[8];
+        int[] accounts = new int[8];
+        int[] amounts = new int[8];
+        TransactionScript[] scripts = new TransactionScript[8];
+
+        // TRANSACTION_COMMITTED, TRANSACTION_ABORTED, or 0 if the capture does not tell
+        int outcome = 0;
+        long outcomeTime;
+
+        void add(CaptureFile.Record record) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+                accounts = Arrays.copyOf(accounts, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+                scripts = Arrays.copyOf(scripts, size * 2);
+            }
+            types[size] = record.type;
+            times[size] = record.time;
+            accounts[size] = record.account;
+            amounts[size] = record.amount;
+            scripts[size] = record.type == EXECUTE_SCRIPT ? record.script : null;
+            size++;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clientPropertiesFile Containing properties on the client side
+     * @param serverPropertiesFile Containing properties on the server side
+     * @param fileName the capture file
+     * @param speedSetting ORIGINAL, MAX, or a factor to speed the original up by; null for REPLAY_SPEED
+     */
+    public WorkloadReplay(String clientPropertiesFile, String serverPropertiesFile, String fileName, String speedSetting) {
+        try {
+            Properties clientProperties = new PropertyHandler(clientPropertiesFile);
+            workload = new Workload(new PropertyHandler(serverPropertiesFile), clientProperties);
+
+            this.fileName = fileName;
+            speed = parseSpeed(speedSetting != null ? speedSetting : clientProperties.getProperty("REPLAY_SPEED", ORIGINAL));
+            connections = Integer.parseInt(clientProperties.getProperty("REPLAY_CONNECTIONS", "256").trim());
+
+            load();
+        } catch (IOException | IllegalArgumentException ex) {
+            System.out.println("[WorkloadReplay.WorkloadReplay] Cannot replay: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Helper method turning the speed setting into a factor, 0 standing for MAX
+     */
+    private static double parseSpeed(String speedSetting) {
+        switch (speedSetting.trim().toUpperCase()) {
+            case ORIGINAL:
+                return 1;
+            case MAX:
+                return 0;
+            default:
+                double factor = Double.parseDouble(speedSetting.trim());
+                if (factor <= 0) {
+                    throw new IllegalArgumentException("Speed must be ORIGINAL, MAX or a positive factor");
+                }
+                return factor;
+        }
+    }
+
+    /**
+     * Reads the capture file and sorts the records by connection
+     */
+    private void load() throws IOException {
+        HashMap<Integer, CapturedTransaction> byConnection = new HashMap<>();
+        CaptureFile captureFile = CaptureFile.open(fileName);
+        CaptureFile.Record record = new CaptureFile.Record();
+
+        try {
+            captureStartMillis = captureFile.getStartMillis();
+            absoluteWrites = captureFile.hasAbsoluteWrites();
+            while (captureFile.read(record)) {
+                CapturedTransaction transaction = byConnection.get(record.connection);
+
+                if (transaction == null) {
+                    // a connection caught in the middle when the capture started cannot be replayed
+                    if (record.type != OPEN_TRANSACTION && record.type != EXECUTE_SCRIPT) {
+                        continue;
+                    }
+                    transaction = new CapturedTransaction();
+                    byConnection.put(record.connection, transaction);
+                    transactions.add(transaction);
+                }
+
+                if (record.type == TRANSACTION_COMMITTED || record.type == TRANSACTION_ABORTED) {
+                    transaction.outcome = record.type;
+                    transaction.outcomeTime = record.time;
+                } else {
+                    transaction.add(record);
+                }
+            }
+        } finally {
+            captureFile.close();
+        }
+    }
+
+    /**
+     * Replays the capture and prints original and replay side by side
+     */
+    public void run() {
+        ArrayList<Player> players = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        AtomicInteger next = new AtomicInteger();
+
+        System.out.println("REPLAY \"" + fileName + "\" captured " + new Date(captureStartMillis) + ", " + transactions.size()
+                + " transactions against " + workload.getServerDescription() + " at "
+                + (speed == 0 ? MAX : speed == 1 ? ORIGINAL : speed + "x") + " speed, " + connections + " connections");
+
+        long start = System.nanoTime() + 10_000_000L;
+        for (int i = 0; i < connections; i++) {
+            Player player = new Player(next, start);
+            Thread thread = new Thread(player, "Replay-" + i);
+            players.add(player);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Histogram latency = new Histogram();
+        long commits = 0;
+        long aborts = 0;
+        long committedThenAborted = 0;
+        long abortedThenCommitted = 0;
+        long abortedThenRolledBack = 0;
+        long end = start;
+
+        for (int i = 0; i < connections; i++) {
+            try {
+                threads.get(i).join();
+            } catch (InterruptedException e) {
+                // just go on
+            }
+            Player player = players.get(i);
+            latency.add(player.latency);
+            commits += player.commits;
+            aborts += player.aborts;
+            committedThenAborted += player.committedThenAborted;
+            abortedThenCommitted += player.abortedThenCommitted;
+            abortedThenRolledBack += player.abortedThenRolledBack;
+            end = Math.max(end, player.end);
+        }
+
+        // the original run, as far as the capture tells
+        Histogram originalLatency = new Histogram();
+        long originalCommits = 0;
+        long originalAborts = 0;
+        long originalStart = transactions.isEmpty() ? 0 : transactions.get(0).times[0];
+        long originalEnd = originalStart;
+
+        for (CapturedTransaction transaction : transactions) {
+            if (transaction.outcome == TRANSACTION_COMMITTED) {
+                originalCommits++;
+                originalLatency.record((transaction.outcomeTime - transaction.times[0]) * 1000);
+            } else if (transaction.outcome == TRANSACTION_ABORTED) {
+                originalAborts++;
+            }
+            originalEnd = Math.max(originalEnd, Math.max(transaction.outcomeTime, transaction.times[transaction.size - 1]));
+        }
+
+        double originalSeconds = Math.max(1e-6, (originalEnd - originalStart) / 1e6);
+        double replaySeconds = Math.max(1e-6, (end - start) / 1e9);
+
+        System.out.println(String.format("\n%-14s %12s %12s", "", "original", "replay"));
+        System.out.println(String.format("%-14s %12.2f %12.2f", "duration s", originalSeconds, replaySeconds));
+        System.out.println(String.format("%-14s %12d %12d", "commits", originalCommits, commits));
+        System.out.println(String.format("%-14s %12d %12d", "aborts", originalAborts, aborts));
+        System.out.println(String.format("%-14s %12.1f %12.1f", "commits/s", originalCommits / originalSeconds, commits / replaySeconds));
+        System.out.println(String.format("%-14s %12.1f %12.1f", "abort%", percent(originalAborts, originalCommits + originalAborts),
+                percent(aborts, commits + aborts)));
+        System.out.println(String.format("%-14s %12.2f %12.2f", "p50 ms", originalLatency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(50) / 1e6));
+        System.out.println(String.format("%-14s %12.2f %12.2f", "p99 ms", originalLatency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99) / 1e6));
+        System.out.println(String.format("%-14s %12.2f %12.2f", "max ms", originalLatency.getMax() / 1e6, latency.getMax() / 1e6));
+        System.out.println("\ncommitted originally, aborted in the replay: " + committedThenAborted);
+        System.out.println("aborted originally, committed in the replay: " + abortedThenCommitted);
+        System.out.println("aborted originally, got through and rolled back in the replay: " + abortedThenRolledBack);
+
+        workload.close();
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0.0 : 100.0 * part / whole;
+    }
+
+    /**
+     * One connection of the pool, replaying the next captured transaction until there are no more.
+     * Only read after its thread has been joined
+     */
+    private class Player implements Runnable {
+
+        private final AtomicInteger next;
+        private final long start;
+
+        final Histogram latency = new Histogram();
+        long commits = 0;
+        long aborts = 0;
+        long committedThenAborted = 0;
+        long abortedThenCommitted = 0;
+        long abortedThenRolledBack = 0;
+        long end = 0;
+
+        Player(AtomicInteger next, long start) {
+            this.next = next;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            Connector connector = workload.getConnector();
+            long captureStart = transactions.isEmpty() ? 0 : transactions.get(0).times[0];
+            // the balances this transaction read, by account, the writes add to them
+            HashMap<Integer, Integer> lastReads = new HashMap<>();
+            int index;
+
+            while ((index = next.getAndIncrement()) < transactions.size()) {
+                CapturedTransaction captured = transactions.get(index);
+                TransactionServerProxy transaction = new TransactionServerProxy(connector, false);
+                long transactionStart = 0;
+                boolean open = false;
+                int outcome = 0;
+                lastReads.clear();
+
+                try {
+                    for (int i = 0; i < captured.size; i++) {
+                        if (speed > 0) {
+                            Workload.sleepUntil(start + (long) ((captured.times[i] - captureStart) * 1000 / speed));
+                        }
+
+                        switch (captured.types[i]) {
+                            case OPEN_TRANSACTION:
+                                transactionStart = System.nanoTime();
+                                transaction.openTransaction();
+                                open = true;
+                                break;
+                            case READ_REQUEST:
+                                lastReads.put(captured.accounts[i], transaction.read(captured.accounts[i]));
+                                break;
+                            case WRITE_REQUEST:
+                                transaction.write(captured.accounts[i], absoluteWrites ? captured.amounts[i]
+                                        : lastReads.getOrDefault(captured.accounts[i], 0) + captured.amounts[i]);
+                                break;
+                            case CLOSE_TRANSACTION:
+                                outcome = transaction.closeTransaction();
+                                open = false;
+                                break;
+                            case EXECUTE_SCRIPT:
+                                transactionStart = System.nanoTime();
+                                transaction.executeScript(captured.scripts[i]);
+                                outcome = TRANSACTION_COMMITTED;
+                                break;
+                        }
+                    }
+
+                    // the original run aborted it here, committing what it did so far would move money
+                    // half way, so it is rolled back; one the original run never closed is committed
+                    if (open && captured.outcome == TRANSACTION_ABORTED) {
+                        transaction.abandonTransaction();
+                        abortedThenRolledBack++;
+                        outcome = TRANSACTION_ABORTED;
+                    } else if (open) {
+                        outcome = transaction.closeTransaction();
+                    }
+                } catch (TransactionAbortedException e) {
+                    outcome = TRANSACTION_ABORTED;
+                }
+
+                end = System.nanoTime();
+                if (outcome == TRANSACTION_COMMITTED) {
+                    commits++;
+                    latency.record(end - transactionStart);
+                    abortedThenCommitted += captured.outcome == TRANSACTION_ABORTED ? 1 : 0;
+                } else if (outcome == TRANSACTION_ABORTED) {
+                    aborts++;
+                    committedThenAborted += captured.outcome == TRANSACTION_COMMITTED ? 1 : 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package transaction.comm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Class [CaptureFile] Binary file holding a captured request stream: the requests clients sent,
+ * connection by connection, with the time they came in, and how each transaction ended.
+ * The server writes it, the client replays it.
+ *
+ * Layout: magic number, version, wall clock time the capture started, then one record after the
+ * other: type, connection, microseconds since the previous record, the account for reads, account
+ * and amount for writes, the number of steps and each step's account and amount for scripts.
+ * Numbers are variable-length, so a typical record takes 4 to 8 bytes.
+ *
+ * The amount of a write is added to the balance the connection last read from the account, or to
+ * 0 if it did not read it. Files before version 3 hold the balance written instead, see
+ * hasAbsoluteWrites().
+ *
+ * Record types are the message types OPEN_TRANSACTION, READ_REQUEST, WRITE_REQUEST,
+ * CLOSE_TRANSACTION and EXECUTE_SCRIPT for requests, TRANSACTION_COMMITTED and TRANSACTION_ABORTED
+ * for outcomes. Files of version 1 hold no scripts, and are read all the same.
+ *
+ * @author wolfdieterotte
+ */
+public class CaptureFile implements MessageTypes
+{
+
+    private static final int MAGIC = 0x54584350;
+    private static final int VERSION = 3;
+
+    /**
+     * One record as read back, reused from one record to the next
+     */
+    public static class Record
+    {
+        public int type;
+        public int connection;
+        // microseconds since the capture started
+        public long time;
+        public int account;
+        // for writes, the amount added to the balance last read
+        public int amount;
+        // for scripts only
+        public TransactionScript script;
+    }
+
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+
+    private int version = VERSION;
+    private long startMillis;
+    private long lastTime = 0;
+
+    private CaptureFile()
+    {
+    }
+
+    /**
+     * Creates a capture file, overwriting an existing one
+     *
+     * @param fileName the file
+     * @return the capture file, to write to
+     * @throws IOException if the file cannot be created
+     */
+    public static CaptureFile create(String fileName) throws IOException
+    {
+        CaptureFile captureFile = new CaptureFile();
+
+        captureFile.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+        captureFile.startMillis = System.currentTimeMillis();
+        captureFile.out.writeInt(MAGIC);
+        captureFile.out.writeInt(VERSION);
+        captureFile.out.writeLong(captureFile.startMillis);
+        return captureFile;
+    }
+
+    /**
+     * Opens a capture file
+     *
+     * @param fileName the file
+     * @return the capture file, to read from
+     * @throws IOException if the file cannot be read or is no capture file
+     */
+    public static CaptureFile open(String fileName) throws IOException
+    {
+        CaptureFile captureFile = new CaptureFile();
+
+        captureFile.in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 65536));
+        if (captureFile.in.readInt() != MAGIC || (captureFile.version = captureFile.in.readInt()) < 1 || captureFile.version > VERSION)
+        {
+            captureFile.close();
+            throw new IOException("\"" + fileName + "\" is no capture file of version " + VERSION);
+        }
+        captureFile.startMillis = captureFile.in.readLong();
+        return captureFile;
+    }
+
+    /**
+     * Helper method returning the wall clock time the capture started
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getStartMillis()
+    {
+        return startMillis;
+    }
+
+    /**
+     * Helper method telling whether the file holds the balances written rather than the amounts
+     * added, as files before version 3 do
+     *
+     * @return true if the writes are balances
+     */
+    public boolean hasAbsoluteWrites()
+    {
+        return version < 3;
+    }
+
+    /**
+     * Appends a record, records must come in the order of their times
+     *
+     * @param type the record type
+     * @param connection the connection the request came in on
+     * @param time microseconds since the capture started
+     * @param account the account, for reads and writes
+     * @param amount the amount added to the balance last read, for writes
+     * @throws IOException if writing fails
+     */
+    public void write(int type, int connection, long time, int account, int amount) throws IOException
+    {
+        out.writeByte(type);
+        writeVarLong(connection);
+        writeVarLong(time - lastTime);
+        lastTime = time;
+
+        if (type == READ_REQUEST || type == WRITE_REQUEST)
+        {
+            writeVarLong(account);
+        }
+        if (type == WRITE_REQUEST)
+        {
+            writeVarLong(zigzag(amount));
+        }
+    }
+
+    /**
+     * Appends a script, records must come in the order of their times
+     *
+     * @param connection the connection the script came in on
+     * @param time microseconds since the capture started
+     * @param script the script
+     * @throws IOException if writing fails
+     */
+    public void writeScript(int connection, long time, TransactionScript script) throws IOException
+    {
+        write(EXECUTE_SCRIPT, connection, time, 0, 0);
+
+        writeVarLong(script.size());
+        for (int step = 0; step < script.size(); step++)
+        {
+            writeVarLong(script.getAccount(step));
+            writeVarLong(zigzag(script.getAmount(step)));
+        }
+    }
+
+    /**
+     * Reads the next record
+     *
+     * @param record the record to fill in
+     * @return false at the end of the file
+     * @throws IOException if reading fails or the file is cut off in the middle of a record
+     */
+    public boolean read(Record record) throws IOException
+    {
+        int type = in.read();
+        if (type < 0)
+        {
+            return false;
+        }
+
+        record.type = type;
+        record.connection = (int) readVarLong();
+        lastTime += readVarLong();
+        record.time = lastTime;
+
+        if (type == READ_REQUEST || type == WRITE_REQUEST)
+        {
+            record.account = (int) readVarLong();
+        }
+        if (type == WRITE_REQUEST)
+        {
+            record.amount = unzigzag((int) readVarLong());
+        }
+        if (type == EXECUTE_SCRIPT)
+        {
+            int[] accounts = new int[(int) readVarLong()];
+            int[] amounts = new int[accounts.length];
+            for (int step = 0; step < accounts.length; step++)
+            {
+                accounts[step] = (int) readVarLong();
+                amounts[step] = unzigzag((int) readVarLong());
+            }
+            record.script = new TransactionScript(accounts, amounts);
+        }
+        return true;
+    }
+
+    public void flush() throws IOException
+    {
+        if (out != null)
+        {
+            out.flush();
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            if (out != null) out.close();
+            if (in != null) in.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to do about it
+        }
+    }
+
+    /**
+     * Helper method folding the sign into the lowest bit, so small negative numbers stay short
+     */
+    private static long zigzag(int value)
+    {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(int zigzag)
+    {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Helper method writing a non-negative number, seven bits a byte, the high bit telling more follow
+     */
+    private void writeVarLong(long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private long readVarLong() throws IOException
+    {
+        long value = 0;
+        int shift = 0;
+        int next;
+
+        do
+        {
+            next = in.read();
+            if (next < 0)
+            {
+                throw new EOFException("Capture file ends in the middle of a record");
+            }
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((next & 0x80) != 0);
+
+        return value;
+    }
+}
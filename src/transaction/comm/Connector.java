@@ -0,0 +1,20 @@
+package transaction.comm;
+
+import java.io.IOException;
+
+/**
+ * Interface [Connector] Opens channels to a transaction server, over the network or in-process.
+ * 
+ * @author wolfdieterotte
+ */
+public interface Connector 
+{
+    
+    /**
+     * Opens a new channel to the server
+     * 
+     * @return the channel, already opened
+     * @throws IOException if the server cannot be reached
+     */
+    public MessageChannel connect() throws IOException;
+}
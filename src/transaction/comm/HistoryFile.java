@@ -0,0 +1,265 @@
+package transaction.comm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Class [HistoryFile] Binary file holding the history of the committed transactions, in commit
+ * order, for a checker to verify. For each transaction, the accounts it read with the version
+ * and balance read, and the accounts it wrote with the version created and the balance written.
+ * Versions count the committed writes of an account, starting from 0 for the initial balance.
+ *
+ * Layout: magic number, version, number of accounts, initial balance, then one transaction after
+ * the other: transaction ID, number of operations, and per operation its type (READ_REQUEST or
+ * WRITE_REQUEST), account, version and balance. Numbers are variable-length.
+ *
+ * The file can be a named pipe, so a checker can follow a running server.
+ *
+ * @author wolfdieterotte
+ */
+public class HistoryFile implements MessageTypes
+{
+
+    private static final int MAGIC = 0x54584853;
+    private static final int VERSION = 1;
+
+    /**
+     * One committed transaction as read back, reused from one transaction to the next
+     */
+    public static class Entry
+    {
+        public int transactionID;
+        public int size;
+        public int[] types = new int[8];
+        public int[] accounts = new int[8];
+        public long[] versions = new long[8];
+        public int[] balances = new int[8];
+    }
+
+    private DataOutputStream out = null;
+
+    // reading parses straight out of a buffer of our own, which is a lot faster than a DataInputStream
+    private InputStream in = null;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position = 0;
+    private int limit = 0;
+
+    private int numberAccounts;
+    private int initialBalance;
+
+    private HistoryFile()
+    {
+    }
+
+    /**
+     * Creates a history file, overwriting an existing one
+     *
+     * @param fileName the file
+     * @param numberAccounts number of accounts on the server
+     * @param initialBalance their initial balance
+     * @return the history file, to write to
+     * @throws IOException if the file cannot be created
+     */
+    public static HistoryFile create(String fileName, int numberAccounts, int initialBalance) throws IOException
+    {
+        HistoryFile historyFile = new HistoryFile();
+
+        historyFile.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        historyFile.numberAccounts = numberAccounts;
+        historyFile.initialBalance = initialBalance;
+        historyFile.out.writeInt(MAGIC);
+        historyFile.out.writeInt(VERSION);
+        historyFile.out.writeInt(numberAccounts);
+        historyFile.out.writeInt(initialBalance);
+        return historyFile;
+    }
+
+    /**
+     * Opens a history file
+     *
+     * @param fileName the file
+     * @return the history file, to read from
+     * @throws IOException if the file cannot be read or is no history file
+     */
+    public static HistoryFile open(String fileName) throws IOException
+    {
+        HistoryFile historyFile = new HistoryFile();
+
+        historyFile.in = new FileInputStream(fileName);
+        if (historyFile.readInt() != MAGIC || historyFile.readInt() != VERSION)
+        {
+            historyFile.close();
+            throw new IOException("\"" + fileName + "\" is no history file of version " + VERSION);
+        }
+        historyFile.numberAccounts = historyFile.readInt();
+        historyFile.initialBalance = historyFile.readInt();
+        return historyFile;
+    }
+
+    public int getNumberAccounts()
+    {
+        return numberAccounts;
+    }
+
+    public int getInitialBalance()
+    {
+        return initialBalance;
+    }
+
+    /**
+     * Starts a transaction, to be followed by its operations
+     *
+     * @param transactionID the transaction
+     * @param operations the number of operations following
+     * @throws IOException if writing fails
+     */
+    public void writeTransaction(int transactionID, int operations) throws IOException
+    {
+        writeVarLong(transactionID);
+        writeVarLong(operations);
+    }
+
+    /**
+     * Writes an operation of the transaction started last
+     *
+     * @param type READ_REQUEST or WRITE_REQUEST
+     * @param account the account
+     * @param version the version read or created
+     * @param balance the balance read or written
+     * @throws IOException if writing fails
+     */
+    public void writeOperation(int type, int account, long version, int balance) throws IOException
+    {
+        out.writeByte(type);
+        writeVarLong(account);
+        writeVarLong(version);
+        // zigzag, so small negative balances stay short
+        writeVarLong((balance << 1) ^ (balance >> 31));
+    }
+
+    /**
+     * Reads the next transaction
+     *
+     * @param entry the entry to fill in
+     * @return false at the end of the file
+     * @throws IOException if reading fails or the file is cut off in the middle of a transaction
+     */
+    public boolean read(Entry entry) throws IOException
+    {
+        if (position == limit && !fill())
+        {
+            return false;
+        }
+
+        entry.transactionID = (int) readVarLong();
+        entry.size = (int) readVarLong();
+        if (entry.size > entry.types.length)
+        {
+            int capacity = Math.max(entry.size, entry.types.length * 2);
+            entry.types = Arrays.copyOf(entry.types, capacity);
+            entry.accounts = Arrays.copyOf(entry.accounts, capacity);
+            entry.versions = Arrays.copyOf(entry.versions, capacity);
+            entry.balances = Arrays.copyOf(entry.balances, capacity);
+        }
+
+        for (int i = 0; i < entry.size; i++)
+        {
+            entry.types[i] = readByte();
+            entry.accounts[i] = (int) readVarLong();
+            entry.versions[i] = readVarLong();
+            int zigzag = (int) readVarLong();
+            entry.balances[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        return true;
+    }
+
+    public void flush() throws IOException
+    {
+        if (out != null)
+        {
+            out.flush();
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            if (out != null) out.close();
+            if (in != null) in.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to do about it
+        }
+    }
+
+    /**
+     * Helper method writing a non-negative number, seven bits a byte, the high bit telling more follow
+     */
+    private void writeVarLong(long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private long readVarLong() throws IOException
+    {
+        long value = 0;
+        int shift = 0;
+        int next;
+
+        do
+        {
+            next = readByte();
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((next & 0x80) != 0);
+
+        return value;
+    }
+
+    private int readInt() throws IOException
+    {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private int readByte() throws IOException
+    {
+        if (position == limit && !fill())
+        {
+            throw new EOFException("History file ends in the middle of a transaction");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * Helper method refilling the buffer, blocks on a pipe until the writer has more
+     *
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException
+    {
+        int read;
+        do
+        {
+            read = in.read(buffer, 0, buffer.length);
+        }
+        while (read == 0);
+
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+}
@@ -0,0 +1,107 @@
+package transaction.comm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class [LocalMessageChannel] Channel handing Messages to the other side in the same process,
+ * without serializing them. Channels come in connected pairs, one for each side.
+ * 
+ * @author wolfdieterotte
+ */
+public class LocalMessageChannel implements MessageChannel 
+{
+
+    // put behind the last message when a side closes
+    private static final Message CLOSED = new Message(-1);
+
+    private final LinkedBlockingQueue<Message> incoming;
+    private final LinkedBlockingQueue<Message> outgoing;
+    private volatile boolean closed = false;
+    private int receiveTimeoutMillis = 0;
+
+    private LocalMessageChannel(LinkedBlockingQueue<Message> incoming, LinkedBlockingQueue<Message> outgoing) 
+    {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    /**
+     * Creates two connected channels, what is sent on one is received on the other
+     * 
+     * @return the two channels
+     */
+    public static LocalMessageChannel[] createPair() 
+    {
+        LinkedBlockingQueue<Message> clientToServer = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<Message> serverToClient = new LinkedBlockingQueue<>();
+
+        return new LocalMessageChannel[]{
+            new LocalMessageChannel(serverToClient, clientToServer), 
+            new LocalMessageChannel(clientToServer, serverToClient)
+        };
+    }
+
+    @Override
+    public void open() 
+    {
+        // nothing to set up
+    }
+
+    @Override
+    public void send(Message message) throws IOException 
+    {
+        if (closed) 
+        {
+            throw new IOException("Channel closed");
+        }
+        outgoing.add(message);
+    }
+
+    @Override
+    public Message receive() throws IOException 
+    {
+        Message message;
+        try 
+        {
+            message = receiveTimeoutMillis > 0 ? incoming.poll(receiveTimeoutMillis, TimeUnit.MILLISECONDS) : incoming.take();
+        } 
+        catch (InterruptedException e) 
+        {
+            throw new InterruptedIOException();
+        }
+
+        if (message == null) 
+        {
+            throw new SocketTimeoutException("Receive timed out");
+        }
+        if (message == CLOSED) 
+        {
+            // leave it there for anybody else receiving
+            incoming.add(CLOSED);
+            throw new EOFException("Channel closed");
+        }
+        return message;
+    }
+
+    @Override
+    public void setReceiveTimeout(int timeoutMillis) 
+    {
+        receiveTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void close() 
+    {
+        if (!closed) 
+        {
+            closed = true;
+            outgoing.add(CLOSED);
+            incoming.add(CLOSED);
+        }
+    }
+}
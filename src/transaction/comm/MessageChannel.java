@@ -0,0 +1,51 @@
+package transaction.comm;
+
+import java.io.IOException;
+
+/**
+ * Interface [MessageChannel] A two-way connection Messages travel over between a client and a
+ * transaction server, hiding whether there is a network in between.
+ * 
+ * @author wolfdieterotte
+ */
+public interface MessageChannel 
+{
+    
+    /**
+     * Sets up the channel, must be called before the first message is sent or received
+     * 
+     * @throws IOException if the channel cannot be set up
+     */
+    public void open() throws IOException;
+    
+    /**
+     * Sends a message
+     * 
+     * @param message the message
+     * @throws IOException if the channel is closed or broken
+     */
+    public void send(Message message) throws IOException;
+    
+    /**
+     * Receives the next message, waiting for it if necessary
+     * 
+     * @return the message
+     * @throws IOException if the channel is closed or broken, in particular when the other side closed it,
+     *         a SocketTimeoutException if a receive timeout is set and expired
+     */
+    public Message receive() throws IOException;
+    
+    /**
+     * Bounds how long receive() waits for the next message, after a timeout the channel is to be closed
+     * 
+     * @param timeoutMillis the timeout, 0 to wait forever
+     * @throws IOException if the timeout cannot be set
+     */
+    public void setReceiveTimeout(int timeoutMillis) throws IOException;
+    
+    /**
+     * Closes the channel, the other side receives an IOException once it has taken all messages sent before.
+     * Can be called from another thread, which then gets out of receive() or send() with an IOException
+     */
+    public void close();
+}
@@ -23,9 +23,26 @@ public interface MessageTypes {
     
     // Flag sent from server in response to a client's CLOSE_TRANSACTION
     public static final int TRANSACTION_COMMITTED = 9;
-    // Flag sent from server in response to a client's failed READ_REQUEST/WRITE_REQUEST
+    // Flag sent from server in response to a client's failed READ_REQUEST/WRITE_REQUEST, holding
+    // the abort cause and how many other transactions were in the way, as int[]{cause, contention}
     public static final int TRANSACTION_ABORTED   = 10;
 
     // Message sent from the client to the server to signal shutdown
     public static final int SHUTDOWN   = 11;
+
+    // Messages exchanged between a primary and its replicas
+    public static final int REPLICATION_SUBSCRIBE = 12;
+    public static final int REPLICATION_RECORD    = 13;
+
+    // Message sent from an operator to the server asking for a snapshot of its state, and the response
+    public static final int STATS_REQUEST  = 14;
+    public static final int STATS_RESPONSE = 15;
+    
+    // Flag sent from server in response to a client's OPEN_TRANSACTION it could not admit
+    public static final int TRANSACTION_BUSY = 16;
+
+    // Message sent from the client to run a TransactionScript as one transaction, and the response
+    // holding the balances read; a script that aborted is answered with TRANSACTION_ABORTED
+    public static final int EXECUTE_SCRIPT          = 17;
+    public static final int EXECUTE_SCRIPT_RESPONSE = 18;
 }
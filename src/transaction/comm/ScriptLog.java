@@ -0,0 +1,140 @@
+package transaction.comm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Class [ScriptLog] Binary file holding the input of deterministic execution: the transaction
+ * scripts in the order the sequencer gave them, epoch by epoch. Running the same log against the
+ * same initial accounts gives the same balances, so a server can rebuild its state from it.
+ *
+ * Layout: magic number, version, then one epoch after the other: number of scripts, and per
+ * script its number of steps followed by account and amount of each step.
+ *
+ * @author wolfdieterotte
+ */
+public class ScriptLog
+{
+
+    private static final int MAGIC = 0x54585343;
+    private static final int VERSION = 1;
+
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+
+    private ScriptLog()
+    {
+    }
+
+    /**
+     * Creates a script log, overwriting an existing one
+     *
+     * @param fileName the file
+     * @return the script log, to write to
+     * @throws IOException if the file cannot be created
+     */
+    public static ScriptLog create(String fileName) throws IOException
+    {
+        ScriptLog scriptLog = new ScriptLog();
+
+        scriptLog.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+        scriptLog.out.writeInt(MAGIC);
+        scriptLog.out.writeInt(VERSION);
+        return scriptLog;
+    }
+
+    /**
+     * Opens a script log
+     *
+     * @param fileName the file
+     * @return the script log, to read from
+     * @throws IOException if the file cannot be read or is no script log
+     */
+    public static ScriptLog open(String fileName) throws IOException
+    {
+        ScriptLog scriptLog = new ScriptLog();
+
+        scriptLog.in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 65536));
+        if (scriptLog.in.readInt() != MAGIC || scriptLog.in.readInt() != VERSION)
+        {
+            scriptLog.close();
+            throw new IOException("\"" + fileName + "\" is no script log of version " + VERSION);
+        }
+        return scriptLog;
+    }
+
+    /**
+     * Appends an epoch, and pushes it to the file, so what was run is on disk
+     *
+     * @param scripts the scripts of the epoch, in order
+     * @throws IOException if writing fails
+     */
+    public void writeEpoch(List<TransactionScript> scripts) throws IOException
+    {
+        out.writeInt(scripts.size());
+        for (TransactionScript script : scripts)
+        {
+            out.writeInt(script.size());
+            for (int step = 0; step < script.size(); step++)
+            {
+                out.writeInt(script.getAccount(step));
+                out.writeInt(script.getAmount(step));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the next epoch
+     *
+     * @param scripts the list to add the scripts of the epoch to, in order
+     * @return false at the end of the file
+     * @throws IOException if reading fails or the file is cut off in the middle of an epoch
+     */
+    public boolean readEpoch(List<TransactionScript> scripts) throws IOException
+    {
+        int count;
+        try
+        {
+            count = in.readInt();
+        }
+        catch (EOFException e)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            int size = in.readInt();
+            int[] accounts = new int[size];
+            int[] amounts = new int[size];
+            for (int step = 0; step < size; step++)
+            {
+                accounts[step] = in.readInt();
+                amounts[step] = in.readInt();
+            }
+            scripts.add(new TransactionScript(accounts, amounts));
+        }
+        return true;
+    }
+
+    public void close()
+    {
+        try
+        {
+            if (out != null) out.close();
+            if (in != null) in.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to do about it
+        }
+    }
+}
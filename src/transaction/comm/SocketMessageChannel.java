@@ -0,0 +1,115 @@
+package transaction.comm;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * Class [SocketMessageChannel] Channel sending Messages over a TCP connection, using object streams.
+ * 
+ * @author wolfdieterotte
+ */
+public class SocketMessageChannel implements MessageChannel 
+{
+
+    private final Socket socket;
+    private ObjectOutputStream writeToNet = null;
+    private ObjectInputStream readFromNet = null;
+
+    /**
+     * Constructor for a connection accepted by a server
+     * 
+     * @param socket the connection
+     */
+    public SocketMessageChannel(Socket socket) 
+    {
+        this.socket = socket;
+    }
+
+    /**
+     * Constructor connecting to a server
+     * 
+     * @param host host of the server
+     * @param port port of the server
+     * @throws IOException if the server cannot be reached
+     */
+    public SocketMessageChannel(String host, int port) throws IOException 
+    {
+        this(new Socket(host, port));
+    }
+
+    /**
+     * Connector opening a new TCP connection to a server for each channel
+     * 
+     * @param host host of the server
+     * @param port port of the server
+     * @return the connector
+     */
+    public static Connector connector(String host, int port) 
+    {
+        return () -> {
+            SocketMessageChannel channel = new SocketMessageChannel(host, port);
+            channel.open();
+            return channel;
+        };
+    }
+
+    @Override
+    public void open() throws IOException 
+    {
+        // requests are small and each one waits for its reply, so don't let them sit in Nagle's buffer
+        socket.setTcpNoDelay(true);
+
+        // have the OS notice a peer that went away without closing the connection
+        socket.setKeepAlive(true);
+
+        // both sides write the stream header first, so neither waits for the other's
+        writeToNet = new ObjectOutputStream(socket.getOutputStream());
+        writeToNet.flush();
+        readFromNet = new ObjectInputStream(socket.getInputStream());
+    }
+
+    @Override
+    public void send(Message message) throws IOException 
+    {
+        writeToNet.writeObject(message);
+        writeToNet.flush();
+    }
+
+    @Override
+    public Message receive() throws IOException 
+    {
+        try 
+        {
+            return (Message) readFromNet.readObject();
+        } 
+        catch (ClassNotFoundException e) 
+        {
+            throw new IOException("Unknown message class", e);
+        }
+    }
+
+    @Override
+    public void setReceiveTimeout(int timeoutMillis) throws IOException 
+    {
+        socket.setSoTimeout(timeoutMillis);
+    }
+
+    @Override
+    public void close() 
+    {
+        try 
+        {
+            // the socket goes first: that gets a thread stuck reading or writing out, and keeps us
+            // from getting stuck ourselves flushing to a peer that does not read any more
+            socket.close();
+            if (writeToNet != null) writeToNet.close();
+            if (readFromNet != null) readFromNet.close();
+        } 
+        catch (IOException e) 
+        {
+            // nothing left to do about it
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package transaction.comm;
+
+import java.io.Serializable;
+
+/**
+ * Class [TransactionScript] A transaction whose accounts are known up front, sent to the server
+ * in one message and run there in one go, like a stored procedure. A script is a list of steps,
+ * each reading an account and adding an amount to its balance; a step with an amount of 0 only
+ * reads. The server answers with the balances read, one per step.
+ *
+ * Knowing the accounts, and which of them are written, before the transaction starts is what
+ * lets the server order transactions up front instead of locking as they go.
+ *
+ * @author wolfdieterotte
+ */
+public class TransactionScript implements Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] accounts;
+    private final int[] amounts;
+
+    /**
+     * Constructor
+     *
+     * @param accounts the accounts, in the order of the steps
+     * @param amounts what to add to each of them, 0 to only read it
+     */
+    public TransactionScript(int[] accounts, int[] amounts)
+    {
+        if (accounts.length != amounts.length)
+        {
+            throw new IllegalArgumentException("A script needs as many amounts as accounts");
+        }
+        this.accounts = accounts;
+        this.amounts = amounts;
+    }
+
+    /**
+     * Creates a script moving money from one account to another
+     *
+     * @param from account paying
+     * @param to account receiving
+     * @param amount the amount
+     * @return the script
+     */
+    public static TransactionScript transfer(int from, int to, int amount)
+    {
+        return new TransactionScript(new int[]{from, to}, new int[]{-amount, amount});
+    }
+
+    /**
+     * Creates a script reading accounts
+     *
+     * @param accounts the accounts
+     * @return the script
+     */
+    public static TransactionScript read(int... accounts)
+    {
+        return new TransactionScript(accounts.clone(), new int[accounts.length]);
+    }
+
+    public int size()
+    {
+        return accounts.length;
+    }
+
+    public int getAccount(int step)
+    {
+        return accounts[step];
+    }
+
+    public int getAmount(int step)
+    {
+        return amounts[step];
+    }
+
+    /**
+     * Helper method telling whether a script writes at all
+     *
+     * @return true if no step changes a balance
+     */
+    public boolean isReadOnly()
+    {
+        for (int amount : amounts)
+        {
+            if (amount != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method telling whether a script writes an account in any of its steps
+     *
+     * @param account the account
+     * @return true if a step adds a non-zero amount to it
+     */
+    public boolean writes(int account)
+    {
+        for (int step = 0; step < accounts.length; step++)
+        {
+            if (accounts[step] == account && amounts[step] != 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
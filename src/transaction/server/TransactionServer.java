@@ -1,17 +1,38 @@
 package transaction.server;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.net.StandardSocketOptions;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import transaction.comm.Connector;
+import transaction.comm.LocalMessageChannel;
+import transaction.comm.MessageChannel;
+import transaction.comm.SocketMessageChannel;
 import transaction.server.account.AccountManager;
 import transaction.server.account.Account;
+import transaction.server.deterministic.Sequencer;
+import transaction.server.lock.ContentionTracker;
 import transaction.server.lock.LockManager;
+import transaction.server.log.EventLog;
+import transaction.server.log.HistoryLog;
+import transaction.server.log.WorkloadCapture;
+import transaction.server.metrics.HotAccountProfiler;
+import transaction.server.metrics.Metrics;
+import transaction.server.partition.PartitionedExecutor;
+import transaction.server.replication.ReplicaApplier;
+import transaction.server.replication.ReplicationPublisher;
+import transaction.server.trace.TransactionTrace;
+import transaction.server.transaction.AdmissionController;
+import transaction.server.transaction.ScriptRetry;
+import transaction.server.transaction.TransactionHistory;
 import transaction.server.transaction.TransactionManager;
 import transaction.server.transaction.Transaction;
 import utils.PropertyHandler;
@@ -20,27 +41,64 @@ import utils.PropertyHandler;
 /**
  * Class that represents a transaction server
  * 
+ * A server either listens for clients on its port, or is embedded: clients in the same process
+ * then connect through in-memory channels, see connect(). Several servers can run in one process,
+ * each with managers of its own; the event log, metrics and tracing are shared by all of them.
+ * 
  * @author Dr.-Ing. Wolf-Dieter Otte
  */
-public class TransactionServer implements Runnable
+public class TransactionServer implements Runnable, Connector
 {
+    // configuration used if none is given, looked up in the current directory and along the class path
+    public static final String DEFAULT_PROPERTIES_FILE = "config/TransactionServer.properties";
+
     // manager objects
-    public static AccountManager     accountManager     = null;
-    public static TransactionManager transactionManager = null;
-    public static LockManager        lockManager        = null;
+    private final AccountManager     accountManager;
+    private final TransactionManager transactionManager;
+    private final LockManager        lockManager;
+    
+    // replication, at most one of them is set: the publisher on a primary, the applier on a replica
+    private ReplicationPublisher replicationPublisher = null;
+    private ReplicaApplier       replicaApplier       = null;
+
+    // captures the incoming requests for replay, if configured
+    private WorkloadCapture workloadCapture = null;
+
+    // history of the committed transactions for the checker, if configured
+    private HistoryLog historyLog = null;
+
+    // caps the number of transactions running at a time, if configured
+    private AdmissionController admissionController = null;
+    
+    // runs transaction scripts aborted for a conflict again, on the server
+    private final ScriptRetry scriptRetry;
+
+    // orders and runs transaction scripts in DETERMINISTIC execution mode, null in INTERACTIVE mode
+    private Sequencer sequencer = null;
+
+    // runs transaction scripts on partitions owned by one thread each in PARTITIONED execution mode, null otherwise
+    private PartitionedExecutor partitionedExecutor = null;
+    
+    // how long running transactions get to finish when the server shuts down
+    private final long drainTimeoutMillis;
+
+    // file the summary is written to, the console if empty
+    private String summaryFile;
     
-    // the server socket to accept incoming clients' requests
-    static ServerSocket serverSocket = null;
+    // the server sockets to accept incoming clients' requests, null for an embedded server;
+    // one per acceptor thread with SO_REUSEPORT, otherwise one shared by all acceptor threads
+    private ServerSocket[] serverSockets = null;
+    private int acceptorThreads = 1;
     
     // flag indicating to keep running the server loop
-    static boolean keepgoing = true;
+    private volatile boolean keepgoing = true;
     
     // flag for logging purposes. decides to either show logs from a transaction's perspective
     // or reflecting the program execution
     public static boolean transactionView;
 
-    // unique counter to number log message, so they can be ordered how they occurred
-    static int messageCounter = 0;
+    // true once the process-wide facilities are set up, by the first server created
+    private static boolean processStarted = false;
 
     
     /**
@@ -50,45 +108,205 @@ public class TransactionServer implements Runnable
      */
     public TransactionServer(String serverPropertiesFile) 
     {
+        this(loadProperties(serverPropertiesFile), true);
+    }
 
-        Properties serverProperties = null;
-
+    
+    /**
+     * Constructor
+     * 
+     * @param serverProperties server-side configuration information
+     * @param listen true to accept clients on the configured port, false for an embedded server
+     */
+    public TransactionServer(Properties serverProperties, boolean listen) 
+    {
         // variables holding config information
         int numberAccounts;
         int initialBalance;
 
-        // get properties
-        try 
-        {
-            serverProperties = new PropertyHandler(serverPropertiesFile);
-        } catch (IOException e) 
-        {
-            System.out.println("[TransactionServer.TransactionServer] Didn't find properties file \"" + serverPropertiesFile + "\"");
-            System.exit(1);
-        }
+        startProcess(serverProperties);
 
-        // create transaction manager
-        transactionView = Boolean.parseBoolean(serverProperties.getProperty("TRANSACTION_VIEW"));
-        TransactionServer.transactionManager = new TransactionManager();
-        System.out.println("[TransactionServer.TransactionServer] TransactionManager created");
+        drainTimeoutMillis = Long.parseLong(serverProperties.getProperty("DRAIN_TIMEOUT_MILLIS", "5000").trim());
+        summaryFile = serverProperties.getProperty("SUMMARY_FILE", "").trim();
+
+        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS"));
+        initialBalance = Integer.parseInt(serverProperties.getProperty("INITIAL_BALANCE"));
 
-        // create lock manager
+        // create lock manager, reading without locks where accounts are quiet, if configured
         boolean applyLocking = Boolean.parseBoolean(serverProperties.getProperty("APPLY_LOCKING"));
-        TransactionServer.lockManager = new LockManager(applyLocking);
+        int conflictPolicy = LockManager.getConflictPolicy(serverProperties.getProperty("LOCK_CONFLICT_POLICY"));
+        long lockWaitTimeoutMillis = Long.parseLong(serverProperties.getProperty("LOCK_WAIT_TIMEOUT_MILLIS", "0").trim());
+        String concurrencyControl = serverProperties.getProperty("CONCURRENCY_CONTROL", ContentionTracker.PESSIMISTIC).trim();
+        ContentionTracker contentionTracker = ContentionTracker.PESSIMISTIC.equalsIgnoreCase(concurrencyControl) 
+                ? null : new ContentionTracker(serverProperties, numberAccounts);
+        HotAccountProfiler hotAccountProfiler = new HotAccountProfiler(Integer.parseInt(serverProperties.getProperty("CONTENTION_SAMPLE_RATE", "64").trim()),
+                                                                       Integer.parseInt(serverProperties.getProperty("CONTENTION_WINDOW_SECONDS", "10").trim()),
+                                                                       Integer.parseInt(serverProperties.getProperty("CONTENTION_WINDOWS", "6").trim()));
+        lockManager = new LockManager(applyLocking, conflictPolicy, lockWaitTimeoutMillis, contentionTracker, hotAccountProfiler);
         System.out.println("[TransactionServer.TransactionServer] LockManager created");
 
         // create account manager
-        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS"));
-        initialBalance = Integer.parseInt(serverProperties.getProperty("INITIAL_BALANCE"));
+        boolean deferredUpdates = "DEFERRED".equalsIgnoreCase(serverProperties.getProperty("UPDATE_MODE", "IMMEDIATE").trim());
         
-        TransactionServer.accountManager = new AccountManager(numberAccounts, initialBalance);
+        accountManager = new AccountManager(lockManager, numberAccounts, initialBalance, deferredUpdates);
         System.out.println("[TransactionServer.TransactionServer] AccountManager created");
 
-        // create server socket
+        // capture the incoming requests, before there are any
+        String captureFile = serverProperties.getProperty("CAPTURE_FILE", "").trim();
+        if (!captureFile.isEmpty()) 
+        {
+            try 
+            {
+                workloadCapture = new WorkloadCapture(captureFile);
+                System.out.println("[TransactionServer.TransactionServer] Capturing requests to \"" + captureFile + "\"");
+            } catch (IOException ex) 
+            {
+                System.out.println("[TransactionServer.TransactionServer] Could not create capture file \"" + captureFile + "\"");
+                System.exit(1);
+            }
+        }
+
+        // write the history of the committed transactions
+        String historyFile = serverProperties.getProperty("HISTORY_FILE", "").trim();
+        if (!historyFile.isEmpty()) 
+        {
+            try 
+            {
+                historyLog = new HistoryLog(historyFile, numberAccounts, initialBalance);
+                System.out.println("[TransactionServer.TransactionServer] Writing history to \"" + historyFile + "\"");
+            } catch (IOException ex) 
+            {
+                System.out.println("[TransactionServer.TransactionServer] Could not create history file \"" + historyFile + "\"");
+                System.exit(1);
+            }
+        }
+
+        // cap the number of transactions running at a time
+        if (Integer.parseInt(serverProperties.getProperty("ADMISSION_LIMIT", "0").trim()) > 0) 
+        {
+            admissionController = new AdmissionController(serverProperties);
+            System.out.println("[TransactionServer.TransactionServer] AdmissionController created, " + admissionController.getReport());
+        }
+
+        // create transaction manager
+        int retentionPolicy = TransactionHistory.getRetentionPolicy(serverProperties.getProperty("TRANSACTION_HISTORY"));
+        int historySize = Integer.parseInt(serverProperties.getProperty("TRANSACTION_HISTORY_SIZE", "1000").trim());
+        int receiveTimeoutMillis = Integer.parseInt(serverProperties.getProperty("RECEIVE_TIMEOUT_MILLIS", "0").trim());
+        long idleTimeoutMillis = Long.parseLong(serverProperties.getProperty("TRANSACTION_IDLE_TIMEOUT_MILLIS", "0").trim());
+        transactionManager = new TransactionManager(this, retentionPolicy, historySize, receiveTimeoutMillis, idleTimeoutMillis);
+        Metrics.register(transactionManager);
+        System.out.println("[TransactionServer.TransactionServer] TransactionManager created");
+
+        // set up replication, a server given a primary is a read-only replica of it
+        String primaryHost = serverProperties.getProperty("PRIMARY_HOST", "");
+        String replicationPort = serverProperties.getProperty("REPLICATION_PORT", "");
         try 
         {
-            serverSocket = new ServerSocket(Integer.parseInt(serverProperties.getProperty("PORT")));
-            System.out.println("[TransactionServer.TransactionServer] ServerSocket created on port: " + serverSocket.getLocalPort());
+            if (!primaryHost.isEmpty()) 
+            {
+                replicaApplier = new ReplicaApplier(this, primaryHost, Integer.parseInt(serverProperties.getProperty("PRIMARY_REPLICATION_PORT")));
+                replicaApplier.start();
+                System.out.println("[TransactionServer.TransactionServer] Replica of " + primaryHost + " created");
+            } 
+            else if (!replicationPort.isEmpty()) 
+            {
+                replicationPublisher = new ReplicationPublisher(this, Integer.parseInt(replicationPort),
+                        Integer.parseInt(serverProperties.getProperty("REPLICATION_QUEUE_SIZE", "100000").trim()));
+                replicationPublisher.start();
+                System.out.println("[TransactionServer.TransactionServer] ReplicationPublisher created on port: " + replicationPort);
+            }
+        } catch (IOException ex) 
+        {
+            System.err.println("[TransactionServer.TransactionServer] Could not set up replication");
+            System.exit(1);
+        }
+
+        // how scripts are run: each under the lock manager as it comes (INTERACTIVE), in the order of a
+        // sequencer (DETERMINISTIC), or by the threads owning the accounts, without locks (PARTITIONED)
+        String executionMode = serverProperties.getProperty("EXECUTION_MODE", "INTERACTIVE").trim().toUpperCase();
+        scriptRetry = new ScriptRetry(serverProperties);
+        if (executionMode.equals("DETERMINISTIC")) 
+        {
+            String scriptLogFile = serverProperties.getProperty("SCRIPT_LOG_FILE", "").trim();
+            String scriptReplayFile = serverProperties.getProperty("SCRIPT_REPLAY_FILE", "").trim();
+            if (!scriptReplayFile.isEmpty() && scriptReplayFile.equals(scriptLogFile)) 
+            {
+                System.out.println("[TransactionServer.TransactionServer] SCRIPT_REPLAY_FILE and SCRIPT_LOG_FILE must differ");
+                System.exit(1);
+            }
+
+            // replaying the scripts of an earlier run first
+            try 
+            {
+                sequencer = new Sequencer(transactionManager, scriptRetry,
+                        Long.parseLong(serverProperties.getProperty("EPOCH_MILLIS", "5").trim()),
+                        Integer.parseInt(serverProperties.getProperty("EPOCH_MAX_SIZE", "1000").trim()),
+                        Integer.parseInt(serverProperties.getProperty("EXECUTION_THREADS", "4").trim()),
+                        scriptLogFile);
+                if (!scriptReplayFile.isEmpty()) 
+                {
+                    long replayed = sequencer.replay(scriptReplayFile);
+                    System.out.println("[TransactionServer.TransactionServer] " + replayed + " scripts replayed from \"" + scriptReplayFile + "\"");
+                }
+                sequencer.start();
+            } catch (IOException ex) 
+            {
+                System.out.println("[TransactionServer.TransactionServer] Could not set up deterministic execution: " + ex.getMessage());
+                System.exit(1);
+            }
+            System.out.println("[TransactionServer.TransactionServer] Sequencer created");
+        }
+        else if (executionMode.equals("PARTITIONED")) 
+        {
+            // the partitions own the accounts, nothing else may write them
+            if (replicaApplier != null || replicationPublisher != null) 
+            {
+                System.out.println("[TransactionServer.TransactionServer] PARTITIONED execution does not replicate, running INTERACTIVE");
+            } 
+            else 
+            {
+                int partitions = Integer.parseInt(serverProperties.getProperty("PARTITIONS", "0").trim());
+                partitionedExecutor = new PartitionedExecutor(transactionManager, accountManager, historyLog, numberAccounts,
+                        partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors());
+                partitionedExecutor.start();
+                System.out.println("[TransactionServer.TransactionServer] PartitionedExecutor created, " + partitionedExecutor.getReport());
+            }
+        }
+
+        if (!listen) 
+        {
+            return;
+        }
+
+        // create server sockets, with SO_REUSEPORT the kernel spreads incoming connections over them
+        int port = Integer.parseInt(serverProperties.getProperty("PORT"));
+        int backlog = Integer.parseInt(serverProperties.getProperty("ACCEPT_BACKLOG", "50").trim());
+        acceptorThreads = Math.max(1, Integer.parseInt(serverProperties.getProperty("ACCEPTOR_THREADS", "1").trim()));
+        boolean reusePort = Boolean.parseBoolean(serverProperties.getProperty("REUSE_PORT", "false").trim());
+        try 
+        {
+            ServerSocket first = new ServerSocket();
+            if (reusePort && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) 
+            {
+                serverSockets = new ServerSocket[acceptorThreads];
+                for (int i = 0; i < acceptorThreads; i++) 
+                {
+                    serverSockets[i] = i == 0 ? first : new ServerSocket();
+                    serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    serverSockets[i].bind(new InetSocketAddress(port), backlog);
+                }
+            } 
+            else 
+            {
+                if (reusePort) 
+                {
+                    System.out.println("[TransactionServer.TransactionServer] SO_REUSEPORT not supported, acceptors share one ServerSocket");
+                }
+                first.bind(new InetSocketAddress(port), backlog);
+                serverSockets = new ServerSocket[]{first};
+            }
+            System.out.println("[TransactionServer.TransactionServer] " + serverSockets.length + " ServerSocket(s) created on port: " 
+                    + serverSockets[0].getLocalPort() + ", " + acceptorThreads + " acceptor thread(s)");
         } catch (IOException ex) 
         {
             System.err.println("[TransactionServer.TransactionServer] Could not create server socket");
@@ -98,94 +316,351 @@ public class TransactionServer implements Runnable
 
     
     /**
-     * Helper method to return a system-wide, unique counter for logging purposes
+     * Creates a server that does not listen on the network, clients connect through connect()
      * 
-     * @return the counter value
+     * @param serverProperties server-side configuration information
+     * @return the server
+     */
+    public static TransactionServer embedded(Properties serverProperties) 
+    {
+        return new TransactionServer(serverProperties, false);
+    }
+
+    
+    /**
+     * Helper method reading the properties, exits if there are none
      */
-    public static synchronized int getMessageCount()
+    private static Properties loadProperties(String serverPropertiesFile) 
     {
-        return ++messageCounter;
+        try 
+        {
+            return new PropertyHandler(serverPropertiesFile);
+        } catch (IOException e) 
+        {
+            System.out.println("[TransactionServer.TransactionServer] Didn't find properties file \"" + serverPropertiesFile + "\"");
+            System.exit(1);
+            return null;
+        }
     }
+
     
+    /**
+     * Sets up what all servers in the process share: event log, metrics and tracing.
+     * Only the first server's configuration counts
+     */
+    private static synchronized void startProcess(Properties serverProperties) 
+    {
+        if (processStarted) 
+        {
+            return;
+        }
+        processStarted = true;
+
+        // start the event log
+        transactionView = Boolean.parseBoolean(serverProperties.getProperty("TRANSACTION_VIEW"));
+        try 
+        {
+            EventLog.start(EventLog.getLevel(serverProperties.getProperty("LOG_LEVEL")), 
+                           serverProperties.getProperty("LOG_FILE", ""),
+                           Integer.parseInt(serverProperties.getProperty("LOG_BUFFER_SIZE", "65536")));
+        } catch (IOException e) 
+        {
+            System.out.println("[TransactionServer.TransactionServer] Could not open log file \"" + serverProperties.getProperty("LOG_FILE") + "\"");
+            System.exit(1);
+        }
+
+        // metrics, exposed via JMX and optionally dumped to the console
+        Metrics.start(Integer.parseInt(serverProperties.getProperty("METRICS_DUMP_SECONDS", "0")));
+        TransactionTrace.configure(Integer.parseInt(serverProperties.getProperty("TRACE_SAMPLE_RATE", "0")),
+                                   Integer.parseInt(serverProperties.getProperty("TRACE_SLOW_MILLIS", "0")));
+    }
+
+    
+    /**
+     * Connects a client in the same process, the client is served just like one coming in over the network
+     * 
+     * @return the client's end of an in-memory channel
+     */
+    @Override
+    public MessageChannel connect() 
+    {
+        LocalMessageChannel[] channels = LocalMessageChannel.createPair();
+
+        transactionManager.runTransaction(channels[1]);
+        return channels[0];
+    }
+
+    
+    public AccountManager getAccountManager() 
+    {
+        return accountManager;
+    }
+
+    
+    public TransactionManager getTransactionManager() 
+    {
+        return transactionManager;
+    }
+
+    
+    public LockManager getLockManager() 
+    {
+        return lockManager;
+    }
+
+    
+    public ReplicationPublisher getReplicationPublisher() 
+    {
+        return replicationPublisher;
+    }
+
+    
+    public ReplicaApplier getReplicaApplier() 
+    {
+        return replicaApplier;
+    }
+
+    
+    public WorkloadCapture getWorkloadCapture() 
+    {
+        return workloadCapture;
+    }
+
+    
+    public HistoryLog getHistoryLog() 
+    {
+        return historyLog;
+    }
+
+    
+    public AdmissionController getAdmissionController() 
+    {
+        return admissionController;
+    }
+
+    
+    public ScriptRetry getScriptRetry() 
+    {
+        return scriptRetry;
+    }
+
+    
+    public Sequencer getSequencer() 
+    {
+        return sequencer;
+    }
+
+    
+    public PartitionedExecutor getPartitionedExecutor() 
+    {
+        return partitionedExecutor;
+    }
+
     
     /**
      * Helper method called indirectly by client by sending a SHUTDOWN message to server,
      * which is received by a TransactionManagerWorker that in turn will call this method.
-     * 
-     * The method is static to avoid passing on this server's object reference
+     * Stops accepting clients, the server loop then drains the running transactions.
+     * An embedded server is shut down by calling it directly, and drains right away
      */
-    public static void shutDown()
+    public void shutDown()
     {
-        try {
-            keepgoing = false;
-            serverSocket.close();
-        } catch (IOException ex) {
-            Logger.getLogger(TransactionServer.class.getName()).log(Level.SEVERE, null, ex);
-        }    
+        keepgoing = false;
+        if (serverSockets == null) {
+            drain();
+            return;
+        }
+
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(TransactionServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+
+    /**
+     * Helper method letting the running transactions finish, up to DRAIN_TIMEOUT_MILLIS, aborting
+     * the rest, and then closing what the transactions write to
+     */
+    private void drain()
+    {
+        if (sequencer != null) {
+            int unfinished = sequencer.shutDown(drainTimeoutMillis);
+            if (unfinished > 0) {
+                System.out.println("[TransactionServer.drain] " + unfinished + " scripts did not finish in time");
+            }
+        }
+        if (partitionedExecutor != null) {
+            int unfinished = partitionedExecutor.shutDown(drainTimeoutMillis);
+            if (unfinished > 0) {
+                System.out.println("[TransactionServer.drain] " + unfinished + " scripts did not finish in time");
+            }
+        }
+
+        int cut = transactionManager.drain(drainTimeoutMillis);
+        if (cut > 0) {
+            System.out.println("[TransactionServer.drain] " + cut + " transactions did not finish in time and were aborted");
+        }
+
+        transactionManager.shutDown();
+        Metrics.unregister(transactionManager);
+        if (replicationPublisher != null) {
+            replicationPublisher.shutDown();
+        }
+        if (workloadCapture != null) {
+            workloadCapture.close();
+        }
+        if (historyLog != null) {
+            historyLog.close();
+        }
     }
   
     
     /**
-     * Print out summary
+     * Print out summary, streamed to SUMMARY_FILE or the console, so neither time nor memory
+     * depend on how many transactions are kept
      */
     public void printOutSummary()
     {        
-        System.out.println("\n\n======================================= COMMITTED TRANSACTIONS INFORMATION =======================================");
+        // get the log out of the way first
+        EventLog.flush();
 
-        StringBuffer committedTransactionsLogs = new StringBuffer();
-        Iterator<Transaction> committedTransactionsIterator = TransactionServer.transactionManager.getCommittedTransactions().iterator();
-        Transaction committedTransaction;
+        PrintWriter summary = openSummary();
+        
+        summary.println("\n\n======================================= COMMITTED TRANSACTIONS INFORMATION =======================================");
 
-        while (committedTransactionsIterator.hasNext())
-        {
-            committedTransaction = committedTransactionsIterator.next();
-            committedTransactionsLogs.append(committedTransaction.getLog()).append("\n");
-        }
+        // logs are only kept with the transactions in transaction view, otherwise they went to the event log
+        transactionManager.forEachCommittedTransaction(committedTransaction -> {
+            if (committedTransaction.getLog().length() > 0) {
+                summary.append(committedTransaction.getLog()).append("\n");
+            }
+        });
 
-        System.out.print(committedTransactionsLogs);
-        //*/
-        
+        summary.println("\n---> " + transactionManager.getCommittedCount() + " committed, "
+                + transactionManager.getAbortedCount() + " aborted");
         
-        System.out.println("\n\n======================================= BRANCH TOTAL =======================================");
+        summary.print(Metrics.getReport(Metrics.snapshot()));
 
-        HashMap<Integer, Account> accounts = TransactionServer.accountManager.getAccounts();
-        int total = 0;
+        if (transactionManager.getReclaimedCount() > 0 || transactionManager.getTimedOutConnectionCount() > 0) {
+            summary.println("\n---> " + transactionManager.getReclaimedCount() + " transactions of vanished or idle clients reclaimed, "
+                    + transactionManager.getTimedOutConnectionCount() + " silent connections dropped");
+        }
+        if (admissionController != null) {
+            summary.println("\n---> admission: " + admissionController.getReport());
+        }
+        if (lockManager.getContentionTracker() != null) {
+            summary.print("\n---> concurrency control: " + lockManager.getContentionTracker().getReport(10));
+        }
+        if (sequencer == null && partitionedExecutor == null) {
+            summary.println("\n---> " + scriptRetry.getReport());
+        }
+        if (sequencer != null) {
+            summary.println("\n---> deterministic execution: " + sequencer.getReport());
+        }
+        if (partitionedExecutor != null) {
+            summary.println("\n---> partitioned execution: " + partitionedExecutor.getReport());
+        }
+        if (historyLog != null) {
+            summary.println("\n---> " + historyLog.getTransactionCount() + " committed transactions written to history \"" + historyLog.getFileName() + "\"");
+        }
+        if (workloadCapture != null) {
+            summary.println("\n---> " + workloadCapture.getRecordCount() + " requests and outcomes captured to \"" + workloadCapture.getFileName() + "\"");
+        }
 
+        // balances and their total in one pass over the accounts
+        summary.println("\n\n======================================= ACCOUNT BALANCES =======================================");
 
-        for (Map.Entry<Integer, Account> entry : accounts.entrySet()) { 
-            total += entry.getValue()._read();
+        long total = 0;
+        for (Account account : accountManager.getAccounts().values()) { 
+            int balance = account._read();
+            total += balance;
+            summary.print(balance);
+            summary.print(' ');
         }
 
-        // according to NetBeans, the above can be replaced by the below monster
-        // - are you kidding me? If this is not bad, what is? WTF!!!
-        // total = accounts.entrySet().stream().map(entry -> entry.getValue()._read()).reduce(total, Integer::sum);
-
-        System.out.println("---> $" + total);
-        
-        System.out.println("\n\n======================================= ACCOUNT BALANCES =======================================");
+        summary.println("\n\n======================================= BRANCH TOTAL =======================================");
+        summary.println("---> $" + total);
+        summary.println("\n");
 
-        for (Map.Entry<Integer, Account> entry : accounts.entrySet()) { 
-                    System.out.print(entry.getValue()._read() + " ");
+        if (summaryFile.isEmpty()) {
+            summary.flush();
+        } else {
+            summary.close();
+            System.out.println("[TransactionServer.printOutSummary] Summary written to \"" + summaryFile + "\", branch total $" + total);
         }
-       
-        System.out.println("\n\n");
         
         System.exit(0);
-}
+    }
+
+
+    /**
+     * Helper method opening where the summary goes, the console if there is no file or it cannot be written
+     */
+    private PrintWriter openSummary()
+    {
+        if (!summaryFile.isEmpty()) {
+            try {
+                return new PrintWriter(new BufferedWriter(new FileWriter(summaryFile), 1 << 16));
+            } catch (IOException e) {
+                System.out.println("[TransactionServer.printOutSummary] Could not write summary to \"" + summaryFile + "\", using the console");
+                summaryFile = "";
+            }
+        }
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+    }
 
     /**
-     * Run the server loop
+     * Run the server loop, on this thread and ACCEPTOR_THREADS - 1 more
      */
     @Override
     public void run() 
+    {
+        Thread[] acceptors = new Thread[acceptorThreads - 1];
+        for (int i = 0; i < acceptors.length; i++) 
+        {
+            ServerSocket serverSocket = serverSockets[(i + 1) % serverSockets.length];
+            acceptors[i] = new Thread(() -> accept(serverSocket), "Acceptor-" + (i + 1));
+            acceptors[i].start();
+        }
+        accept(serverSockets[0]);
+
+        for (Thread acceptor : acceptors) 
+        {
+            try 
+            {
+                acceptor.join();
+            } 
+            catch (InterruptedException ex) 
+            {
+                // ignore
+            }
+        }
+
+        // we are done with the server loop, let the running transactions finish
+        drain();
+        
+        // print out summary
+        printOutSummary();
+        
+        System.exit(1); // make sure to really exit if the application is interrupted from the client side
+    }
+    
+    
+    /**
+     * Helper method running the server loop of one acceptor thread. It only accepts, the worker
+     * sets up the object streams, which waits for the client, on its own thread
+     */
+    private void accept(ServerSocket serverSocket) 
     {
         // run server loop
         while (keepgoing) 
         {
-            // run server loop
             try 
             {
-                transactionManager.runTransaction(serverSocket.accept());
+                transactionManager.runTransaction(new SocketMessageChannel(serverSocket.accept()));
             } 
             catch (SocketException e) 
             {
@@ -197,21 +672,6 @@ public class TransactionServer implements Runnable
                 System.out.println("IOException in server loop");
             }
         }
-
-        // we are done with the server loop, wait a second for things to calm down
-        try 
-        {
-            Thread.sleep(1000);
-        } 
-        catch (InterruptedException ex) 
-        {
-            // ignore
-        }        
-        
-        // print out summary
-        printOutSummary();
-        
-        System.exit(1); // make sure to really exit if the application is interrupted from the client side
     }
     
     
@@ -224,7 +684,7 @@ public class TransactionServer implements Runnable
         if (args.length == 1) {
             new TransactionServer(args[0]).run();
         } else {
-            new TransactionServer("/root/distributedSystems/TransactionalServer/src/config/TransactionServer.properties").run();
+            new TransactionServer(DEFAULT_PROPERTIES_FILE).run();
         }
     }
 }
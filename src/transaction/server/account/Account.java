@@ -10,6 +10,13 @@ public class Account
     private int balance;
     private final int number;
     
+    // number of committed transactions that wrote the account, maintained while a history is kept
+    private volatile long version = 0;
+    
+    // odd while a transaction holds the write lock, bumped when it is set and when it is released,
+    // so a reader without a lock can tell whether the balance changed under it
+    private volatile long stamp = 0;
+    
     public Account (int number, int initialBalance) 
     {
         this.balance = initialBalance;
@@ -29,5 +36,33 @@ public class Account
     public int getNumber() 
     {
         return number;
+    }
+    
+    public long getVersion() 
+    {
+        return version;
+    }
+    
+    public long getStamp() 
+    {
+        return stamp;
+    }
+    
+    /**
+     * Bumps the stamp when the write lock is set or released, callers hold the lock's monitor
+     */
+    public void nextStamp() 
+    {
+        stamp++;
+    }
+    
+    /**
+     * Counts a committed write, callers serialize the commits
+     * 
+     * @return the new version
+     */
+    public long nextVersion() 
+    {
+        return ++version;
     }    
 }
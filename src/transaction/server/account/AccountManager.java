@@ -1,8 +1,11 @@
 package transaction.server.account;
 
+import java.lang.invoke.VarHandle;
 import java.util.HashMap;
+import transaction.server.transaction.ReadWriteSet;
 import transaction.server.transaction.Transaction;
-import transaction.server.TransactionServer;
+import transaction.server.transaction.WriteBuffer;
+import transaction.server.lock.LockManager;
 import transaction.server.lock.LockTypes;
 import transaction.server.lock.TransactionAbortedException;
 
@@ -13,15 +16,32 @@ import transaction.server.lock.TransactionAbortedException;
 public class AccountManager implements LockTypes
 {
     
-    private static HashMap<Integer, Account> accounts;
-    private static int numberAccounts;
-    private static int initialBalance;
+    // what sumBalances() returns when it could not take the total, balances and totals can be negative
+    public static final long NO_TOTAL = Long.MIN_VALUE;
     
-    public AccountManager(int numberAccounts, int initialBalance) 
+    private final HashMap<Integer, Account> accounts;
+    private final int numberAccounts;
+    private final int initialBalance;
+    
+    // true if writes are kept in the transaction's write buffer until it commits
+    private final boolean deferredUpdates;
+    
+    // the lock manager guarding the accounts
+    private final LockManager lockManager;
+    
+    public AccountManager(LockManager lockManager, int numberAccounts, int initialBalance) 
+    {
+        this(lockManager, numberAccounts, initialBalance, false);
+    }
+    
+    
+    public AccountManager(LockManager lockManager, int numberAccounts, int initialBalance, boolean deferredUpdates) 
     {
-        accounts = new HashMap();
-        AccountManager.numberAccounts = numberAccounts;
-        AccountManager.initialBalance = initialBalance;
+        this.accounts = new HashMap();
+        this.lockManager = lockManager;
+        this.deferredUpdates = deferredUpdates;
+        this.numberAccounts = numberAccounts;
+        this.initialBalance = initialBalance;
         
         for (int i = 0; i < numberAccounts; i++) 
         {
@@ -42,15 +62,75 @@ public class AccountManager implements LockTypes
     }
     
     
+    public boolean isDeferredUpdates()
+    {
+        return deferredUpdates;
+    }
+    
+    
     public int read (int accountNumber, Transaction transaction) throws TransactionAbortedException
+    {
+        return read(accountNumber, transaction, true);
+    }
+    
+    
+    /**
+     * Helper method reading an account, without a lock if allowed and its region is optimistic
+     */
+    private int read (int accountNumber, Transaction transaction, boolean optimisticAllowed) throws TransactionAbortedException
     {
         // get the account
         Account account = getAccount(accountNumber);
         
+        // in a quiet region, read without a lock if nobody is writing the account, validated at commit
+        if (optimisticAllowed && lockManager.isOptimistic(account)) 
+        {
+            long stamp = account.getStamp();
+            if ((stamp & 1) == 0) 
+            {
+                long version = account.getVersion();
+                int balance = account._read();
+                
+                // the balance must be read before the stamp is checked again
+                VarHandle.acquireFence();
+                if (account.getStamp() == stamp) 
+                {
+                    transaction.addOptimisticRead(account, stamp);
+                    lockManager.recordOptimisticRead(account);
+                    if (transaction.getReadWriteSet() != null) 
+                    {
+                        transaction.getReadWriteSet().recordRead(accountNumber, version, balance);
+                    }
+                    return balance;
+                }
+            }
+        }
+        
         // set the read lock
-        (TransactionServer.lockManager).lock(account, transaction, READ_LOCK);
+        lockManager.lock(account, transaction, READ_LOCK);
         
         // the above call will likely wait (if not deadlock), until it continues here
+        // with deferred updates, the transaction sees its own writes
+        WriteBuffer writeBuffer = transaction.getWriteBuffer();
+        if (writeBuffer != null) 
+        {
+            int index = writeBuffer.indexOf(accountNumber);
+            if (index >= 0) 
+            {
+                return writeBuffer.getBalance(index);
+            }
+        }
+        
+        // the version first, so a balance changing under a reader without locks shows up in the history
+        ReadWriteSet readWriteSet = transaction.getReadWriteSet();
+        if (readWriteSet != null) 
+        {
+            long version = account.getVersion();
+            int balance = account._read();
+            readWriteSet.recordRead(accountNumber, version, balance);
+            return balance;
+        }
+        
         return account._read();
     }
     
@@ -61,9 +141,96 @@ public class AccountManager implements LockTypes
         Account account = getAccount(accountNumber);
 
         // set the write lock
-        (TransactionServer.lockManager).lock(account, transaction, WRITE_LOCK);
+        lockManager.lock(account, transaction, WRITE_LOCK);
         
         // above call may wait (or deadlock), until it continues here
-        account._write(balance);
+        // with deferred updates, the write goes into the transaction's private workspace
+        WriteBuffer writeBuffer = transaction.getWriteBuffer();
+        if (writeBuffer != null) 
+        {
+            writeBuffer.put(accountNumber, balance);
+        } 
+        else 
+        {
+            account._write(balance);
+        }
+        
+        if (transaction.getReadWriteSet() != null) 
+        {
+            transaction.getReadWriteSet().recordWrite(accountNumber, balance);
+        }
+    }
+    
+    
+    /**
+     * Installs the writes of a committing transaction running with deferred updates.
+     * Must be called while the transaction still holds its write locks
+     * 
+     * @param transaction the committing transaction
+     */
+    public void install (Transaction transaction)
+    {
+        WriteBuffer writeBuffer = transaction.getWriteBuffer();
+        if (writeBuffer != null && !writeBuffer.isEmpty()) 
+        {
+            writeBuffer.install(this);
+        }
+    }
+    
+    
+    /**
+     * Reads all accounts under read locks, e.g. to take a consistent snapshot, even in optimistic
+     * regions: a commit cannot slip in before the caller is done with the snapshot.
+     * The locks stay with the transaction until it is unlocked by the caller
+     * 
+     * @param transaction the transaction the read locks are set for
+     * @return the balances, indexed by account number
+     * @throws TransactionAbortedException if any of the read locks conflicts
+     */
+    public int[] readAll (Transaction transaction) throws TransactionAbortedException
+    {
+        int[] balances = new int[numberAccounts];
+        
+        for (int i = 0; i < numberAccounts; i++) 
+        {
+            balances[i] = read(i, transaction, false);
+        }
+        
+        return balances;
+    }
+    
+    
+    /**
+     * Sums up all balances without taking a lock, so no writer is held up or aborted. The sum
+     * only counts if no account was write-locked while it was taken: all stamps are even, and
+     * summed up again afterwards, they have not moved, as stamps only ever grow
+     * 
+     * @return the branch total, NO_TOTAL if a writer was in the way
+     */
+    public long sumBalances ()
+    {
+        long total = 0;
+        long stamps = 0;
+        
+        for (int i = 0; i < numberAccounts; i++) 
+        {
+            Account account = getAccount(i);
+            long stamp = account.getStamp();
+            if ((stamp & 1) != 0) 
+            {
+                return NO_TOTAL;
+            }
+            stamps += stamp;
+            total += account._read();
+        }
+        
+        // the balances must be read before the stamps are summed up again
+        VarHandle.acquireFence();
+        for (int i = 0; i < numberAccounts; i++) 
+        {
+            stamps -= getAccount(i).getStamp();
+        }
+        
+        return stamps == 0 ? total : NO_TOTAL;
     }
 }
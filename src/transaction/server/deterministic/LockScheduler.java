@@ -0,0 +1,255 @@
+package transaction.server.deterministic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.ScriptRetry;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [LockScheduler] Grants the locks of sequenced scripts in the order of the sequencer, and
+ * hands the scripts whose locks are all granted to a fixed pool of execution threads.
+ *
+ * A single thread owns the lock queues, so there is no latching on them. A script queues all its
+ * locks at once, when its epoch arrives; a lock is granted when the script is at the head of the
+ * account's queue, or, for a read, when only reads are ahead of it. As every script queues its
+ * locks in the same global order, there are no deadlocks, and as no script is aborted for a
+ * conflict, the outcome is the same each time the same scripts run in the same order.
+ *
+ * The scripts still run under the lock manager, so they are isolated from interactive
+ * transactions running next to them; if one of those is in the way, the script is retried after
+ * backing off, for as long as it takes, all attempts as old as the first.
+ *
+ * @author wolfdieterotte
+ */
+class LockScheduler extends Thread implements AbortCauses {
+
+    /**
+     * A script waiting for, or holding, the lock on one account
+     */
+    private static class LockEntry {
+        final ScriptRequest request;
+        final boolean write;
+        boolean granted = false;
+
+        LockEntry(ScriptRequest request, boolean write) {
+            this.request = request;
+            this.write = write;
+        }
+    }
+
+    // epochs to schedule and scripts that finished, in the order they happened
+    private final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>();
+
+    // the lock queue of each account with scripts on it
+    private final HashMap<Integer, ArrayDeque<LockEntry>> lockQueues = new HashMap<>();
+
+    private final ExecutorService executionThreads;
+    private final TransactionManager transactionManager;
+    private final ScriptRetry scriptRetry;
+
+    // how often a script was run again because an interactive transaction was in the way
+    private final AtomicLong retries = new AtomicLong();
+
+    private volatile boolean keepgoing = true;
+
+    /**
+     * Constructor
+     *
+     * @param transactionManager runs the scripts
+     * @param scriptRetry how long to back off before running a script again
+     * @param numberThreads number of execution threads
+     */
+    LockScheduler(TransactionManager transactionManager, ScriptRetry scriptRetry, int numberThreads) {
+        this.transactionManager = transactionManager;
+        this.scriptRetry = scriptRetry;
+        executionThreads = Executors.newFixedThreadPool(numberThreads, runnable -> {
+            Thread thread = new Thread(runnable, "ScriptExecutor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        setDaemon(true);
+        setName("LockScheduler");
+    }
+
+    /**
+     * Queues the locks of an epoch, the scripts in sequence order
+     *
+     * @param epoch the scripts
+     */
+    void schedule(List<ScriptRequest> epoch) {
+        events.add(epoch);
+    }
+
+    /**
+     * A script whose locks are all granted, on its way to an execution thread
+     */
+    private class ScriptRun implements Runnable {
+        final ScriptRequest request;
+
+        ScriptRun(ScriptRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            int timestamp = transactionManager.nextTimestamp();
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    request.result.complete(transactionManager.executeScript(request.script, timestamp));
+                    break;
+                } catch (TransactionAbortedException ex) {
+                    // only an interactive transaction can be in the way, it goes away
+                    if (!ScriptRetry.isRetriable(ex.getAbortCause())) {
+                        request.result.completeExceptionally(ex);
+                        break;
+                    }
+                    retries.incrementAndGet();
+                    scriptRetry.backOff(attempt);
+                } catch (RuntimeException ex) {
+                    request.result.completeExceptionally(ex);
+                    break;
+                }
+            }
+            events.add(request);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        while (keepgoing) {
+            Object event;
+            try {
+                event = events.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (event instanceof ScriptRequest) {
+                release((ScriptRequest) event);
+            } else {
+                for (ScriptRequest request : (List<ScriptRequest>) event) {
+                    enqueue(request);
+                }
+            }
+        }
+
+        // the scripts running finish on their own, the others are not going to run
+        ArrayList<ScriptRequest> left = new ArrayList<>();
+        for (Runnable run : executionThreads.shutdownNow()) {
+            left.add(((ScriptRun) run).request);
+        }
+        for (ArrayDeque<LockEntry> queue : lockQueues.values()) {
+            for (LockEntry entry : queue) {
+                if (entry.request.pending > 0) {
+                    left.add(entry.request);
+                }
+            }
+        }
+        lockQueues.clear();
+        ArrayList<Object> undelivered = new ArrayList<>();
+        events.drainTo(undelivered);
+        for (Object event : undelivered) {
+            if (event instanceof List) {
+                left.addAll((List<ScriptRequest>) event);
+            }
+        }
+
+        for (ScriptRequest request : left) {
+            request.result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+    }
+
+    /**
+     * Stops scheduling, and waits until the scripts not run yet are failed with SERVER_SHUTDOWN.
+     * No epoch must be scheduled afterwards
+     */
+    void shutDown() {
+        keepgoing = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Helper method queueing the locks of a script, it runs right away if all of them are granted
+     */
+    private void enqueue(ScriptRequest request) {
+        request.pending = request.accounts.length;
+        if (request.pending == 0) {
+            dispatch(request);
+            return;
+        }
+
+        for (int i = 0; i < request.accounts.length; i++) {
+            ArrayDeque<LockEntry> queue = lockQueues.computeIfAbsent(request.accounts[i], account -> new ArrayDeque<>());
+            queue.add(new LockEntry(request, request.writes[i]));
+            grantHead(queue);
+        }
+    }
+
+    /**
+     * Helper method releasing the locks of a finished script, and granting them to the next in line
+     */
+    private void release(ScriptRequest request) {
+        for (int account : request.accounts) {
+            ArrayDeque<LockEntry> queue = lockQueues.get(account);
+            queue.removeIf(entry -> entry.request == request);
+
+            if (queue.isEmpty()) {
+                lockQueues.remove(account);
+            } else {
+                grantHead(queue);
+            }
+        }
+    }
+
+    /**
+     * Helper method granting a lock queue's head: a write alone, or the reads up to the first write
+     */
+    private void grantHead(ArrayDeque<LockEntry> queue) {
+        LockEntry head = queue.peek();
+        if (head.write) {
+            grant(head);
+            return;
+        }
+
+        for (LockEntry entry : queue) {
+            if (entry.write) {
+                break;
+            }
+            grant(entry);
+        }
+    }
+
+    private void grant(LockEntry entry) {
+        if (!entry.granted) {
+            entry.granted = true;
+            if (--entry.request.pending == 0) {
+                dispatch(entry.request);
+            }
+        }
+    }
+
+    /**
+     * Helper method running a script on an execution thread, which reports back when it is done
+     */
+    private void dispatch(ScriptRequest request) {
+        executionThreads.execute(new ScriptRun(request));
+    }
+}
@@ -0,0 +1,54 @@
+package transaction.server.deterministic;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import transaction.comm.TransactionScript;
+
+/**
+ * Class [ScriptRequest] A script on its way through deterministic execution: its place in the
+ * order the sequencer gave, the accounts it locks, and the future its caller waits on.
+ *
+ * @author wolfdieterotte
+ */
+class ScriptRequest {
+
+    final TransactionScript script;
+    final CompletableFuture<int[]> result = new CompletableFuture<>();
+
+    // position in the order of the sequencer
+    long sequence;
+
+    // the accounts the script touches, each once, and whether it writes them
+    final int[] accounts;
+    final boolean[] writes;
+
+    // number of its locks not granted yet, only touched by the lock scheduler
+    int pending;
+
+    /**
+     * Constructor
+     *
+     * @param script the script
+     */
+    ScriptRequest(TransactionScript script) {
+        this.script = script;
+
+        int[] distinct = new int[script.size()];
+        boolean[] written = new boolean[script.size()];
+        int count = 0;
+        for (int step = 0; step < script.size(); step++) {
+            int account = script.getAccount(step);
+            int index = 0;
+            while (index < count && distinct[index] != account) {
+                index++;
+            }
+            if (index == count) {
+                distinct[count++] = account;
+            }
+            written[index] |= script.getAmount(step) != 0;
+        }
+
+        accounts = Arrays.copyOf(distinct, count);
+        writes = Arrays.copyOf(written, count);
+    }
+}
@@ -0,0 +1,301 @@
+package transaction.server.deterministic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.ScriptLog;
+import transaction.comm.TransactionScript;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.ScriptRetry;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [Sequencer] Front end of deterministic execution. Collects the incoming scripts into
+ * epochs of EPOCH_MILLIS, or EPOCH_MAX_SIZE scripts, puts them in one global order, writes each
+ * epoch to the script log, if configured, and passes it on to the lock scheduler, which runs the
+ * scripts in that order without aborting any of them for a conflict.
+ *
+ * As the order is fixed before a script runs, the script log is all it takes to rebuild the
+ * balances: replaying it against the same initial accounts gives the same result.
+ *
+ * @author wolfdieterotte
+ */
+public class Sequencer extends Thread implements AbortCauses {
+
+    // configuration
+    private final long epochMillis;
+    private final int epochMaxSize;
+
+    private final LinkedBlockingQueue<ScriptRequest> incoming = new LinkedBlockingQueue<>();
+    private final LockScheduler scheduler;
+    private final TransactionManager transactionManager;
+
+    // the input of the execution, if it is logged
+    private final String scriptLogFile;
+    private ScriptLog scriptLog = null;
+
+    // scripts submitted and not finished yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // counters
+    private long sequence = 0;
+    private long epochs = 0;
+
+    // keepgoing turns false when the shutdown begins, stopped once the scheduler is gone
+    private volatile boolean keepgoing = true;
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     *
+     * @param transactionManager runs the scripts
+     * @param scriptRetry how long to back off before running a script again
+     * @param epochMillis how long an epoch collects scripts
+     * @param epochMaxSize at most so many scripts in an epoch
+     * @param executionThreads number of threads running scripts
+     * @param scriptLogFile file the epochs are written to, empty for none
+     * @throws IOException if the script log cannot be created
+     */
+    public Sequencer(TransactionManager transactionManager, ScriptRetry scriptRetry, long epochMillis, int epochMaxSize, int executionThreads,
+            String scriptLogFile) throws IOException {
+        this.transactionManager = transactionManager;
+        this.epochMillis = epochMillis;
+        this.epochMaxSize = Math.max(1, epochMaxSize);
+        this.scriptLogFile = scriptLogFile;
+        if (!scriptLogFile.isEmpty()) {
+            scriptLog = ScriptLog.create(scriptLogFile);
+        }
+
+        scheduler = new LockScheduler(transactionManager, scriptRetry, Math.max(1, executionThreads));
+        scheduler.start();
+        setDaemon(true);
+        setName("Sequencer");
+    }
+
+    /**
+     * Runs the scripts of a script log, epoch by epoch as they were logged, before the sequencer
+     * takes new ones. What is replayed is logged again, so the new log holds the whole input
+     *
+     * @param fileName the script log, must not be the one written to
+     * @return the number of scripts replayed
+     * @throws IOException if the log cannot be read
+     */
+    public long replay(String fileName) throws IOException {
+        ScriptLog replayLog = ScriptLog.open(fileName);
+        ArrayList<TransactionScript> scripts = new ArrayList<>();
+        long replayed = 0;
+
+        try {
+            while (replayLog.readEpoch(scripts)) {
+                ArrayList<ScriptRequest> epoch = new ArrayList<>(scripts.size());
+                for (TransactionScript script : scripts) {
+                    epoch.add(new ScriptRequest(script));
+                }
+                outstanding.addAndGet(epoch.size());
+                sequence(epoch);
+                for (ScriptRequest request : epoch) {
+                    request.result.whenComplete((balances, ex) -> outstanding.decrementAndGet());
+                }
+                replayed += epoch.size();
+                scripts.clear();
+            }
+        } finally {
+            replayLog.close();
+        }
+
+        // wait for all of them, so clients see the state the log left behind
+        while (outstanding.get() > 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Hands in a script
+     *
+     * @param script the script
+     * @return future completing with the balances read, or exceptionally with a TransactionAbortedException
+     */
+    public CompletableFuture<int[]> submit(TransactionScript script) {
+        ScriptRequest request = new ScriptRequest(script);
+        if (!keepgoing) {
+            request.result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+            return request.result;
+        }
+
+        // a script naming an account that does not exist is not sequenced, nor logged
+        try {
+            transactionManager.checkScript(script);
+        } catch (TransactionAbortedException ex) {
+            request.result.completeExceptionally(ex);
+            return request.result;
+        }
+
+        outstanding.incrementAndGet();
+        request.result.whenComplete((balances, ex) -> outstanding.decrementAndGet());
+        incoming.add(request);
+
+        // queued after the shutdown drained the queue, nobody is going to sequence it
+        if (stopped) {
+            request.result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+        return request.result;
+    }
+
+    /**
+     * Hands in a script and waits for it to finish
+     *
+     * @param script the script
+     * @return the balances read, one per step
+     * @throws TransactionAbortedException if the script was not run
+     */
+    public int[] execute(TransactionScript script) throws TransactionAbortedException {
+        try {
+            return submit(script).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<ScriptRequest> epoch = new ArrayList<>();
+
+        while (keepgoing || !incoming.isEmpty()) {
+            try {
+                // wait for the first script, then collect until the epoch is over or full
+                ScriptRequest first = incoming.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                epoch.add(first);
+
+                long end = System.nanoTime() + epochMillis * 1_000_000;
+                long remaining;
+                while (epoch.size() < epochMaxSize && (remaining = end - System.nanoTime()) > 0) {
+                    ScriptRequest next = incoming.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    epoch.add(next);
+                    incoming.drainTo(epoch, epochMaxSize - epoch.size());
+                }
+            } catch (InterruptedException e) {
+                incoming.drainTo(epoch);
+            }
+
+            sequence(epoch);
+            epoch = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Stops taking scripts, and waits for the ones taken to finish. Those not run by then are
+     * failed with SERVER_SHUTDOWN, so no caller waits for ever
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return the number of scripts that did not finish in time
+     */
+    public int shutDown(long timeoutMillis) {
+        keepgoing = false;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        int unfinished = outstanding.get();
+
+        // the sequencer thread puts what is left in the queue into a last epoch, then the scheduler
+        // fails what it did not run, and what came in afterwards is failed here
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutDown();
+        stopped = true;
+
+        ArrayList<ScriptRequest> left = new ArrayList<>();
+        incoming.drainTo(left);
+        for (ScriptRequest request : left) {
+            request.result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+
+        synchronized (this) {
+            if (scriptLog != null) {
+                scriptLog.close();
+                scriptLog = null;
+            }
+        }
+        return unfinished;
+    }
+
+    public synchronized long getScriptCount() {
+        return sequence;
+    }
+
+    public synchronized long getEpochCount() {
+        return epochs;
+    }
+
+    public long getRetryCount() {
+        return scheduler.getRetryCount();
+    }
+
+    /**
+     * Helper method returning what the sequencer did as text
+     *
+     * @return one line
+     */
+    public synchronized String getReport() {
+        return sequence + " scripts in " + epochs + " epochs, " + scheduler.getRetryCount() + " retried"
+                + (scriptLogFile.isEmpty() ? "" : ", logged to \"" + scriptLogFile + "\"");
+    }
+
+    /**
+     * Helper method putting an epoch in the global order, logging it and passing it on
+     */
+    private synchronized void sequence(ArrayList<ScriptRequest> epoch) {
+        if (epoch.isEmpty()) {
+            return;
+        }
+
+        ArrayList<TransactionScript> scripts = new ArrayList<>(epoch.size());
+        for (ScriptRequest request : epoch) {
+            request.sequence = sequence++;
+            scripts.add(request.script);
+        }
+        epochs++;
+
+        // the epoch is on disk before any of it runs
+        if (scriptLog != null) {
+            try {
+                scriptLog.writeEpoch(scripts);
+            } catch (IOException e) {
+                System.out.println("[Sequencer.sequence] Could not write to \"" + scriptLogFile + "\", script log stopped: " + e.getMessage());
+                scriptLog.close();
+                scriptLog = null;
+            }
+        }
+
+        scheduler.schedule(epoch);
+    }
+}
@@ -0,0 +1,23 @@
+package transaction.server.lock;
+
+/**
+ * Interface [AbortCauses] Defines the reasons a transaction can be aborted for.
+ * The cause travels with the TransactionAbortedException and is used to break down abort counts.
+ * 
+ * @author wolfdieterotte
+ */
+public interface AbortCauses 
+{
+    
+    public static final int LOCK_CONFLICT      = 0;  // a lock could not be granted
+    public static final int READ_ONLY_REPLICA  = 1;  // a write was attempted on a replica
+    public static final int SERVER_BUSY        = 2;  // the server did not admit the transaction
+    public static final int CLIENT_DISCONNECTED = 3; // the client went away in the middle of the transaction
+    public static final int IDLE_TIMEOUT       = 4;  // the client sent nothing for too long in the middle of the transaction
+    public static final int SERVER_SHUTDOWN    = 5;  // the server shut down before the transaction finished
+    public static final int LOCK_TIMEOUT       = 6;  // a wait for a lock took too long
+    public static final int VALIDATION_FAILED  = 7;  // an account read without a lock was written before the commit
+    public static final int INVALID_REQUEST    = 8;  // the request named an account that does not exist
+    
+    public static final int NUMBER_ABORT_CAUSES = 9;
+}
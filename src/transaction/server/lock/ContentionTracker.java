@@ -0,0 +1,189 @@
+package transaction.server.lock;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class [ContentionTracker] Decides, per region of REGION_SIZE accounts, whether reads take a read
+ * lock (PESSIMISTIC) or read without one and are validated at commit (OPTIMISTIC). Writes are
+ * always locked.
+ *
+ * For each region it counts accesses and conflicts, i.e. lock conflicts and failed validations.
+ * Every ADAPTIVE_WINDOW_MILLIS the share of conflicting accesses goes into a moving average, and a
+ * region turns pessimistic when the average rises above ADAPTIVE_HIGH_CONTENTION, and optimistic
+ * again only when it falls below ADAPTIVE_LOW_CONTENTION, so a region near a threshold does not
+ * keep flipping. Regions start out optimistic.
+ *
+ * With CONCURRENCY_CONTROL = OPTIMISTIC all regions stay optimistic, for comparison.
+ *
+ * @author wolfdieterotte
+ */
+public class ContentionTracker {
+
+    public static final String PESSIMISTIC = "PESSIMISTIC";
+    public static final String OPTIMISTIC = "OPTIMISTIC";
+    public static final String ADAPTIVE = "ADAPTIVE";
+
+    // configuration
+    private final boolean adaptive;
+    private final int regionSize;
+    private final double highContention;
+    private final double lowContention;
+    private final double smoothing;
+    private final long windowNanos;
+
+    // what happened in each region in the current window
+    private final AtomicLongArray accesses;
+    private final AtomicLongArray conflicts;
+
+    // moving average of the share of conflicting accesses, and 1 for optimistic regions
+    private final double[] contention;
+    private final AtomicIntegerArray optimistic;
+
+    private final AtomicLong windowEnd;
+
+    // counters
+    private final AtomicLong optimisticReads = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private long switchesToOptimistic = 0;
+    private long switchesToPessimistic = 0;
+
+    /**
+     * Constructor
+     *
+     * @param serverProperties the server's properties, for the REGION_SIZE and ADAPTIVE_* settings
+     * @param numberAccounts number of accounts
+     */
+    public ContentionTracker(Properties serverProperties, int numberAccounts) {
+        adaptive = ADAPTIVE.equalsIgnoreCase(serverProperties.getProperty("CONCURRENCY_CONTROL", PESSIMISTIC).trim());
+        regionSize = Math.max(1, Integer.parseInt(serverProperties.getProperty("REGION_SIZE", "16").trim()));
+        highContention = Double.parseDouble(serverProperties.getProperty("ADAPTIVE_HIGH_CONTENTION", "0.05").trim());
+        lowContention = Double.parseDouble(serverProperties.getProperty("ADAPTIVE_LOW_CONTENTION", "0.01").trim());
+        smoothing = Double.parseDouble(serverProperties.getProperty("ADAPTIVE_SMOOTHING", "0.3").trim());
+        windowNanos = Long.parseLong(serverProperties.getProperty("ADAPTIVE_WINDOW_MILLIS", "100").trim()) * 1_000_000;
+
+        int regions = (numberAccounts + regionSize - 1) / regionSize;
+        accesses = new AtomicLongArray(regions);
+        conflicts = new AtomicLongArray(regions);
+        contention = new double[regions];
+        optimistic = new AtomicIntegerArray(regions);
+        for (int region = 0; region < regions; region++) {
+            optimistic.set(region, 1);
+        }
+
+        windowEnd = new AtomicLong(System.nanoTime() + windowNanos);
+    }
+
+    /**
+     * Helper method telling whether reads of an account go without a lock
+     *
+     * @param account the account number
+     * @return true if its region is optimistic
+     */
+    public boolean isOptimistic(int account) {
+        return optimistic.get(account / regionSize) == 1;
+    }
+
+    /**
+     * Counts an access to an account, a lock asked for or a read without one
+     *
+     * @param account the account number
+     * @param lockless true if it was read without a lock
+     */
+    public void recordAccess(int account, boolean lockless) {
+        accesses.incrementAndGet(account / regionSize);
+        if (lockless) {
+            optimisticReads.incrementAndGet();
+        }
+
+        // whoever gets past the end of the window first moves on to the next
+        long end = windowEnd.get();
+        long now = System.nanoTime();
+        if (adaptive && now >= end && windowEnd.compareAndSet(end, now + windowNanos)) {
+            adjust();
+        }
+    }
+
+    /**
+     * Counts a conflict on an account, a lock not granted right away or a failed validation
+     *
+     * @param account the account number
+     * @param validation true if a validation failed
+     */
+    public void recordConflict(int account, boolean validation) {
+        conflicts.incrementAndGet(account / regionSize);
+        if (validation) {
+            validationFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Helper method folding the window that ended into the averages, and switching the regions
+     * crossing a threshold
+     */
+    private synchronized void adjust() {
+        for (int region = 0; region < contention.length; region++) {
+            long regionAccesses = accesses.getAndSet(region, 0);
+            long regionConflicts = conflicts.getAndSet(region, 0);
+
+            // a quiet region keeps its average
+            if (regionAccesses == 0) {
+                continue;
+            }
+            contention[region] = smoothing * Math.min(1.0, (double) regionConflicts / regionAccesses)
+                    + (1 - smoothing) * contention[region];
+
+            if (optimistic.get(region) == 1 && contention[region] > highContention) {
+                optimistic.set(region, 0);
+                switchesToPessimistic++;
+            } else if (optimistic.get(region) == 0 && contention[region] < lowContention) {
+                optimistic.set(region, 1);
+                switchesToOptimistic++;
+            }
+        }
+    }
+
+    /**
+     * Helper method returning the state of the regions as text
+     *
+     * @param topN number of most contended regions to list
+     * @return one line, and one per region listed
+     */
+    public synchronized String getReport(int topN) {
+        int pessimisticRegions = 0;
+        for (int region = 0; region < contention.length; region++) {
+            pessimisticRegions += 1 - optimistic.get(region);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(adaptive ? ADAPTIVE : OPTIMISTIC).append(", ").append(contention.length).append(" regions of ")
+                .append(regionSize).append(" accounts, ").append(pessimisticRegions).append(" pessimistic; ")
+                .append(optimisticReads.get()).append(" reads without lock, ").append(validationFailures.get())
+                .append(" failed validations");
+        if (adaptive) {
+            report.append("; ").append(switchesToPessimistic).append(" switches to pessimistic, ")
+                    .append(switchesToOptimistic).append(" to optimistic");
+        }
+        report.append("\n");
+
+        // the most contended regions, selected one after the other, there are few to list
+        boolean[] listed = new boolean[contention.length];
+        for (int n = 0; n < Math.min(topN, contention.length); n++) {
+            int top = -1;
+            for (int region = 0; region < contention.length; region++) {
+                if (!listed[region] && contention[region] > 0 && (top < 0 || contention[region] > contention[top])) {
+                    top = region;
+                }
+            }
+            if (top < 0) {
+                break;
+            }
+            listed[top] = true;
+            report.append(String.format("  accounts %6d-%-6d  contention %6.3f  %s%n", top * regionSize,
+                    top * regionSize + regionSize - 1, contention[top], optimistic.get(top) == 1 ? OPTIMISTIC : PESSIMISTIC));
+        }
+        return report.toString();
+    }
+}
@@ -1,15 +1,70 @@
 package transaction.server.lock;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import transaction.server.transaction.Transaction;
 import transaction.server.account.Account;
+import transaction.server.log.LogLevels;
+import transaction.server.metrics.Metrics;
+import transaction.server.trace.LockWaitEvent;
+import transaction.server.trace.TracePhases;
 
 /**
+ * Class [Lock] The lock on one account. Transactions ask for it with acquireAsync(), which does
+ * not block, or with acquire(), which waits for the answer.
  *
  * @author wolfdieterotte
  */
-public class Lock implements LockTypes {
+public class Lock implements LockTypes, LogLevels, AbortCauses {
+
+    // what acquireAsync() returns when the lock was set right away, never to be completed by anybody
+    public static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+    // times out the waits of all locks, started when the first wait with a timeout begins
+    private static ScheduledExecutorService timer = null;
+
+    /**
+     * A transaction waiting for this lock
+     */
+    private static class LockRequest {
+        final Transaction transaction;
+        final int lockType;
+        final long waitStart;
+        final LockWaitEvent waitEvent;
+        final LockFuture future;
+        ScheduledFuture<?> timeout = null;
+
+        LockRequest(Transaction transaction, int lockType, long waitStart, LockWaitEvent waitEvent) {
+            this.transaction = transaction;
+            this.lockType = lockType;
+            this.waitStart = waitStart;
+            this.waitEvent = waitEvent;
+            this.future = new LockFuture(transaction);
+        }
+    }
+
+    /**
+     * The future of a waiting transaction. A before image taken when the lock is granted is kept
+     * here, and goes to the transaction only once it sees the grant in await(): a transaction
+     * that gave up on the wait meanwhile must not roll back an account it never held
+     */
+    private static class LockFuture extends CompletableFuture<Void> {
+        final Transaction transaction;
+        int account = -1;
+        int balance;
+
+        LockFuture(Transaction transaction) {
+            this.transaction = transaction;
+        }
+    }
 
     // the account this lock protects
     private final Account account;
@@ -20,11 +75,15 @@ public class Lock implements LockTypes {
     // the current lock holders
     private final ArrayList<Transaction> lockHolders;
 
-    // the current lock requestors
-    private final ArrayList<Transaction> lockRequestors;
+    // the transactions waiting for this lock, in the order they asked
+    private final ArrayDeque<LockRequest> lockRequestors;
 
-    // for logging purposes
-    private static String preFixLogString = "[Lock.acquire]                 |";
+    // contention counters for this account: how often a transaction asked for this lock while it was
+    // held in a conflicting mode, how often one went to sleep or was aborted over it, and the time spent waiting
+    private long conflicts = 0;
+    private long waits = 0;
+    private long abortsCaused = 0;
+    private long totalWaitNanos = 0;
 
     /**
      * Constructor
@@ -35,7 +94,7 @@ public class Lock implements LockTypes {
         this.account = account;
 
         this.lockHolders = new ArrayList();
-        this.lockRequestors = new ArrayList();
+        this.lockRequestors = new ArrayDeque<>();
 
         this.currentLockType = EMPTY_LOCK;
     }
@@ -43,7 +102,7 @@ public class Lock implements LockTypes {
     /**
      * One of the two key methods, used to acquire a lock on an account Calling
      * this method on a lock, it is understood that the lock is attached to a
-     * certain account
+     * certain account. Blocking version, aborting right away on a conflict
      *
      * @param transaction Transaction trying to set lock
      * @param newLockType The lock type to be set
@@ -51,56 +110,125 @@ public class Lock implements LockTypes {
      * @throws TransactionAbortedException Exception that will be thrown when a
      * deadlock is detected
      */
-    public synchronized void acquire(Transaction transaction, int newLockType) throws TransactionAbortedException {
-        transaction.log(preFixLogString
-                + " try to set " + getLockTypeString(newLockType)
-                + " on account #" + account.getNumber());
+    public void acquire(Transaction transaction, int newLockType) throws TransactionAbortedException {
+        CompletableFuture<Void> request = acquireAsync(transaction, newLockType, false, 0);
+        if (request != GRANTED) {
+            await(request);
+        }
+    }
 
-        // begin conflict loop >>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>
-        while (isConflict(transaction, newLockType)) {
-            // the lock this transaction tries to set is conflicting, so it is about getting blocked
-            // if other transactions wait for a lock that this one holds, we may have a deadlock
-            // in this case we rather abort this transaction
+    /**
+     * Asks for a lock without blocking. If the lock can be set, it is, and GRANTED is returned.
+     * Otherwise the transaction either is aborted right away, or, with wait-die and if it is older
+     * than all transactions holding the lock, it waits: it gets a future that completes once the
+     * lock is set, or exceptionally if the wait times out. A transaction giving up on the wait
+     * cancels the future, which takes it out of the queue.
+     *
+     * Wait-die only lets older transactions (smaller timestamps) wait for younger ones, so waits never
+     * form a cycle and there is no deadlock to detect
+     *
+     * @param transaction Transaction trying to set lock
+     * @param newLockType The lock type to be set
+     * @param waitDie true to wait when older than the holders, false to abort on any conflict
+     * @param timeoutMillis how long to wait at most, 0 for ever
+     * @return GRANTED, or a future completing when the lock is set, exceptionally with a
+     *         TransactionAbortedException if the transaction is aborted instead
+     */
+    public CompletableFuture<Void> acquireAsync(Transaction transaction, int newLockType, boolean waitDie, long timeoutMillis) {
+        LockRequest request;
 
-            // run through all the locks that this transaction has
-            // look at each lock's lock requestors. if not empty, this transaction needs to abort
-            // ...
+        synchronized (this) {
+            transaction.log(LOCK, "[Lock.acquire]                 | try to set {} on account #{}", getLockTypeString(newLockType), account.getNumber());
+
+            // transactions not holding the lock yet queue up behind those waiting for it, rather than
+            // overtaking them, so a stream of readers cannot starve a writer
+            boolean overtaking = !lockRequestors.isEmpty() && !lockHolders.contains(transaction);
 
-            // if there are requestors
-            if(!lockHolders.isEmpty())
-            {
-                System.out.println("\nTransaction #" + transaction.getTransactionID() + " aborting transaction");
-                
-                // throw transaction abortion exception
-                throw new TransactionAbortedException();
+            if (!overtaking && !isConflict(transaction, newLockType)) {
+                Metrics.recorder().recordLockWait(newLockType, 0);
+                grant(transaction, newLockType, null);
+                return GRANTED;
             }
-            
-            lockRequestors.add(transaction);
 
-            try {
-                transaction.log("Transaction #" + transaction.getTransactionID() + " going to sleep, waiting for lock");
-                // start sleeping >>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>
-                // ============================
-                wait();
-                // ============================
-                // woke up <<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
-                transaction.log("Transaction #" + transaction.getTransactionID() + " waking up, waiting for lock");
+            long waitStart = System.nanoTime();
+            conflicts++;
 
-            } catch (InterruptedException e) {
-                // ignore ...
+            LockWaitEvent waitEvent = new LockWaitEvent();
+            waitEvent.begin();
+
+            // the lock this transaction tries to set is conflicting, so it is about getting blocked;
+            // if it may not wait for the holders and those queued before it, we rather abort it than risk a deadlock
+            if (!waitDie || !isOldest(transaction)) {
+                transaction.log(INFO, "[Lock.acquire]                 | aborting transaction, conflict on account #{}", account.getNumber());
+
+                abortsCaused++;
+                endWait(transaction, newLockType, waitStart, waitEvent, true);
+                return CompletableFuture.failedFuture(new TransactionAbortedException(LOCK_CONFLICT, contention(transaction)));
             }
 
-            lockRequestors.remove(transaction);
+            transaction.log(LOCK, "[Lock.acquire]                 | going to sleep, waiting for lock on account #{}", account.getNumber());
+            request = new LockRequest(transaction, newLockType, waitStart, waitEvent);
+            lockRequestors.add(request);
+            waits++;
 
+            if (timeoutMillis > 0) {
+                request.timeout = getTimer().schedule(() -> expire(request), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // a transaction giving up on the wait leaves the queue
+        request.future.whenComplete((result, failure) -> {
+            if (failure != null) {
+                withdraw(request);
+            }
+        });
+        return request.future;
+    }
+
+    /**
+     * Waits for a lock asked for with acquireAsync(). A write lock granted after waiting records
+     * its before image in the transaction here, so the future must be waited for with this method
+     *
+     * @param request the future returned by acquireAsync()
+     * @throws TransactionAbortedException if the transaction was aborted instead of getting the lock
+     */
+    public static void await(CompletableFuture<Void> request) throws TransactionAbortedException {
+        try {
+            request.get();
+            if (request instanceof LockFuture) {
+                LockFuture granted = (LockFuture) request;
+                if (granted.account >= 0) {
+                    granted.transaction.addBeforeImage(granted.account, granted.balance);
+                }
+            }
+        } catch (ExecutionException e) {
+            throw (TransactionAbortedException) e.getCause();
+        } catch (InterruptedException | CancellationException e) {
+            request.cancel(false);
+            throw new TransactionAbortedException();
         }
-        // end conflict loop <<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
+    }
 
+    /**
+     * Helper method setting the lock, the caller holds this lock's monitor
+     *
+     * @param waiting the future of a transaction that waited, which keeps the before image, null if it did not wait
+     */
+    private void grant(Transaction transaction, int newLockType, LockFuture waiting) {
         // save the before image in transaction, if not already there
         if (currentLockType != WRITE_LOCK && newLockType == WRITE_LOCK) {
             // ...
 
-            // set before image (part of transaction)
-            transaction.addBeforeImage(account.getNumber(), account._read());
+            // set before image (part of transaction), for a waiting transaction once it sees the grant
+            if (waiting == null) {
+                transaction.addBeforeImage(account.getNumber(), account._read());
+            } else {
+                waiting.account = account.getNumber();
+                waiting.balance = account._read();
+            }
+
+            // readers without a lock see from now on that the account is being written
+            account.nextStamp();
         }
 
         // set the lock - implementation of pseudocode from the book
@@ -108,7 +236,7 @@ public class Lock implements LockTypes {
         if (lockHolders.isEmpty()) {
             // ...
 
-            transaction.log("adding lock");
+            transaction.log(LOCK, "[Lock.acquire]                 | adding lock");
 
             // set current lock type to new lock type
             currentLockType = newLockType;
@@ -125,7 +253,7 @@ public class Lock implements LockTypes {
             // so just share the (read) lock
             // ...
 
-            transaction.log("adding lock");
+            transaction.log(LOCK, "[Lock.acquire]                 | adding lock");
 
             // add lock to transaction
             transaction.addLock(this);
@@ -137,7 +265,7 @@ public class Lock implements LockTypes {
         // we now check if the transaction is the sole lock holder and if the lock needs to be promoted        
         else if (currentLockType == READ_LOCK && newLockType == WRITE_LOCK) {
             // ...
-            transaction.log("upgrading lock");
+            transaction.log(LOCK, "[Lock.acquire]                 | upgrading lock");
 
             // set current lock type to new lock type (write lock)
             currentLockType = newLockType;
@@ -152,30 +280,181 @@ public class Lock implements LockTypes {
         }
     }
 
+    /**
+     * Helper method counting the other transactions holding or waiting for this lock, the caller
+     * holds this lock's monitor
+     */
+    private int contention(Transaction transaction) {
+        return lockHolders.size() - (lockHolders.contains(transaction) ? 1 : 0) + lockRequestors.size();
+    }
+
+    /**
+     * Helper method checking whether a transaction is older than all others holding or waiting for this lock
+     */
+    private boolean isOldest(Transaction transaction) {
+        for (Transaction holder : lockHolders) {
+            if (holder != transaction && isOlder(holder, transaction)) {
+                return false;
+            }
+        }
+        for (LockRequest request : lockRequestors) {
+            if (isOlder(request.transaction, transaction)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method ordering transactions by age, the transaction ID breaks ties, so two
+     * transactions never both count as the older one
+     */
+    private static boolean isOlder(Transaction one, Transaction other) {
+        return one.getTimestamp() < other.getTimestamp()
+                || (one.getTimestamp() == other.getTimestamp() && one.getTransactionID() < other.getTransactionID());
+    }
+
+    /**
+     * Helper method setting the lock for the waiting transactions, in the order they asked, up to
+     * the first one it still conflicts with; the caller holds this lock's monitor and completes
+     * their futures once it has let go of it
+     *
+     * @return the requests granted, null if none
+     */
+    private ArrayList<LockRequest> grantWaiting() {
+        ArrayList<LockRequest> granted = null;
+
+        while (!lockRequestors.isEmpty()) {
+            LockRequest request = lockRequestors.peek();
+            if (isConflict(request.transaction, request.lockType)) {
+                break;
+            }
+
+            lockRequestors.poll();
+            request.transaction.log(LOCK, "[Lock.acquire]                 | waking up, waiting for lock on account #{}", account.getNumber());
+
+            long waitNanos = System.nanoTime() - request.waitStart;
+            totalWaitNanos += waitNanos;
+            Metrics.recorder().recordLockWait(request.lockType, waitNanos);
+            endWait(request.transaction, request.lockType, request.waitStart, request.waitEvent, false);
+            grant(request.transaction, request.lockType, request.future);
+
+            if (granted == null) {
+                granted = new ArrayList<>();
+            }
+            granted.add(request);
+        }
+        return granted;
+    }
+
+    /**
+     * Helper method telling the transactions granted the lock, outside of this lock's monitor;
+     * a transaction that gave up on the wait meanwhile gives the lock right back
+     */
+    private void complete(ArrayList<LockRequest> granted) {
+        if (granted == null) {
+            return;
+        }
+        for (LockRequest request : granted) {
+            if (request.timeout != null) {
+                request.timeout.cancel(false);
+            }
+            if (!request.future.complete(null)) {
+                release(request.transaction);
+            }
+        }
+    }
+
+    /**
+     * Helper method aborting a waiting transaction whose wait timed out
+     */
+    private void expire(LockRequest request) {
+        ArrayList<LockRequest> granted;
+        int contention;
+
+        synchronized (this) {
+            if (!lockRequestors.remove(request)) {
+                return;
+            }
+            request.transaction.log(INFO, "[Lock.acquire]                 | aborting transaction, wait for account #{} timed out", account.getNumber());
+            abortsCaused++;
+            totalWaitNanos += System.nanoTime() - request.waitStart;
+            endWait(request.transaction, request.lockType, request.waitStart, request.waitEvent, true);
+            contention = contention(request.transaction);
+
+            // the ones queued behind it may go now
+            granted = grantWaiting();
+        }
+        request.future.completeExceptionally(new TransactionAbortedException(LOCK_TIMEOUT, contention));
+        complete(granted);
+    }
+
+    /**
+     * Helper method taking a request out of the queue after its transaction gave up on it
+     */
+    private void withdraw(LockRequest request) {
+        ArrayList<LockRequest> granted = null;
+
+        synchronized (this) {
+            if (lockRequestors.remove(request)) {
+                granted = grantWaiting();
+            }
+        }
+        complete(granted);
+    }
+
+    /**
+     * Helper method recording a lock wait in the transaction's trace, if traced, and as JFR event
+     */
+    private void endWait(Transaction transaction, int lockType, long waitStart, LockWaitEvent waitEvent, boolean aborted) {
+        if (transaction.getTrace() != null) {
+            transaction.getTrace().span(TracePhases.LOCK_WAIT, waitStart, account.getNumber());
+        }
+
+        waitEvent.end();
+        if (waitEvent.shouldCommit()) {
+            waitEvent.transactionID = transaction.getTransactionID();
+            waitEvent.account = account.getNumber();
+            waitEvent.lockType = getLockTypeString(lockType);
+            waitEvent.aborted = aborted;
+            waitEvent.commit();
+        }
+    }
+
     /**
      * The second of the two key methods, called to release a lock on an account
      * This is the counterpart to acquire()
      *
      * @param transaction
      */
-    public synchronized void release(Transaction transaction) {
-        lockHolders.remove(transaction); // remove this holder
+    public void release(Transaction transaction) {
+        ArrayList<LockRequest> granted;
 
-        if (lockHolders.isEmpty()) {
-            currentLockType = EMPTY_LOCK;
+        synchronized (this) {
+            // a write lock has a single holder, the account is not written any more
+            if (currentLockType == WRITE_LOCK && lockHolders.contains(transaction)) {
+                account.nextStamp();
+            }
+            lockHolders.remove(transaction); // remove this holder
 
-            if (lockRequestors.isEmpty()) {
-                // this lock is not used any more, we could delete it
-                // but, in a heavily loaded system it will be recreated quickly,
-                // so we don't, for performance reasons
+            if (lockHolders.isEmpty()) {
+                currentLockType = EMPTY_LOCK;
+
+                if (lockRequestors.isEmpty()) {
+                    // this lock is not used any more, we could delete it
+                    // but, in a heavily loaded system it will be recreated quickly,
+                    // so we don't, for performance reasons
+                }
             }
+
+            // this is the counter operation to waiting in acquireAsync()
+            // hand the lock to the transactions waiting for it that do not conflict any more
+            // ============================
+            granted = lockRequestors.isEmpty() ? null : grantWaiting();
+            // ============================
         }
 
-        // this is the counter operation to the wait() call in acquire()
-        // wake up all transactions waiting on this lock to be released
-        // ============================
-        notifyAll();
-        // ============================
+        complete(granted);
     }
 
     /**
@@ -214,6 +493,80 @@ public class Lock implements LockTypes {
         return currentLockType;
     }
 
+    /**
+     * Helper method to return the transactions currently holding this lock
+     *
+     * @return a copy of the lock holders
+     */
+    public synchronized ArrayList<Transaction> getLockHolders() {
+        return new ArrayList<>(lockHolders);
+    }
+
+    /**
+     * Helper method to return the transactions currently waiting for this lock
+     *
+     * @return a copy of the lock requestors
+     */
+    public synchronized ArrayList<Transaction> getLockRequestors() {
+        ArrayList<Transaction> requestors = new ArrayList<>(lockRequestors.size());
+        for (LockRequest request : lockRequestors) {
+            requestors.add(request.transaction);
+        }
+        return requestors;
+    }
+
+    /**
+     * Helper method to return how often this lock was requested while held in a conflicting mode
+     *
+     * @return the number of conflicts
+     */
+    public synchronized long getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Helper method to return how often transactions went to sleep waiting for this lock
+     *
+     * @return the number of waits
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * Helper method to return how many transactions were aborted over this lock
+     *
+     * @return the number of aborts
+     */
+    public synchronized long getAbortsCaused() {
+        return abortsCaused;
+    }
+
+    /**
+     * Helper method to return the total time transactions spent waiting for this lock
+     *
+     * @return the wait time in nanoseconds
+     */
+    public synchronized long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /**
+     * Helper method returning the timer for lock wait timeouts, a daemon thread shared by all locks
+     */
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "LockTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return timer;
+    }
+
     /**
      * Helper method to return the account this lock is attached to
      *
@@ -2,30 +2,129 @@ package transaction.server.lock;
 
 import java.util.HashMap;
 import transaction.server.account.Account;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import transaction.server.log.LogLevels;
+import transaction.server.metrics.HotAccountProfiler;
+import transaction.server.metrics.Metrics;
+import transaction.server.metrics.MetricsRecorder;
 import transaction.server.transaction.Transaction;
 
 /**
+ * Class [LockManager] Hands out the locks on the accounts. On a conflict, a transaction is
+ * aborted right away (NO_WAIT), or, with WAIT_DIE, waits if it is older than the holders of the
+ * lock and is aborted otherwise; a wait can be bounded by a timeout.
+ *
+ * Locks can be asked for without blocking with lockAsync(), so a caller can park a waiting
+ * transaction without parking a thread; lock() is the blocking version of it.
+ *
+ * With a ContentionTracker, reads of accounts in quiet regions go without a read lock and are
+ * validated when the transaction commits, see validate().
  *
  * @author wolfdieterotte
  */
-public class LockManager implements LockTypes 
+public class LockManager implements LockTypes, LogLevels, AbortCauses 
 {
 
-    private static HashMap<Account, Lock> locks;
-    private static boolean applyLocking;
+    // conflict policies
+    public static final int NO_WAIT  = 1;
+    public static final int WAIT_DIE = 2;
+
+    private final HashMap<Account, Lock> locks;
+    private final boolean applyLocking;
+    private final int conflictPolicy;
+    private final long waitTimeoutMillis;
+    
+    // picks optimistic or pessimistic reads per region of accounts, null to always lock
+    private final ContentionTracker contentionTracker;
+
+    // samples the conflicts to find the hottest accounts, null not to
+    private final HotAccountProfiler hotAccountProfiler;
 
     public LockManager(boolean applyLocking) 
     {
-        locks = new HashMap<>();
-        LockManager.applyLocking = applyLocking;
+        this(applyLocking, NO_WAIT, 0);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param applyLocking false to run without locks
+     * @param conflictPolicy NO_WAIT or WAIT_DIE
+     * @param waitTimeoutMillis how long a transaction waits for a lock at most, 0 for ever
+     */
+    public LockManager(boolean applyLocking, int conflictPolicy, long waitTimeoutMillis) 
+    {
+        this(applyLocking, conflictPolicy, waitTimeoutMillis, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param applyLocking false to run without locks
+     * @param conflictPolicy NO_WAIT or WAIT_DIE
+     * @param waitTimeoutMillis how long a transaction waits for a lock at most, 0 for ever
+     * @param contentionTracker decides which reads go without a lock, null to lock all of them
+     */
+    public LockManager(boolean applyLocking, int conflictPolicy, long waitTimeoutMillis, ContentionTracker contentionTracker) 
+    {
+        this(applyLocking, conflictPolicy, waitTimeoutMillis, contentionTracker, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param applyLocking false to run without locks
+     * @param conflictPolicy NO_WAIT or WAIT_DIE
+     * @param waitTimeoutMillis how long a transaction waits for a lock at most, 0 for ever
+     * @param contentionTracker decides which reads go without a lock, null to lock all of them
+     * @param hotAccountProfiler samples the lock conflicts, null not to
+     */
+    public LockManager(boolean applyLocking, int conflictPolicy, long waitTimeoutMillis, ContentionTracker contentionTracker,
+                       HotAccountProfiler hotAccountProfiler) 
+    {
+        this.locks = new HashMap<>();
+        this.applyLocking = applyLocking;
+        this.conflictPolicy = conflictPolicy;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.contentionTracker = applyLocking ? contentionTracker : null;
+        this.hotAccountProfiler = hotAccountProfiler;
     }
 
     
     public void lock(Account account, Transaction transaction, int lockType) throws TransactionAbortedException
+    {
+        CompletableFuture<Void> request = lockAsync(account, transaction, lockType);
+        if (request != Lock.GRANTED) 
+        {
+            // while waiting, the transaction can be reclaimed by cancelling the request
+            transaction.setLockWait(request);
+            try 
+            {
+                Lock.await(request);
+            } 
+            finally 
+            {
+                transaction.setLockWait(null);
+            }
+        }
+    }
+
+    
+    /**
+     * Asks for a lock without blocking
+     * 
+     * @param account the account to lock
+     * @param transaction the transaction asking
+     * @param lockType READ_LOCK or WRITE_LOCK
+     * @return Lock.GRANTED if the lock is set, otherwise a future completing when it is set, or
+     *         exceptionally with a TransactionAbortedException if the transaction is aborted instead;
+     *         cancel it to give up waiting; wait for it with Lock.await(), which records the before image
+     */
+    public CompletableFuture<Void> lockAsync(Account account, Transaction transaction, int lockType)
     {
         // return, if we don't do locking
-        if (!applyLocking) return;
+        if (!applyLocking) return Lock.GRANTED;
         
         // get the lock that is attached to this account
         Lock lock;
@@ -39,12 +138,96 @@ public class LockManager implements LockTypes
                 lock = new Lock(account);
                 locks.put(account, lock);
 
-                transaction.log("[LockManager.setLock]          | lock created, account #" + account.getNumber());
+                transaction.log(LOCK, "[LockManager.setLock]          | lock created, account #{}", account.getNumber());
             }
         }
      // ------------------------------------
-        lock.acquire(transaction, lockType);
+        CompletableFuture<Void> request = lock.acquireAsync(transaction, lockType, conflictPolicy == WAIT_DIE, waitTimeoutMillis);
      // ------------------------------------
+
+        if (contentionTracker != null) 
+        {
+            contentionTracker.recordAccess(account.getNumber(), false);
+            if (request != Lock.GRANTED) 
+            {
+                contentionTracker.recordConflict(account.getNumber(), false);
+            }
+        }
+        if (hotAccountProfiler != null && request != Lock.GRANTED) 
+        {
+            hotAccountProfiler.recordConflict(account.getNumber());
+        }
+        return request;
+    }
+
+    
+    /**
+     * Helper method telling whether an account is read without a read lock
+     * 
+     * @param account the account
+     * @return true if the read is validated at commit instead
+     */
+    public boolean isOptimistic(Account account) 
+    {
+        return contentionTracker != null && contentionTracker.isOptimistic(account.getNumber());
+    }
+
+    
+    /**
+     * Counts a read done without a read lock
+     * 
+     * @param account the account read
+     */
+    public void recordOptimisticRead(Account account) 
+    {
+        contentionTracker.recordAccess(account.getNumber(), true);
+    }
+
+    
+    /**
+     * Validates the reads a committing transaction did without a read lock: none of the accounts
+     * may have been write-locked by another transaction since. Must be called while the transaction
+     * still holds its write locks, before its writes are installed
+     * 
+     * @param transaction the committing transaction
+     * @throws TransactionAbortedException with VALIDATION_FAILED if an account changed
+     */
+    public void validate(Transaction transaction) throws TransactionAbortedException 
+    {
+        for (int index = 0; index < transaction.getOptimisticReadCount(); index++) 
+        {
+            Account account = transaction.getOptimisticAccount(index);
+            long stamp = transaction.getOptimisticStamp(index);
+            long current = account.getStamp();
+
+            // unchanged, or write-locked since by the transaction itself and nobody in between
+            if (current == stamp || (current == stamp + 1 && holdsWriteLock(transaction, account))) 
+            {
+                continue;
+            }
+
+            transaction.log(INFO, "[LockManager.validate]         | validation failed, account #{}", account.getNumber());
+            contentionTracker.recordConflict(account.getNumber(), true);
+
+            // the stamp moves twice per write, when the write lock is set and when it is released
+            throw new TransactionAbortedException(VALIDATION_FAILED, (int) Math.max(1, Math.min(Integer.MAX_VALUE, (current - stamp) / 2)));
+        }
+    }
+
+    
+    /**
+     * Helper method checking whether a transaction holds the write lock on an account
+     */
+    private static boolean holdsWriteLock(Transaction transaction, Account account) 
+    {
+        for (Lock lock : transaction.getLocks()) 
+        {
+            if (lock.getAccount() == account) 
+            {
+                return lock.getLockType() == WRITE_LOCK;
+            }
+        }
+        return false;
     }
 
     
@@ -53,12 +236,15 @@ public class LockManager implements LockTypes
         // return, if we don't do locking
         if (!applyLocking) return;
         
-        Iterator<Lock> lockIterator = transaction.getLocks().listIterator();
+        ArrayList<Lock> transactionLocks = transaction.getLocks();
+        MetricsRecorder recorder = Metrics.recorder();
+        long now = System.nanoTime();
         Lock currentLock;
-        while (lockIterator.hasNext()) 
+        for (int index = 0; index < transactionLocks.size(); index++) 
         {
-            currentLock = lockIterator.next();
-            transaction.log("[LockManager.unLock]           | release " + Lock.getLockTypeString(currentLock.getLockType()) + ", account #" + currentLock.getAccount().getNumber());
+            currentLock = transactionLocks.get(index);
+            transaction.log(LOCK, "[LockManager.unLock]           | release {}, account #{}", Lock.getLockTypeString(currentLock.getLockType()), currentLock.getAccount().getNumber());
+            recorder.recordLockHold(currentLock.getLockType(), now - transaction.getLockTime(index));
          // ---------------------------------
             currentLock.release(transaction);
          // ---------------------------------
@@ -66,8 +252,49 @@ public class LockManager implements LockTypes
     }
     
     
+    public int getConflictPolicy() 
+    {
+        return conflictPolicy;
+    }
+    
+    
+    public ContentionTracker getContentionTracker() 
+    {
+        return contentionTracker;
+    }
+    
+    
+    public HotAccountProfiler getHotAccountProfiler() 
+    {
+        return hotAccountProfiler;
+    }
+    
+    
+    /**
+     * Helper method to translate a conflict policy name from the properties into its constant
+     *
+     * @param conflictPolicyString NO_WAIT or WAIT_DIE
+     * @return the conflict policy constant, NO_WAIT if the name is not known
+     */
+    public static int getConflictPolicy(String conflictPolicyString) 
+    {
+        return "WAIT_DIE".equalsIgnoreCase(conflictPolicyString == null ? "" : conflictPolicyString.trim()) ? WAIT_DIE : NO_WAIT;
+    }
+    
+    
     public HashMap<Account, Lock> getLocks() 
     {
         return locks;
     }
+    
+    
+    /**
+     * Helper method returning the locks, safe to iterate while the server is running
+     * 
+     * @return a copy of the locks
+     */
+    public synchronized ArrayList<Lock> getLocksSnapshot() 
+    {
+        return new ArrayList<>(locks.values());
+    }
 }
@@ -9,8 +9,74 @@ package transaction.server.lock;
  *
  * @author wolfdieterotte
  */
-public class TransactionAbortedException extends Exception{
-        //public TransactionAbortException(String errorMessage) {
-        //super(errorMessage);
-    //}
+public class TransactionAbortedException extends Exception implements AbortCauses {
+    
+    // why the transaction was aborted, one of the constants in AbortCauses
+    private final int abortCause;
+
+    // how many other transactions held or waited for the lock in the way, 0 if not known;
+    // goes back to the client with the abort, as a hint how long to back off before restarting
+    private final int contention;
+    
+    public TransactionAbortedException() {
+        this(LOCK_CONFLICT);
+    }
+    
+    public TransactionAbortedException(int abortCause) {
+        this(abortCause, 0);
+    }
+    
+    public TransactionAbortedException(int abortCause, int contention) {
+        this.abortCause = abortCause;
+        this.contention = contention;
+    }
+    
+    public int getAbortCause() {
+        return abortCause;
+    }
+    
+    public int getContention() {
+        return contention;
+    }
+    
+    /**
+     * Helper method to return a convenient string pertaining to the abort cause
+     * symbolic constant
+     *
+     * @param abortCause
+     * @return the string pertaining to the abort cause
+     */
+    public static String getAbortCauseString(int abortCause) {
+        String abortCauseString = "Abort cause not implemented";
+        switch (abortCause) {
+            case LOCK_CONFLICT:
+                abortCauseString = "LOCK_CONFLICT";
+                break;
+            case READ_ONLY_REPLICA:
+                abortCauseString = "READ_ONLY_REPLICA";
+                break;
+            case SERVER_BUSY:
+                abortCauseString = "SERVER_BUSY";
+                break;
+            case CLIENT_DISCONNECTED:
+                abortCauseString = "CLIENT_DISCONNECTED";
+                break;
+            case IDLE_TIMEOUT:
+                abortCauseString = "IDLE_TIMEOUT";
+                break;
+            case SERVER_SHUTDOWN:
+                abortCauseString = "SERVER_SHUTDOWN";
+                break;
+            case LOCK_TIMEOUT:
+                abortCauseString = "LOCK_TIMEOUT";
+                break;
+            case VALIDATION_FAILED:
+                abortCauseString = "VALIDATION_FAILED";
+                break;
+            case INVALID_REQUEST:
+                abortCauseString = "INVALID_REQUEST";
+                break;
+        }
+        return abortCauseString;
+    }
 }
@@ -0,0 +1,268 @@
+package transaction.server.log;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class [EventLog] Asynchronous, allocation-free event logging for the server.
+ *
+ * Producers claim a slot in a preallocated ring buffer of event records by incrementing an
+ * atomic sequence counter, fill in the slot and publish it. The sequence number doubles as the
+ * system-wide, unique number log messages are ordered by. A single background writer thread
+ * drains the ring buffer in sequence order and formats the events into lines written to a file
+ * (or the console). Message texts are constants with "{}" placeholders, the arguments are only
+ * formatted into them on the writer thread, so logging costs a few field writes on the caller's side.
+ *
+ * @author wolfdieterotte
+ */
+public class EventLog implements LogLevels
+{
+
+    // the configured level, events above it are dropped right away
+    private static volatile int level = INFO;
+
+    // the ring buffer, its size is a power of two
+    private static Event[] ring;
+    private static int mask;
+
+    // next sequence number to be claimed by a producer
+    private static final AtomicLong claimed = new AtomicLong(0);
+
+    // counter for log lines kept with their transactions
+    private static final AtomicLong viewCounter = new AtomicLong(0);
+
+    // next sequence number to be drained by the writer
+    private static volatile long drained = 0;
+
+    private static Writer writer = null;
+    private static Thread writerThread = null;
+
+
+    /**
+     * One slot in the ring buffer
+     */
+    private static class Event
+    {
+        // sequence number of the event currently held, set last to publish the event
+        volatile long published = -1;
+
+        int transactionID;
+        String text;
+        String detail;
+        int value;
+        int arguments;
+    }
+
+
+    /**
+     * Configures the log and starts the writer thread
+     *
+     * @param logLevel events up to this level are logged
+     * @param logFile file to write the events to, null or empty for the console
+     * @param bufferSize number of events the ring buffer holds, rounded up to a power of two
+     * @throws IOException if the log file cannot be opened
+     */
+    public static synchronized void start(int logLevel, String logFile, int bufferSize) throws IOException
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+
+        ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event();
+        }
+        mask = capacity - 1;
+
+        if (logFile == null || logFile.isEmpty()) {
+            writer = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        } else {
+            writer = new BufferedWriter(new FileWriter(logFile), 1 << 16);
+        }
+
+        writerThread = new Thread(EventLog::drain, "EventLogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        level = logLevel;
+    }
+
+
+    /**
+     * Helper method to check if events of a certain level are logged at all. Callers building
+     * a message text on the fly should check this first
+     *
+     * @param eventLevel the level in question
+     * @return true if events of this level are logged
+     */
+    public static boolean isEnabled(int eventLevel)
+    {
+        return eventLevel <= level && writerThread != null;
+    }
+
+
+    /**
+     * Helper method returning a system-wide, unique counter for logging purposes,
+     * for log lines kept with the transaction rather than going through the ring buffer
+     *
+     * @return the counter value
+     */
+    public static long nextSequence()
+    {
+        return viewCounter.incrementAndGet();
+    }
+
+
+    public static void log(int eventLevel, int transactionID, String text)
+    {
+        log(eventLevel, transactionID, text, null, 0, 0);
+    }
+
+
+    public static void log(int eventLevel, int transactionID, String text, int value)
+    {
+        log(eventLevel, transactionID, text, null, value, 1);
+    }
+
+
+    public static void log(int eventLevel, int transactionID, String text, String detail, int value)
+    {
+        log(eventLevel, transactionID, text, detail, value, 2);
+    }
+
+
+    /**
+     * Puts an event into the ring buffer, waiting for the writer in the rare case the buffer is full
+     */
+    private static void log(int eventLevel, int transactionID, String text, String detail, int value, int arguments)
+    {
+        if (!isEnabled(eventLevel)) return;
+
+        long sequence = claimed.getAndIncrement();
+
+        // don't overtake the writer by a whole round
+        while (sequence - drained >= ring.length) {
+            Thread.onSpinWait();
+        }
+
+        Event event = ring[(int) sequence & mask];
+        event.transactionID = transactionID;
+        event.text = text;
+        event.detail = detail;
+        event.value = value;
+        event.arguments = arguments;
+
+        // publish
+        event.published = sequence;
+    }
+
+
+    /**
+     * Writer loop, drains the ring buffer in sequence order
+     */
+    private static void drain()
+    {
+        StringBuilder line = new StringBuilder(256);
+        long next = drained;
+        Event event;
+
+        while (true) {
+            event = ring[(int) next & mask];
+
+            if (event.published != next) {
+                // nothing to do, flush what we have and wait a bit
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    // ignore
+                }
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+
+            line.setLength(0);
+            line.append(next).append(" Transaction #").append(event.transactionID).append(' ');
+            format(line, event.text, event.detail, event.value, event.arguments);
+            line.append('\n');
+
+            try {
+                writer.append(line);
+            } catch (IOException e) {
+                // nothing sensible to do about a failing log
+            }
+
+            drained = ++next;
+        }
+    }
+
+
+    /**
+     * Fills in the placeholders of a message text
+     *
+     * @param line the line to append to
+     * @param text the text, with up to two "{}" placeholders
+     * @param detail the string argument, if any
+     * @param value the int argument, if any
+     * @param arguments number of arguments, detail comes first if there are two
+     */
+    public static void format(StringBuilder line, String text, String detail, int value, int arguments)
+    {
+        int from = 0;
+        int placeholder;
+
+        for (int argument = 0; argument < arguments; argument++) {
+            placeholder = text.indexOf("{}", from);
+            if (placeholder < 0) break;
+
+            line.append(text, from, placeholder);
+            if (arguments == 2 && argument == 0) {
+                line.append(detail);
+            } else {
+                line.append(value);
+            }
+            from = placeholder + 2;
+        }
+        line.append(text, from, text.length());
+    }
+
+
+    /**
+     * Waits until all events logged so far are written out and flushes the output
+     */
+    public static void flush()
+    {
+        if (writerThread == null) return;
+
+        long target = claimed.get();
+        while (drained < target) {
+            LockSupport.parkNanos(100_000);
+        }
+
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+
+    /**
+     * Helper method to translate a level name from the properties into its constant
+     *
+     * @param levelString OFF, ERROR, INFO, LOCK or DEBUG
+     * @return the level constant, INFO if the name is not known
+     */
+    public static int getLevel(String levelString)
+    {
+        switch (levelString == null ? "" : levelString.trim().toUpperCase()) {
+            case "OFF":   return OFF;
+            case "ERROR": return ERROR;
+            case "LOCK":  return LOCK;
+            case "DEBUG": return DEBUG;
+            default:      return INFO;
+        }
+    }
+}
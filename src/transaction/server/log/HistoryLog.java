@@ -0,0 +1,126 @@
+package transaction.server.log;
+
+import java.io.IOException;
+import transaction.comm.HistoryFile;
+import transaction.comm.MessageTypes;
+import transaction.server.account.AccountManager;
+import transaction.server.transaction.ReadWriteSet;
+import transaction.server.transaction.Transaction;
+
+/**
+ * Class [HistoryLog] Writes the history of the committed transactions to a HistoryFile, for the
+ * HistoryChecker to verify conservation of money and conflict-serializability.
+ *
+ * A transaction is appended when it commits, while it still holds its locks, and its writes are
+ * counted in the versions of the accounts it wrote. Both happen under the history log's monitor,
+ * so the versions of an account, and the history, follow the commit order even if the accounts
+ * are not locked. If writing fails, the history stops and the server goes on.
+ *
+ * @author wolfdieterotte
+ */
+public class HistoryLog implements MessageTypes
+{
+
+    private final String fileName;
+    private HistoryFile historyFile;
+    private long transactions = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param fileName the file to write to, overwritten if it exists
+     * @param numberAccounts number of accounts on the server
+     * @param initialBalance their initial balance
+     * @throws IOException if the file cannot be created
+     */
+    public HistoryLog(String fileName, int numberAccounts, int initialBalance) throws IOException
+    {
+        this.fileName = fileName;
+        this.historyFile = HistoryFile.create(fileName, numberAccounts, initialBalance);
+    }
+
+    /**
+     * Appends a committing transaction. Must be called after its writes were installed,
+     * while it still holds its locks
+     *
+     * @param transaction the committing transaction
+     * @param accountManager the accounts, to count the writes in their versions
+     */
+    public synchronized void commit(Transaction transaction, AccountManager accountManager)
+    {
+        ReadWriteSet readWriteSet = transaction.getReadWriteSet();
+        if (historyFile == null || readWriteSet == null)
+        {
+            return;
+        }
+
+        int operations = 0;
+        for (int i = 0; i < readWriteSet.size(); i++)
+        {
+            operations += (readWriteSet.isRead(i) ? 1 : 0) + (readWriteSet.isWritten(i) ? 1 : 0);
+        }
+
+        try
+        {
+            historyFile.writeTransaction(transaction.getTransactionID(), operations);
+            for (int i = 0; i < readWriteSet.size(); i++)
+            {
+                int account = readWriteSet.getAccount(i);
+
+                if (readWriteSet.isRead(i))
+                {
+                    historyFile.writeOperation(READ_REQUEST, account, readWriteSet.getReadVersion(i), readWriteSet.getReadBalance(i));
+                }
+                if (readWriteSet.isWritten(i))
+                {
+                    historyFile.writeOperation(WRITE_REQUEST, account, accountManager.getAccount(account).nextVersion(), readWriteSet.getWrittenBalance(i));
+                }
+            }
+            transactions++;
+        }
+        catch (IOException e)
+        {
+            System.out.println("[HistoryLog.commit] Could not write to \"" + fileName + "\", history stopped: " + e.getMessage());
+            historyFile.close();
+            historyFile = null;
+        }
+    }
+
+    /**
+     * Helper method returning the number of transactions written so far
+     *
+     * @return the number of transactions
+     */
+    public synchronized long getTransactionCount()
+    {
+        return transactions;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Writes out what is buffered and closes the file, transactions committing afterwards are left out
+     */
+    public synchronized void close()
+    {
+        if (historyFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            historyFile.flush();
+        }
+        catch (IOException e)
+        {
+            System.out.println("[HistoryLog.close] Could not write to \"" + fileName + "\": " + e.getMessage());
+        }
+        historyFile.close();
+        historyFile = null;
+    }
+}
@@ -0,0 +1,17 @@
+package transaction.server.log;
+
+/**
+ * Interface [LogLevels] Defines the levels of log events, from least to most verbose.
+ * An event is logged if its level is at or below the configured level.
+ * 
+ * @author wolfdieterotte
+ */
+public interface LogLevels 
+{
+    
+    public static final int OFF   = 0;
+    public static final int ERROR = 1;
+    public static final int INFO  = 2;  // transaction life cycle
+    public static final int LOCK  = 3;  // lock acquire/release hot path
+    public static final int DEBUG = 4;  // before images and the like
+}
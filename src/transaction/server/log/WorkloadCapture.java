@@ -0,0 +1,207 @@
+package transaction.server.log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.CaptureFile;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.comm.TransactionScript;
+
+/**
+ * Class [WorkloadCapture] Captures the request stream coming in to a server into a CaptureFile,
+ * so it can be replayed against a server later on, e.g. to reproduce a contention problem or to
+ * compare concurrency control changes on real traffic.
+ *
+ * Every connection gets a number, and each request is recorded with its connection and the time
+ * it came in; how the transaction ended is recorded as well. A write is recorded as the amount it
+ * adds to the balance the same connection last read from the account, so a replay against other
+ * balances moves the same money rather than setting the captured ones. Records are appended under the
+ * capture's monitor, which also keeps them in time order. If writing fails, capturing stops
+ * and the server goes on.
+ *
+ * @author wolfdieterotte
+ */
+public class WorkloadCapture implements MessageTypes
+{
+
+    private final String fileName;
+    private CaptureFile captureFile;
+
+    private final long start = System.nanoTime();
+    private final AtomicInteger connectionCounter = new AtomicInteger(0);
+    private long records = 0;
+
+    // the balances each connection last read, by account, until its transaction ends
+    private final HashMap<Integer, HashMap<Integer, Integer>> lastReads = new HashMap<>();
+
+
+    /**
+     * Constructor
+     *
+     * @param fileName the file to capture to, overwritten if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public WorkloadCapture(String fileName) throws IOException
+    {
+        this.fileName = fileName;
+        this.captureFile = CaptureFile.create(fileName);
+    }
+
+    /**
+     * Numbers a new connection
+     *
+     * @return the connection number
+     */
+    public int newConnection()
+    {
+        return connectionCounter.getAndIncrement();
+    }
+
+    /**
+     * Records a request, messages other than the ones making up a transaction are left out
+     *
+     * @param connection the connection the request came in on
+     * @param message the request
+     */
+    public void request(int connection, Message message)
+    {
+        switch (message.getType())
+        {
+            case OPEN_TRANSACTION:
+            case CLOSE_TRANSACTION:
+                write(message.getType(), connection, 0, 0);
+                break;
+
+            case READ_REQUEST:
+                write(READ_REQUEST, connection, (Integer) message.getContent(), 0);
+                break;
+
+            case WRITE_REQUEST:
+                Object[] content = (Object[]) message.getContent();
+                writeAmount(connection, (Integer) content[0], (Integer) content[1]);
+                break;
+
+            case EXECUTE_SCRIPT:
+                writeScript(connection, (TransactionScript) message.getContent());
+                break;
+
+            default:
+                // not part of a transaction
+        }
+    }
+
+    /**
+     * Remembers the balance a read returned, the connection's writes to the account are recorded
+     * relative to it
+     *
+     * @param connection the connection the read came in on
+     * @param account the account read
+     * @param balance the balance read
+     */
+    public synchronized void read(int connection, int account, int balance)
+    {
+        lastReads.computeIfAbsent(connection, c -> new HashMap<>()).put(account, balance);
+    }
+
+    /**
+     * Records how the transaction on a connection ended
+     *
+     * @param connection the connection
+     * @param outcome TRANSACTION_COMMITTED or TRANSACTION_ABORTED
+     */
+    public synchronized void outcome(int connection, int outcome)
+    {
+        lastReads.remove(connection);
+        write(outcome, connection, 0, 0);
+    }
+
+    /**
+     * Helper method recording a write as the amount added to the balance last read, 0 if the
+     * connection did not read the account
+     */
+    private synchronized void writeAmount(int connection, int account, int balance)
+    {
+        HashMap<Integer, Integer> reads = lastReads.get(connection);
+        Integer lastRead = reads != null ? reads.get(account) : null;
+
+        write(WRITE_REQUEST, connection, account, balance - (lastRead != null ? lastRead : 0));
+    }
+
+    private synchronized void writeScript(int connection, TransactionScript script)
+    {
+        if (captureFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            captureFile.writeScript(connection, (System.nanoTime() - start) / 1000, script);
+            records++;
+        }
+        catch (IOException e)
+        {
+            System.out.println("[WorkloadCapture.write] Could not write to \"" + fileName + "\", capture stopped: " + e.getMessage());
+            captureFile.close();
+            captureFile = null;
+        }
+    }
+
+    private synchronized void write(int type, int connection, int account, int amount)
+    {
+        if (captureFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            captureFile.write(type, connection, (System.nanoTime() - start) / 1000, account, amount);
+            records++;
+        }
+        catch (IOException e)
+        {
+            System.out.println("[WorkloadCapture.write] Could not write to \"" + fileName + "\", capture stopped: " + e.getMessage());
+            captureFile.close();
+            captureFile = null;
+        }
+    }
+
+    /**
+     * Helper method returning the number of records captured so far
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecordCount()
+    {
+        return records;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Writes out what is buffered and closes the file, records coming in afterwards are dropped
+     */
+    public synchronized void close()
+    {
+        if (captureFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            captureFile.flush();
+        }
+        catch (IOException e)
+        {
+            System.out.println("[WorkloadCapture.close] Could not write to \"" + fileName + "\": " + e.getMessage());
+        }
+        captureFile.close();
+        captureFile = null;
+    }
+}
@@ -0,0 +1,202 @@
+package transaction.server.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class [HotAccountProfiler] Finds the accounts lock conflicts cluster on, over sliding windows.
+ *
+ * The exact per-account counters live with the locks, but reporting from them means sorting the
+ * whole lock table, which does not work with 100M accounts. Instead, conflicts are sampled into a
+ * count-min sketch per time window, a fixed-size array of counters approximating per-account counts
+ * from above, and the accounts with the highest estimates are kept as top-K candidates next to it.
+ * Memory use is fixed, independent of the number of accounts. Each server has its own profiler,
+ * kept by its lock manager.
+ *
+ * @author wolfdieterotte
+ */
+public class HotAccountProfiler {
+
+    // count-min sketch dimensions, and number of candidates kept per window
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int TOP_K = 32;
+
+    // one in sampleRate conflicts is recorded
+    private final int sampleRate;
+
+    private final long windowMillis;
+    private final Window[] windows;
+
+    /**
+     * The sketch and candidates for one time window
+     */
+    private static class Window {
+
+        // number of the time window this is counting for
+        long epoch = -1;
+
+        final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+        final HashMap<Integer, Long> candidates = new HashMap<>();
+
+        // estimate of the weakest candidate once there are TOP_K of them, an account not beating it
+        // is not a candidate, so it need not take the monitor
+        volatile long weakestEstimate = 0;
+
+        long estimate(int account) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.get(row * WIDTH + hash(account, row)));
+            }
+            return estimate;
+        }
+
+        void record(int account) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.incrementAndGet(row * WIDTH + hash(account, row)));
+            }
+
+            if (estimate <= weakestEstimate) {
+                return;
+            }
+
+            synchronized (this) {
+                if (candidates.containsKey(account) || candidates.size() < TOP_K) {
+                    candidates.put(account, estimate);
+                } else {
+                    // replace the weakest candidate, this account beats it
+                    candidates.remove(weakest().getKey());
+                    candidates.put(account, estimate);
+                }
+                weakestEstimate = candidates.size() < TOP_K ? 0 : weakest().getValue();
+            }
+        }
+
+        Map.Entry<Integer, Long> weakest() {
+            Map.Entry<Integer, Long> weakest = null;
+            for (Map.Entry<Integer, Long> candidate : candidates.entrySet()) {
+                if (weakest == null || candidate.getValue() < weakest.getValue()) {
+                    weakest = candidate;
+                }
+            }
+            return weakest;
+        }
+
+        synchronized void reset(long newEpoch) {
+            if (epoch == newEpoch) return;
+
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+            candidates.clear();
+            weakestEstimate = 0;
+            epoch = newEpoch;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param conflictSampleRate one in this many conflicts is recorded
+     * @param windowSeconds length of one window
+     * @param numberWindows number of windows kept, i.e. the report covers numberWindows * windowSeconds
+     */
+    public HotAccountProfiler(int conflictSampleRate, int windowSeconds, int numberWindows) {
+        sampleRate = Math.max(1, conflictSampleRate);
+        windowMillis = Math.max(1, windowSeconds) * 1000L;
+        windows = new Window[Math.max(1, numberWindows)];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new Window();
+        }
+    }
+
+    /**
+     * Records a lock conflict on an account, called from the lock path outside the lock's monitor
+     *
+     * @param account the account number
+     */
+    public void recordConflict(int account) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+
+        long epoch = System.currentTimeMillis() / windowMillis;
+        Window window = windows[(int) (epoch % windows.length)];
+        if (window.epoch != epoch) {
+            window.reset(epoch);
+        }
+        window.record(account);
+    }
+
+    /**
+     * Builds the report of the hottest accounts in the current window and across all windows kept
+     *
+     * @param topN number of accounts to list per window
+     * @return the report as text
+     */
+    public String getReport(int topN) {
+        StringBuilder report = new StringBuilder();
+        long epoch = System.currentTimeMillis() / windowMillis;
+
+        report.append("HOT ACCOUNTS (estimated conflicts, sampled 1 in ").append(sampleRate).append("):\n");
+        report.append("  last ").append(windowMillis / 1000).append("s:");
+        appendTop(report, topN, epoch, epoch);
+        report.append("\n  last ").append(windows.length * windowMillis / 1000).append("s:");
+        appendTop(report, topN, epoch - windows.length + 1, epoch);
+        report.append("\n");
+
+        return report.toString();
+    }
+
+    /**
+     * Appends the accounts with the highest estimates summed over a range of windows
+     */
+    private void appendTop(StringBuilder report, int topN, long fromEpoch, long toEpoch) {
+        ArrayList<Window> covered = new ArrayList<>();
+        HashMap<Integer, Long> totals = new HashMap<>();
+
+        for (Window window : windows) {
+            if (window.epoch >= fromEpoch && window.epoch <= toEpoch) {
+                covered.add(window);
+                synchronized (window) {
+                    for (Integer account : window.candidates.keySet()) {
+                        totals.put(account, 0L);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Long> total : totals.entrySet()) {
+            long sum = 0;
+            for (Window window : covered) {
+                sum += window.estimate(total.getKey());
+            }
+            total.setValue(sum * sampleRate);
+        }
+
+        ArrayList<Map.Entry<Integer, Long>> ranked = new ArrayList<>(totals.entrySet());
+        ranked.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        if (ranked.isEmpty()) {
+            report.append(" -");
+        }
+        for (int i = 0; i < Math.min(topN, ranked.size()); i++) {
+            report.append(" #").append(ranked.get(i).getKey()).append("(").append(ranked.get(i).getValue()).append(")");
+        }
+    }
+
+    /**
+     * Helper method hashing an account into a row of the sketch, a different hash per row
+     */
+    private static int hash(int account, int row) {
+        long hash = (account + 1L) * (0x9E3779B97F4A7C15L + 2L * row);
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 32;
+        return (int) (hash & (WIDTH - 1));
+    }
+}
@@ -0,0 +1,268 @@
+package transaction.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.Lock;
+import transaction.server.lock.LockTypes;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.TransactionManager;
+import utils.Histogram;
+
+/**
+ * Class [Metrics] Lock wait and hold times, transaction latencies and commit/abort counts.
+ *
+ * Each thread records into a MetricsRecorder of its own, obtained through recorder(). Worker threads
+ * come and go with client connections, so a thread hands its recorder back with releaseRecorder()
+ * when it is done, and the next thread reuses it; the number of recorders is bounded by the number
+ * of threads running at the same time. Reading merges all recorders into a snapshot.
+ *
+ * The metrics are exposed via JMX and, optionally, dumped to the console periodically.
+ *
+ * @author wolfdieterotte
+ */
+public class Metrics implements MetricsMXBean, LockTypes, AbortCauses {
+
+    // all recorders ever handed out, and the ones currently not owned by any thread
+    private static final CopyOnWriteArrayList<MetricsRecorder> recorders = new CopyOnWriteArrayList<>();
+    private static final ConcurrentLinkedQueue<MetricsRecorder> freeRecorders = new ConcurrentLinkedQueue<>();
+
+    // the transaction managers of all servers in this process, for the number of running transactions
+    private static final CopyOnWriteArrayList<TransactionManager> transactionManagers = new CopyOnWriteArrayList<>();
+
+    // the recorder owned by the current thread
+    private static final ThreadLocal<MetricsRecorder> currentRecorder = ThreadLocal.withInitial(Metrics::acquireRecorder);
+
+    /**
+     * Helper method returning the current thread's recorder
+     *
+     * @return the recorder
+     */
+    public static MetricsRecorder recorder() {
+        return currentRecorder.get();
+    }
+
+    /**
+     * Hands the current thread's recorder back for reuse, called when a worker thread ends
+     */
+    public static void releaseRecorder() {
+        freeRecorders.add(currentRecorder.get());
+        currentRecorder.remove();
+    }
+
+    private static MetricsRecorder acquireRecorder() {
+        MetricsRecorder recorder = freeRecorders.poll();
+
+        if (recorder == null) {
+            recorder = new MetricsRecorder();
+            recorders.add(recorder);
+        }
+        return recorder;
+    }
+
+    /**
+     * Adds a server's transaction manager to the ones reported on
+     *
+     * @param transactionManager the transaction manager
+     */
+    public static void register(TransactionManager transactionManager) {
+        transactionManagers.add(transactionManager);
+    }
+
+    /**
+     * Removes a server's transaction manager when the server goes away
+     *
+     * @param transactionManager the transaction manager
+     */
+    public static void unregister(TransactionManager transactionManager) {
+        transactionManagers.remove(transactionManager);
+    }
+
+    /**
+     * Merges all recorders
+     *
+     * @return a recorder holding everything recorded so far
+     */
+    public static MetricsRecorder snapshot() {
+        MetricsRecorder total = new MetricsRecorder();
+
+        for (MetricsRecorder recorder : recorders) {
+            recorder.addTo(total);
+        }
+        return total;
+    }
+
+    /**
+     * Helper method returning the commits per second over a recent window, summed over all recorders
+     *
+     * @param windowSeconds length of the window, up to a minute
+     * @return commits per second
+     */
+    public static double getCommitRate(int windowSeconds) {
+        long commits = 0;
+        for (MetricsRecorder recorder : recorders) {
+            commits += recorder.commitRate.getCount(windowSeconds);
+        }
+        return (double) commits / windowSeconds;
+    }
+
+    /**
+     * Helper method returning the aborts per second over a recent window, summed over all recorders
+     *
+     * @param windowSeconds length of the window, up to a minute
+     * @return aborts per second
+     */
+    public static double getAbortRate(int windowSeconds) {
+        long aborts = 0;
+        for (MetricsRecorder recorder : recorders) {
+            aborts += recorder.abortRate.getCount(windowSeconds);
+        }
+        return (double) aborts / windowSeconds;
+    }
+
+    /**
+     * Registers the metrics with JMX and starts the periodic dump
+     *
+     * @param dumpSeconds seconds between two dumps to the console, 0 for none
+     */
+    public static void start(int dumpSeconds) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("transaction.server:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("[Metrics.start] Could not register with JMX: " + e);
+        }
+
+        if (dumpSeconds > 0) {
+            Thread dumper = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(dumpSeconds * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.print(getReport(snapshot()));
+                }
+            }, "MetricsDumper");
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    /**
+     * Formats a snapshot as text
+     *
+     * @param snapshot the merged metrics
+     * @return the report
+     */
+    public static String getReport(MetricsRecorder snapshot) {
+        StringBuilder report = new StringBuilder();
+        long aborted = 0;
+
+        report.append("\n======================================= METRICS =======================================\n");
+
+        report.append("committed: ").append(snapshot.commitLatency.getCount());
+        for (int abortCause = 0; abortCause < NUMBER_ABORT_CAUSES; abortCause++) {
+            aborted += snapshot.aborts[abortCause];
+        }
+        report.append(", aborted: ").append(aborted).append(" (");
+        for (int abortCause = 0; abortCause < NUMBER_ABORT_CAUSES; abortCause++) {
+            report.append(abortCause == 0 ? "" : ", ")
+                  .append(TransactionAbortedException.getAbortCauseString(abortCause)).append(": ").append(snapshot.aborts[abortCause]);
+        }
+        report.append("), running: ").append(getRunningCount()).append("\n");
+
+        appendHistogram(report, "commit latency", snapshot.commitLatency);
+        appendHistogram(report, "abort latency", snapshot.abortLatency);
+        for (int lockType = READ_LOCK; lockType <= WRITE_LOCK; lockType++) {
+            appendHistogram(report, Lock.getLockTypeString(lockType) + " wait", snapshot.lockWait[lockType]);
+            appendHistogram(report, Lock.getLockTypeString(lockType) + " hold", snapshot.lockHold[lockType]);
+        }
+
+        return report.toString();
+    }
+
+    private static void appendHistogram(StringBuilder report, String name, Histogram histogram) {
+        report.append(String.format("%-18s n=%-10d mean=%10.1fus p50=%10.1fus p99=%10.1fus p99.9=%10.1fus max=%10.1fus%n",
+                name, histogram.getCount(), histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    private static int getRunningCount() {
+        int running = 0;
+        for (TransactionManager transactionManager : transactionManagers) {
+            running += transactionManager.getRunningTransactions().size();
+        }
+        return running;
+    }
+
+    // ------------------------------------------------------------------------------------------------
+    // MXBean view
+    // ------------------------------------------------------------------------------------------------
+
+    @Override
+    public long getCommittedCount() {
+        return snapshot().commitLatency.getCount();
+    }
+
+    @Override
+    public long getAbortedCount() {
+        return snapshot().abortLatency.getCount();
+    }
+
+    @Override
+    public Map<String, Long> getAbortsByCause() {
+        MetricsRecorder snapshot = snapshot();
+        Map<String, Long> abortsByCause = new LinkedHashMap<>();
+
+        for (int abortCause = 0; abortCause < NUMBER_ABORT_CAUSES; abortCause++) {
+            abortsByCause.put(TransactionAbortedException.getAbortCauseString(abortCause), snapshot.aborts[abortCause]);
+        }
+        return abortsByCause;
+    }
+
+    @Override
+    public int getRunningTransactions() {
+        return getRunningCount();
+    }
+
+    @Override
+    public double getReadLockWaitP99Micros() {
+        return snapshot().lockWait[READ_LOCK].getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getWriteLockWaitP99Micros() {
+        return snapshot().lockWait[WRITE_LOCK].getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getReadLockHoldP99Micros() {
+        return snapshot().lockHold[READ_LOCK].getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getWriteLockHoldP99Micros() {
+        return snapshot().lockHold[WRITE_LOCK].getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getCommitLatencyP50Micros() {
+        return snapshot().commitLatency.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getCommitLatencyP99Micros() {
+        return snapshot().commitLatency.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public String getReport() {
+        return getReport(snapshot());
+    }
+}
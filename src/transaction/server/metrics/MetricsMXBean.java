@@ -0,0 +1,34 @@
+package transaction.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Interface [MetricsMXBean] The server's metrics as seen through JMX.
+ * Times are in microseconds.
+ *
+ * @author wolfdieterotte
+ */
+public interface MetricsMXBean {
+
+    public long getCommittedCount();
+
+    public long getAbortedCount();
+
+    public Map<String, Long> getAbortsByCause();
+
+    public int getRunningTransactions();
+
+    public double getReadLockWaitP99Micros();
+
+    public double getWriteLockWaitP99Micros();
+
+    public double getReadLockHoldP99Micros();
+
+    public double getWriteLockHoldP99Micros();
+
+    public double getCommitLatencyP50Micros();
+
+    public double getCommitLatencyP99Micros();
+
+    public String getReport();
+}
@@ -0,0 +1,96 @@
+package transaction.server.metrics;
+
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.LockTypes;
+import utils.Histogram;
+
+/**
+ * Class [MetricsRecorder] The metrics recorded by one thread. Only the owning thread writes,
+ * with plain field updates, so recording costs a few nanoseconds; readers merge all recorders.
+ * Values read while threads are recording may be slightly behind, which is fine for metrics.
+ *
+ * @author wolfdieterotte
+ */
+public class MetricsRecorder implements LockTypes, AbortCauses {
+
+    // lock wait and hold times in nanoseconds, indexed by lock type
+    final Histogram[] lockWait = new Histogram[WRITE_LOCK + 1];
+    final Histogram[] lockHold = new Histogram[WRITE_LOCK + 1];
+
+    // end-to-end latency of committed and of aborted transactions, in nanoseconds
+    final Histogram commitLatency = new Histogram();
+    final Histogram abortLatency = new Histogram();
+
+    // aborts broken down by cause
+    final long[] aborts = new long[NUMBER_ABORT_CAUSES];
+
+    // commits and aborts per second over recent windows
+    final RateWindow commitRate = new RateWindow();
+    final RateWindow abortRate = new RateWindow();
+
+    MetricsRecorder() {
+        for (int lockType = READ_LOCK; lockType <= WRITE_LOCK; lockType++) {
+            lockWait[lockType] = new Histogram();
+            lockHold[lockType] = new Histogram();
+        }
+    }
+
+    public void recordLockWait(int lockType, long nanos) {
+        lockWait[lockType].record(nanos);
+    }
+
+    public void recordLockHold(int lockType, long nanos) {
+        // a lock shared with others may already be on its way out
+        if (lockType < READ_LOCK) return;
+
+        lockHold[lockType].record(nanos);
+    }
+
+    public void recordCommit(long latencyNanos) {
+        commitLatency.record(latencyNanos);
+        commitRate.increment();
+    }
+
+    public void recordAbort(int abortCause, long latencyNanos) {
+        aborts[abortCause]++;
+        abortLatency.record(latencyNanos);
+        abortRate.increment();
+    }
+
+    /**
+     * Adds everything recorded here to another recorder
+     *
+     * @param total the recorder to add to
+     */
+    void addTo(MetricsRecorder total) {
+        for (int lockType = READ_LOCK; lockType <= WRITE_LOCK; lockType++) {
+            total.lockWait[lockType].add(lockWait[lockType]);
+            total.lockHold[lockType].add(lockHold[lockType]);
+        }
+        total.commitLatency.add(commitLatency);
+        total.abortLatency.add(abortLatency);
+        for (int abortCause = 0; abortCause < NUMBER_ABORT_CAUSES; abortCause++) {
+            total.aborts[abortCause] += aborts[abortCause];
+        }
+    }
+
+    public Histogram getLockWait(int lockType) {
+        return lockWait[lockType];
+    }
+
+    public Histogram getLockHold(int lockType) {
+        return lockHold[lockType];
+    }
+
+    public Histogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    public Histogram getAbortLatency() {
+        return abortLatency;
+    }
+
+    public long getAborts(int abortCause) {
+        return aborts[abortCause];
+    }
+}
@@ -0,0 +1,51 @@
+package transaction.server.metrics;
+
+/**
+ * Class [RateWindow] Counts events per second over the last minute or so, to report rates
+ * over recent windows. One slot per second, reused round robin. Like the recorder it belongs to,
+ * it is written by one thread only; the rate over all threads is summed up when it is read.
+ *
+ * @author wolfdieterotte
+ */
+public class RateWindow {
+
+    private static final int SLOTS = 64;
+
+    // events counted in each slot, and the second each slot currently counts for
+    private final long[] counts = new long[SLOTS];
+    private final long[] seconds = new long[SLOTS];
+
+    /**
+     * Counts one event
+     */
+    public void increment() {
+        long now = System.currentTimeMillis() / 1000;
+        int slot = (int) (now % SLOTS);
+
+        // first event in this second, take the slot over from the second it was last used for
+        if (seconds[slot] != now) {
+            counts[slot] = 0;
+            seconds[slot] = now;
+        }
+        counts[slot]++;
+    }
+
+    /**
+     * Helper method returning the events counted over a recent window
+     *
+     * @param windowSeconds length of the window, up to a minute; the current second is not included
+     * @return number of events
+     */
+    public long getCount(int windowSeconds) {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+
+        for (long second = now - windowSeconds; second < now; second++) {
+            int slot = (int) (second % SLOTS);
+            if (seconds[slot] == second) {
+                total += counts[slot];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,132 @@
+package transaction.server.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import transaction.server.TransactionServer;
+import transaction.server.account.AccountManager;
+import transaction.server.lock.Lock;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+
+/**
+ * Class [ServerStats] Builds the compact snapshot of the running server that is returned in
+ * response to a STATS_REQUEST: running transactions with the locks they hold and wait for,
+ * the most contended accounts, throughput over recent windows and a consistent branch total.
+ * Nothing here stops traffic; the branch total is summed up without locks, and only counts if no
+ * account was written meanwhile.
+ *
+ * @author wolfdieterotte
+ */
+public class ServerStats {
+
+    // how often to try to read-lock all accounts for the branch total before giving up
+    private static final int BRANCH_TOTAL_ATTEMPTS = 100;
+
+    /**
+     * Builds the snapshot
+     *
+     * @param server the server to report on
+     * @param topN number of most contended accounts to list
+     * @return the snapshot as text
+     */
+    public static String getReport(TransactionServer server, int topN) {
+        StringBuilder report = new StringBuilder();
+        ArrayList<Lock> locks = server.getLockManager().getLocksSnapshot();
+
+        // running transactions and their locks --------------------------------------------------
+        HashMap<Transaction, StringBuilder> held = new HashMap<>();
+        HashMap<Transaction, StringBuilder> waited = new HashMap<>();
+
+        for (Lock lock : locks) {
+            String lockString = " #" + lock.getAccount().getNumber() + "(" + Lock.getLockTypeString(lock.getLockType()) + ")";
+            for (Transaction holder : lock.getLockHolders()) {
+                held.computeIfAbsent(holder, t -> new StringBuilder()).append(lockString);
+            }
+            for (Transaction requestor : lock.getLockRequestors()) {
+                waited.computeIfAbsent(requestor, t -> new StringBuilder()).append(" #").append(lock.getAccount().getNumber());
+            }
+        }
+
+        long now = System.nanoTime();
+        ArrayList<Transaction> running = new ArrayList<>(server.getTransactionManager().getRunningTransactions());
+        running.sort(Comparator.comparingInt(Transaction::getTransactionID));
+
+        report.append("RUNNING TRANSACTIONS: ").append(running.size()).append("\n");
+        for (Transaction transaction : running) {
+            report.append(String.format("  #%-8d age %8.1fms  holds:%s  waits for:%s%n",
+                    transaction.getTransactionID(), (now - transaction.getStartTime()) / 1e6,
+                    held.getOrDefault(transaction, new StringBuilder(" -")),
+                    waited.getOrDefault(transaction, new StringBuilder(" -"))));
+        }
+
+        // most contended accounts ---------------------------------------------------------------
+        locks.sort(Comparator.comparingLong(Lock::getConflicts).reversed());
+
+        report.append("MOST CONTENDED ACCOUNTS:\n");
+        for (int i = 0; i < Math.min(topN, locks.size()) && locks.get(i).getConflicts() > 0; i++) {
+            Lock lock = locks.get(i);
+            report.append(String.format("  #%-8d %d conflicts, %d waits, %d aborts caused, %.1fms waited%n",
+                    lock.getAccount().getNumber(), lock.getConflicts(), lock.getWaits(), lock.getAbortsCaused(), lock.getTotalWaitNanos() / 1e6));
+        }
+        report.append(server.getLockManager().getHotAccountProfiler().getReport(topN));
+
+        // throughput ----------------------------------------------------------------------------
+        report.append("THROUGHPUT (commits/aborts per second):\n");
+        for (int window : new int[]{1, 10, 60}) {
+            report.append(String.format("  last %2ds: %10.1f / %10.1f%n", window, Metrics.getCommitRate(window), Metrics.getAbortRate(window)));
+        }
+        report.append("  total: ").append(server.getTransactionManager().getCommittedCount()).append(" committed, ")
+              .append(server.getTransactionManager().getAbortedCount()).append(" aborted, ")
+              .append(server.getTransactionManager().getReclaimedCount()).append(" reclaimed from vanished or idle clients, ")
+              .append(server.getTransactionManager().getTimedOutConnectionCount()).append(" silent connections dropped\n");
+
+        // admission -----------------------------------------------------------------------------
+        if (server.getAdmissionController() != null) {
+            report.append("ADMISSION: ").append(server.getAdmissionController().getReport()).append("\n");
+        }
+
+        // concurrency control per region of accounts --------------------------------------------
+        if (server.getLockManager().getContentionTracker() != null) {
+            report.append("CONCURRENCY CONTROL: ").append(server.getLockManager().getContentionTracker().getReport(topN));
+        }
+
+        // branch total --------------------------------------------------------------------------
+        report.append("BRANCH TOTAL: ");
+        long total = getBranchTotal(server);
+        report.append(total == AccountManager.NO_TOTAL ? "not available, accounts too busy" : "$" + total).append("\n");
+
+        return report.toString();
+    }
+
+    /**
+     * Sums up all balances without locks, so the total reflects committed transactions only, and
+     * no writer is aborted for it. With partitions, the partitions sum themselves up between scripts
+     *
+     * @return the branch total, which can be negative, AccountManager.NO_TOTAL if writers kept getting in the way
+     */
+    private static long getBranchTotal(TransactionServer server) {
+        if (server.getPartitionedExecutor() != null) {
+            try {
+                return server.getPartitionedExecutor().getBranchTotal();
+            } catch (TransactionAbortedException e) {
+                return AccountManager.NO_TOTAL;
+            }
+        }
+
+        for (int attempt = 0; attempt < BRANCH_TOTAL_ATTEMPTS; attempt++) {
+            long total = server.getAccountManager().sumBalances();
+            if (total != AccountManager.NO_TOTAL) {
+                return total;
+            }
+
+            // a writer is in the way, try again in a moment
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return AccountManager.NO_TOTAL;
+            }
+        }
+        return AccountManager.NO_TOTAL;
+    }
+}
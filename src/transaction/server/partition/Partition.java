@@ -0,0 +1,58 @@
+package transaction.server.partition;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import transaction.server.account.Account;
+import transaction.server.metrics.Metrics;
+
+/**
+ * Class [Partition] A slice of the accounts, every N-th one, owned by a single thread. Only the
+ * owner touches the accounts of its partition, so it reads and writes them without locks, and it
+ * runs the scripts routed to it one after the other.
+ *
+ * A script spanning several partitions is queued at each of them; the owners park when they get
+ * to it, and the last one to arrive runs it on its own, see PartitionedExecutor.
+ *
+ * @author wolfdieterotte
+ */
+class Partition extends Thread {
+
+    // the accounts owned, account number / number of partitions is the index
+    final Account[] accounts;
+
+    // work for the owner, in the order it arrived
+    final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+    // single-partition scripts run, only written by the owner
+    volatile long scripts = 0;
+
+    private volatile boolean keepgoing = true;
+
+    /**
+     * Constructor
+     *
+     * @param index number of the partition
+     * @param accounts the accounts it owns
+     */
+    Partition(int index, Account[] accounts) {
+        this.accounts = accounts;
+        setDaemon(true);
+        setName("Partition-" + index);
+    }
+
+    @Override
+    public void run() {
+        while (keepgoing) {
+            try {
+                queue.take().run();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        Metrics.releaseRecorder();
+    }
+
+    void shutDown() {
+        keepgoing = false;
+        interrupt();
+    }
+}
@@ -0,0 +1,396 @@
+package transaction.server.partition;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import transaction.comm.TransactionScript;
+import transaction.server.account.Account;
+import transaction.server.account.AccountManager;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.log.HistoryLog;
+import transaction.server.metrics.Metrics;
+import transaction.server.transaction.ReadWriteSet;
+import transaction.server.transaction.Transaction;
+import transaction.server.transaction.TransactionManager;
+
+/**
+ * Class [PartitionedExecutor] Runs transaction scripts shared-nothing: the accounts are split into
+ * PARTITIONS partitions, account number modulo the number of partitions, each owned by a thread
+ * of its own. Neither the lock manager nor any other state is shared between the partitions.
+ *
+ * A script whose accounts all lie in one partition is queued there and run by the owner, without
+ * locks, in the order the scripts arrived. A script spanning several partitions is queued at all
+ * of them; each owner parks when it gets to the script, and the last one to arrive runs it while
+ * the others wait, then lets them go on. Scripts spanning partitions are queued under one monitor,
+ * so all partitions see them in the same order, and the owners cannot wait for each other in a
+ * circle.
+ *
+ * Scripts never abort here, unless they name an account that does not exist, or the server shuts
+ * down before they ran. Interactive transactions, which lock as they go, do not mix with this
+ * and are turned away in this mode.
+ *
+ * @author wolfdieterotte
+ */
+public class PartitionedExecutor implements AbortCauses {
+
+    private final Partition[] partitions;
+
+    // history of the committed scripts for the checker, if configured
+    private final TransactionManager transactionManager;
+    private final AccountManager accountManager;
+    private final HistoryLog history;
+
+    // scripts submitted and not finished yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // scripts spanning partitions, queued under its monitor
+    private final Object multiPartitionLock = new Object();
+    private final AtomicLong multiPartitionScripts = new AtomicLong();
+
+    // keepgoing turns false when the shutdown begins, stopped once the owners are gone
+    private volatile boolean keepgoing = true;
+    private volatile boolean stopped = false;
+
+    /**
+     * A script queued at a partition, failed if the server shuts down before it ran
+     */
+    private abstract static class ScriptTask implements Runnable {
+        final TransactionScript script;
+        final CompletableFuture<int[]> result;
+        final long submitted;
+
+        ScriptTask(TransactionScript script, CompletableFuture<int[]> result, long submitted) {
+            this.script = script;
+            this.result = result;
+            this.submitted = submitted;
+        }
+    }
+
+    /**
+     * A script within one partition, run by its owner
+     */
+    private class SinglePartitionTask extends ScriptTask {
+        final Partition partition;
+
+        SinglePartitionTask(TransactionScript script, CompletableFuture<int[]> result, long submitted, Partition partition) {
+            super(script, result, submitted);
+            this.partition = partition;
+        }
+
+        @Override
+        public void run() {
+            execute(script, result, submitted);
+            partition.scripts++;
+        }
+    }
+
+    /**
+     * A script spanning partitions, run by the last of their owners to get to it
+     */
+    private class MultiPartitionTask extends ScriptTask {
+        final AtomicInteger arriving;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        MultiPartitionTask(TransactionScript script, CompletableFuture<int[]> result, long submitted, int participants) {
+            super(script, result, submitted);
+            this.arriving = new AtomicInteger(participants);
+        }
+
+        @Override
+        public void run() {
+            if (arriving.decrementAndGet() == 0) {
+                // all the other owners are parked, their accounts are ours for now
+                executeAlone();
+                done.countDown();
+                return;
+            }
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void executeAlone() {
+            execute(script, result, submitted);
+            multiPartitionScripts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sums up the balances of all partitions, while all owners are parked
+     */
+    private class BranchTotalTask extends MultiPartitionTask {
+        long total = 0;
+
+        BranchTotalTask(long submitted) {
+            super(null, new CompletableFuture<>(), submitted, partitions.length);
+        }
+
+        @Override
+        void executeAlone() {
+            for (Partition partition : partitions) {
+                for (Account account : partition.accounts) {
+                    total += account._read();
+                }
+            }
+            result.complete(null);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transactionManager creates the transactions the history is written for
+     * @param accountManager the accounts, split among the partitions
+     * @param history the history of the committed transactions, null for none
+     * @param numberAccounts number of accounts
+     * @param numberPartitions number of partitions, and of threads
+     */
+    public PartitionedExecutor(TransactionManager transactionManager, AccountManager accountManager, HistoryLog history,
+            int numberAccounts, int numberPartitions) {
+        this.transactionManager = transactionManager;
+        this.accountManager = accountManager;
+        this.history = history;
+
+        numberPartitions = Math.max(1, Math.min(numberPartitions, numberAccounts));
+        partitions = new Partition[numberPartitions];
+        for (int index = 0; index < numberPartitions; index++) {
+            Account[] accounts = new Account[(numberAccounts - index + numberPartitions - 1) / numberPartitions];
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = accountManager.getAccount(i * numberPartitions + index);
+            }
+            partitions[index] = new Partition(index, accounts);
+        }
+    }
+
+    /**
+     * Starts the owners of the partitions
+     */
+    public void start() {
+        for (Partition partition : partitions) {
+            partition.start();
+        }
+    }
+
+    /**
+     * Hands in a script
+     *
+     * @param script the script
+     * @return future completing with the balances read, or exceptionally with a TransactionAbortedException,
+     *         INVALID_REQUEST if the script names an account that does not exist
+     */
+    public CompletableFuture<int[]> submit(TransactionScript script) {
+        CompletableFuture<int[]> result = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+
+        if (!keepgoing) {
+            result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+            return result;
+        }
+        for (int step = 0; step < script.size(); step++) {
+            if (account(script.getAccount(step)) == null) {
+                result.completeExceptionally(new TransactionAbortedException(INVALID_REQUEST));
+                return result;
+            }
+        }
+
+        outstanding.incrementAndGet();
+        result.whenComplete((balances, ex) -> outstanding.decrementAndGet());
+
+        // the partitions the script touches, each once
+        int[] touched = new int[script.size()];
+        int count = 0;
+        for (int step = 0; step < script.size(); step++) {
+            int partition = script.getAccount(step) % partitions.length;
+            int i = 0;
+            while (i < count && touched[i] != partition) {
+                i++;
+            }
+            if (i == count) {
+                touched[count++] = partition;
+            }
+        }
+
+        if (count <= 1) {
+            Partition partition = partitions[count == 0 ? 0 : touched[0]];
+            partition.queue.add(new SinglePartitionTask(script, result, submitted, partition));
+        } else {
+            MultiPartitionTask task = new MultiPartitionTask(script, result, submitted, count);
+            synchronized (multiPartitionLock) {
+                for (int i = 0; i < count; i++) {
+                    partitions[touched[i]].queue.add(task);
+                }
+            }
+        }
+
+        // queued after the shutdown drained the queues, nobody is going to run it
+        if (stopped) {
+            result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+        return result;
+    }
+
+    /**
+     * Hands in a script and waits for it to finish
+     *
+     * @param script the script
+     * @return the balances read, one per step
+     * @throws TransactionAbortedException if the script was not run
+     */
+    public int[] execute(TransactionScript script) throws TransactionAbortedException {
+        try {
+            return submit(script).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sums up all balances, between the scripts that ran before and those that run after
+     *
+     * @return the branch total
+     * @throws TransactionAbortedException with SERVER_SHUTDOWN if the server shuts down first
+     */
+    public long getBranchTotal() throws TransactionAbortedException {
+        BranchTotalTask task = new BranchTotalTask(System.nanoTime());
+        if (!keepgoing) {
+            throw new TransactionAbortedException(SERVER_SHUTDOWN);
+        }
+
+        outstanding.incrementAndGet();
+        task.result.whenComplete((balances, ex) -> outstanding.decrementAndGet());
+        synchronized (multiPartitionLock) {
+            for (Partition partition : partitions) {
+                partition.queue.add(task);
+            }
+        }
+        if (stopped) {
+            task.result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+
+        try {
+            task.result.join();
+        } catch (CompletionException ex) {
+            throw new TransactionAbortedException(SERVER_SHUTDOWN);
+        }
+        return task.total;
+    }
+
+    /**
+     * Stops taking scripts, and waits for the ones taken to finish. Those that did not finish in
+     * time are aborted with SERVER_SHUTDOWN once the owners are gone
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return the number of scripts that did not finish in time
+     */
+    public int shutDown(long timeoutMillis) {
+        keepgoing = false;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        // the owners finish the script at hand, and leave the ones waiting for others behind
+        for (Partition partition : partitions) {
+            partition.shutDown();
+        }
+        for (Partition partition : partitions) {
+            try {
+                partition.join();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        stopped = true;
+
+        int unfinished = outstanding.get();
+        ArrayList<Runnable> left = new ArrayList<>();
+        for (Partition partition : partitions) {
+            partition.queue.drainTo(left);
+        }
+        for (Runnable task : left) {
+            ((ScriptTask) task).result.completeExceptionally(new TransactionAbortedException(SERVER_SHUTDOWN));
+        }
+        return unfinished;
+    }
+
+    /**
+     * Helper method returning what the partitions did as text
+     *
+     * @return one line
+     */
+    public String getReport() {
+        long single = 0;
+        StringBuilder perPartition = new StringBuilder();
+        for (Partition partition : partitions) {
+            single += partition.scripts;
+            perPartition.append(perPartition.length() == 0 ? "" : "/").append(partition.scripts);
+        }
+        return partitions.length + " partitions, " + single + " single-partition scripts (" + perPartition + "), "
+                + multiPartitionScripts.get() + " spanning partitions";
+    }
+
+    /**
+     * Helper method looking up an account in the partition that owns it
+     */
+    private Account account(int number) {
+        if (number < 0) {
+            return null;
+        }
+        Account[] accounts = partitions[number % partitions.length].accounts;
+        int index = number / partitions.length;
+        return index < accounts.length ? accounts[index] : null;
+    }
+
+    /**
+     * Helper method running a script on the accounts, by the thread owning all of them right now
+     */
+    private void execute(TransactionScript script, CompletableFuture<int[]> result, long submitted) {
+        int[] balances = new int[script.size()];
+
+        // only needed for the history
+        Transaction transaction = null;
+        ReadWriteSet readWriteSet = null;
+        if (history != null) {
+            transaction = transactionManager.createInternalTransaction();
+            readWriteSet = new ReadWriteSet();
+            transaction.setReadWriteSet(readWriteSet);
+        }
+
+        for (int step = 0; step < script.size(); step++) {
+            Account account = account(script.getAccount(step));
+            balances[step] = account._read();
+            if (readWriteSet != null) {
+                readWriteSet.recordRead(account.getNumber(), account.getVersion(), balances[step]);
+            }
+
+            if (script.getAmount(step) != 0) {
+                account._write(balances[step] + script.getAmount(step));
+                if (readWriteSet != null) {
+                    readWriteSet.recordWrite(account.getNumber(), balances[step] + script.getAmount(step));
+                }
+            }
+        }
+
+        if (history != null) {
+            history.commit(transaction, accountManager);
+            transactionManager.releaseUndoLog(transaction);
+        }
+        Metrics.recorder().recordCommit(System.nanoTime() - submitted);
+        result.complete(balances);
+    }
+}
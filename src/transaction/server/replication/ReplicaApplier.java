@@ -0,0 +1,251 @@
+package transaction.server.replication;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.server.TransactionServer;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+
+/**
+ * Class [ReplicaApplier] Runs on a replica. Tails the primary's committed-write stream and applies
+ * it to the local accounts in commit order. Each record is applied as a transaction of its own,
+ * so the read-only transactions served by the replica only ever see states the primary committed.
+ *
+ * If the connection to the primary is lost, e.g. because the primary dropped this replica for
+ * falling too far behind, the replica subscribes again and starts over from a new snapshot. Until
+ * that is applied, it is not in sync and turns reads away, so clients go to the primary instead.
+ *
+ * @author wolfdieterotte
+ */
+public class ReplicaApplier extends Thread implements MessageTypes {
+
+    // how long to wait before subscribing again after the connection to the primary is lost
+    private static final long RECONNECT_MILLIS = 1000;
+
+    // connection to the primary
+    private final String primaryHost;
+    private final int primaryReplicationPort;
+    private Socket primary;
+    private ObjectInputStream readFromNet;
+
+    // records received but not yet applied
+    private final LinkedBlockingQueue<ReplicationRecord> pending = new LinkedBlockingQueue<>();
+
+    // commit time of the record currently being applied, 0 if none
+    private volatile long applyingCommitTime = 0;
+
+    // commit time of the last record applied
+    private volatile long appliedCommitTime = 0;
+
+    // position in the primary's commit order up to which this replica is up to date
+    private volatile long appliedSequence = 0;
+
+    // false while the connection to the primary is lost
+    private volatile boolean connected = true;
+
+    // true once the snapshot of the current subscription is applied, the snapshot awaited until then
+    private volatile boolean inSync = false;
+    private ReplicationRecord awaitedSnapshot = null;
+
+    // the replica
+    private final TransactionServer server;
+
+    /**
+     * Constructor, subscribes to the primary
+     *
+     * @param server the replica
+     * @param primaryHost host of the primary
+     * @param primaryReplicationPort replication port of the primary
+     * @throws IOException if the primary cannot be reached
+     */
+    public ReplicaApplier(TransactionServer server, String primaryHost, int primaryReplicationPort) throws IOException {
+        this.server = server;
+        this.primaryHost = primaryHost;
+        this.primaryReplicationPort = primaryReplicationPort;
+        subscribe();
+
+        setDaemon(true);
+        setName("ReplicaApplier");
+
+        // the receiving side runs in its own thread, so that applying never holds up the primary
+        Thread receiver = new Thread(this::receive, "ReplicaReceiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Helper method connecting to the primary and subscribing, the primary answers with a snapshot
+     */
+    private void subscribe() throws IOException {
+        primary = new Socket(primaryHost, primaryReplicationPort);
+        ObjectOutputStream writeToNet = new ObjectOutputStream(primary.getOutputStream());
+        writeToNet.flush();
+        readFromNet = new ObjectInputStream(primary.getInputStream());
+
+        writeToNet.writeObject(new Message(REPLICATION_SUBSCRIBE));
+        writeToNet.flush();
+    }
+
+    /**
+     * Receive loop, queues records for the applier, and subscribes again whenever the connection is lost
+     */
+    private void receive() {
+        while (true) {
+            try {
+                while (true) {
+                    Message message = (Message) readFromNet.readObject();
+                    ReplicationRecord record = (ReplicationRecord) message.getContent();
+                    if (record.snapshot) {
+                        synchronized (this) {
+                            awaitedSnapshot = record;
+                        }
+                    }
+                    pending.add(record);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                synchronized (this) {
+                    connected = false;
+                    inSync = false;
+                    awaitedSnapshot = null;
+                }
+                System.out.println("[ReplicaApplier.receive] Lost connection to primary, reads go to the primary until resubscribed: " + e);
+            }
+
+            try {
+                primary.close();
+            } catch (IOException e) {
+                // ignore
+            }
+
+            // what is still pending is overwritten by the new snapshot anyway
+            while (true) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                    subscribe();
+                    connected = true;
+                    System.out.println("[ReplicaApplier.receive] Subscribed to primary again");
+                    break;
+                } catch (IOException e) {
+                    // primary not back yet, keep trying
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply loop
+     */
+    @Override
+    public void run() {
+        ReplicationRecord record;
+
+        while (true) {
+            try {
+                record = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            applyingCommitTime = record.commitTime;
+            apply(record);
+
+            if (record.snapshot) {
+                synchronized (this) {
+                    if (record == awaitedSnapshot) {
+                        inSync = true;
+                    }
+                }
+            }
+
+            appliedSequence = record.sequence;
+            appliedCommitTime = record.commitTime;
+            applyingCommitTime = 0;
+        }
+    }
+
+    /**
+     * Applies one record under write locks, starting over while local readers are in the way
+     *
+     * @param record the record to apply
+     */
+    private void apply(ReplicationRecord record) {
+        Transaction transaction;
+
+        while (true) {
+            transaction = server.getTransactionManager().createInternalTransaction();
+            try {
+                for (int i = 0; i < record.accounts.length; i++) {
+                    server.getAccountManager().write(record.accounts[i], transaction, record.balances[i]);
+                }
+                break;
+            } catch (TransactionAbortedException e) {
+                // restore what was written so far, readers must not see half a record
+                transaction.getUndoLog().rollback(server.getAccountManager());
+                server.getLockManager().unLock(transaction);
+                server.getTransactionManager().releaseUndoLog(transaction);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    // ignore
+                }
+            }
+        }
+
+        server.getAccountManager().install(transaction);
+        server.getLockManager().unLock(transaction);
+        server.getTransactionManager().releaseUndoLog(transaction);
+    }
+
+    /**
+     * Helper method telling whether this replica may serve reads: it is subscribed and has applied
+     * the snapshot of its subscription, so what it has is a state the primary committed recently
+     *
+     * @return true if in sync with the primary
+     */
+    public boolean isInSync() {
+        return inSync;
+    }
+
+    /**
+     * Helper method returning how far this replica is behind the primary
+     *
+     * @return the replication lag in milliseconds, i.e. the age of the oldest commit not yet applied
+     */
+    public long getReplicationLag() {
+        long oldestUnapplied = applyingCommitTime;
+
+        if (oldestUnapplied == 0) {
+            ReplicationRecord next = pending.peek();
+            if (next != null) {
+                oldestUnapplied = next.commitTime;
+            }
+        }
+
+        if (oldestUnapplied != 0) {
+            return Math.max(0, System.currentTimeMillis() - oldestUnapplied);
+        }
+
+        // caught up with everything received, but without a primary we cannot tell what we missed
+        if (!connected && appliedCommitTime != 0) {
+            return System.currentTimeMillis() - appliedCommitTime;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Helper method returning the position in the primary's commit order this replica is up to date with
+     *
+     * @return the sequence number of the last applied record
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+}
@@ -0,0 +1,237 @@
+package transaction.server.replication;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.server.TransactionServer;
+import transaction.server.lock.TransactionAbortedException;
+import transaction.server.transaction.Transaction;
+
+/**
+ * Class [ReplicationPublisher] Runs on the primary and ships the stream of committed writes to
+ * any number of replicas. A replica subscribes by connecting to the replication port, receives a
+ * consistent snapshot of all balances first and then every commit in the order the primary applied it.
+ * A replica falling more than REPLICATION_QUEUE_SIZE records behind is dropped, rather than
+ * having the primary hold on to an ever growing backlog for it.
+ *
+ * @author wolfdieterotte
+ */
+public class ReplicationPublisher extends Thread implements MessageTypes {
+
+    // the server socket replicas connect to
+    private final ServerSocket replicationSocket;
+
+    // the replicas currently attached
+    private final ArrayList<Subscriber> subscribers = new ArrayList<>();
+
+    // position in the commit order, incremented for each published record
+    private long sequence = 0;
+
+    // the primary
+    private final TransactionServer server;
+
+    // how many records may wait for a replica before it is dropped
+    private final int queueSize;
+
+    /**
+     * Constructor
+     *
+     * @param server the primary
+     * @param replicationPort port replicas connect to
+     * @param queueSize how many records may wait for a replica before it is dropped
+     * @throws IOException if the replication socket cannot be created
+     */
+    public ReplicationPublisher(TransactionServer server, int replicationPort, int queueSize) throws IOException {
+        this.server = server;
+        this.queueSize = Math.max(1, queueSize);
+        replicationSocket = new ServerSocket(replicationPort);
+        setDaemon(true);
+        setName("ReplicationPublisher");
+    }
+
+    /**
+     * Publishes the writes of a committing transaction. Must be called while the transaction
+     * still holds its write locks, so that conflicting commits are published in commit order
+     *
+     * @param transaction the committing transaction
+     */
+    public void publish(Transaction transaction) {
+        int[] accounts = transaction.getWrittenAccounts();
+
+        synchronized (this) {
+            sequence++;
+
+            // read-only transactions and commits nobody listens to are not shipped
+            if (accounts.length == 0 || subscribers.isEmpty()) {
+                return;
+            }
+
+            int[] balances = new int[accounts.length];
+            for (int i = 0; i < accounts.length; i++) {
+                balances[i] = server.getAccountManager().getAccount(accounts[i])._read();
+            }
+
+            ReplicationRecord record = new ReplicationRecord(sequence, System.currentTimeMillis(), accounts, balances, false);
+            Iterator<Subscriber> iterator = subscribers.iterator();
+            while (iterator.hasNext()) {
+                Subscriber subscriber = iterator.next();
+                if (!subscriber.queue.offer(record)) {
+                    // this replica stalled, it would only fall further behind
+                    System.out.println("[ReplicationPublisher.publish] Replica " + subscriber.replica.getRemoteSocketAddress()
+                            + " more than " + queueSize + " records behind, dropped");
+                    iterator.remove();
+                    subscriber.drop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Attaches a new replica: takes a snapshot of all accounts under read locks, so that the
+     * snapshot and the commits published afterwards line up exactly
+     *
+     * @param subscriber the replica to attach
+     */
+    private void subscribe(Subscriber subscriber) {
+        Transaction snapshotTransaction;
+        int[] balances;
+
+        // read-lock all accounts, starting over whenever a writer is in the way
+        while (true) {
+            snapshotTransaction = server.getTransactionManager().createInternalTransaction();
+            try {
+                balances = server.getAccountManager().readAll(snapshotTransaction);
+                break;
+            } catch (TransactionAbortedException e) {
+                server.getLockManager().unLock(snapshotTransaction);
+                server.getTransactionManager().releaseUndoLog(snapshotTransaction);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    // ignore
+                }
+            }
+        }
+
+        int[] accounts = new int[balances.length];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = i;
+        }
+
+        synchronized (this) {
+            subscriber.queue.add(new ReplicationRecord(++sequence, System.currentTimeMillis(), accounts, balances, true));
+            subscribers.add(subscriber);
+        }
+
+        server.getLockManager().unLock(snapshotTransaction);
+        server.getTransactionManager().releaseUndoLog(snapshotTransaction);
+        subscriber.start();
+
+        System.out.println("[ReplicationPublisher.subscribe] Replica attached at sequence #" + sequence);
+    }
+
+    /**
+     * Detaches a replica whose connection went away
+     *
+     * @param subscriber the replica to detach
+     */
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Accept loop for replicas
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Socket replica = replicationSocket.accept();
+                Subscriber subscriber = new Subscriber(replica);
+
+                Message message = (Message) subscriber.readFromNet.readObject();
+                if (message.getType() == REPLICATION_SUBSCRIBE) {
+                    subscribe(subscriber);
+                } else {
+                    replica.close();
+                }
+            } catch (SocketException e) {
+                // replication socket closed, server is shutting down
+                return;
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("[ReplicationPublisher.run] Failed to attach replica: " + e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting replicas
+     */
+    public void shutDown() {
+        try {
+            replicationSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Objects of this inner class ship the records queued for one replica
+     */
+    private class Subscriber extends Thread {
+
+        final Socket replica;
+        final ObjectInputStream readFromNet;
+        final ObjectOutputStream writeToNet;
+
+        // records not yet sent to this replica, in commit order
+        final LinkedBlockingQueue<ReplicationRecord> queue = new LinkedBlockingQueue<>(queueSize);
+
+        Subscriber(Socket replica) throws IOException {
+            this.replica = replica;
+            writeToNet = new ObjectOutputStream(replica.getOutputStream());
+            writeToNet.flush();
+            readFromNet = new ObjectInputStream(replica.getInputStream());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    writeToNet.writeObject(new Message(REPLICATION_RECORD, queue.take()));
+
+                    // don't let the stream's back reference table grow with the stream
+                    writeToNet.reset();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("[ReplicationPublisher.Subscriber] Replica detached: " + e);
+            }
+
+            unsubscribe(this);
+            drop();
+        }
+
+        /**
+         * Closes the connection to the replica, and ends the thread shipping to it, which may be
+         * waiting for a record
+         */
+        void drop() {
+            interrupt();
+            queue.clear();
+            try {
+                replica.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package transaction.server.replication;
+
+import java.io.Serializable;
+
+/**
+ * Class [ReplicationRecord] One entry of the primary's committed-write stream.
+ * A record carries the final balances a committed transaction wrote, or, if it is a snapshot,
+ * the balances of all accounts at the point the replica subscribed.
+ *
+ * @author wolfdieterotte
+ */
+public class ReplicationRecord implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // position of this record in the primary's commit order
+    final long sequence;
+
+    // wall clock time the primary committed this record, used to compute replication lag
+    final long commitTime;
+
+    // accounts written and their balances after the commit, indices correspond
+    final int[] accounts;
+    final int[] balances;
+
+    // true if this record is the initial state a replica starts out from
+    final boolean snapshot;
+
+    public ReplicationRecord(long sequence, long commitTime, int[] accounts, int[] balances, boolean snapshot) {
+        this.sequence = sequence;
+        this.commitTime = commitTime;
+        this.accounts = accounts;
+        this.balances = balances;
+        this.snapshot = snapshot;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getCommitTime() {
+        return commitTime;
+    }
+
+    public int[] getAccounts() {
+        return accounts;
+    }
+
+    public int[] getBalances() {
+        return balances;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,30 @@
+package transaction.server.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Class [LockWaitEvent] JFR event for a transaction that ran into a lock conflict, lasting
+ * until the lock was granted or the transaction was aborted over it.
+ *
+ * @author wolfdieterotte
+ */
+@Name("transaction.LockWait")
+@Label("Lock Wait")
+@Category("Transaction Server")
+public class LockWaitEvent extends Event {
+
+    @Label("Transaction")
+    public int transactionID;
+
+    @Label("Account")
+    public int account;
+
+    @Label("Lock Type")
+    public String lockType;
+
+    @Label("Aborted")
+    public boolean aborted;
+}
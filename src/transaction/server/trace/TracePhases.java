@@ -0,0 +1,19 @@
+package transaction.server.trace;
+
+/**
+ * Interface [TracePhases] Defines the phases the time of a transaction is broken down into.
+ * 
+ * @author wolfdieterotte
+ */
+public interface TracePhases 
+{
+    
+    public static final int ACCEPT    = 0;  // setting up the connection
+    public static final int OPEN      = 1;  // creating the transaction and confirming it
+    public static final int RECEIVE   = 2;  // waiting for and decoding a request
+    public static final int APPLY     = 3;  // executing a request, including lock waits
+    public static final int LOCK_WAIT = 4;  // waiting for a lock
+    public static final int REPLY     = 5;  // writing the reply
+    public static final int COMMIT    = 6;  // installing, publishing and releasing the locks
+    public static final int ABORT     = 7;  // rolling back and releasing the locks
+}
@@ -0,0 +1,23 @@
+package transaction.server.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Class [TransactionAbortEvent] JFR event for an aborted transaction.
+ *
+ * @author wolfdieterotte
+ */
+@Name("transaction.Abort")
+@Label("Transaction Abort")
+@Category("Transaction Server")
+public class TransactionAbortEvent extends Event {
+
+    @Label("Transaction")
+    public int transactionID;
+
+    @Label("Cause")
+    public String cause;
+}
@@ -0,0 +1,158 @@
+package transaction.server.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import transaction.server.log.EventLog;
+import transaction.server.log.LogLevels;
+
+/**
+ * Class [TransactionTrace] Timestamps the phases of the transactions run by one worker into a
+ * preallocated span buffer, reused from one transaction to the next.
+ *
+ * Whether a transaction is traced is decided when it opens: one in every TRACE_SAMPLE_RATE
+ * transactions is sampled; if a slow threshold is set, all transactions are timed and the ones
+ * exceeding it are reported as well. A finished traced transaction is written to the event log
+ * as a waterfall. With tracing off, taking a timestamp is a field read and nothing is recorded.
+ *
+ * @author wolfdieterotte
+ */
+public class TransactionTrace implements TracePhases, LogLevels {
+
+    private static final int CAPACITY = 64;
+    private static final int BAR_WIDTH = 40;
+    private static final String[] PHASE_NAMES = {"ACCEPT", "OPEN", "RECEIVE", "APPLY", "LOCK_WAIT", "REPLY", "COMMIT", "ABORT"};
+
+    // configuration, shared by all workers
+    private static int sampleRate = 0;
+    private static long slowNanos = 0;
+    private static final AtomicLong transactionCounter = new AtomicLong();
+
+    // the span buffer
+    private final int[] phases = new int[CAPACITY];
+    private final long[] starts = new long[CAPACITY];
+    private final long[] ends = new long[CAPACITY];
+    private final int[] details = new int[CAPACITY];
+    private int size = 0;
+
+    // true while spans are recorded, sampled if the transaction is reported regardless of its duration
+    private boolean active;
+    private boolean sampled;
+
+    /**
+     * Configures tracing, must be called before the server takes traffic
+     *
+     * @param traceSampleRate one in this many transactions is traced, 0 for none
+     * @param slowMillis transactions taking longer than this are traced, 0 for none
+     */
+    public static void configure(int traceSampleRate, int slowMillis) {
+        sampleRate = traceSampleRate;
+        slowNanos = slowMillis * 1_000_000L;
+    }
+
+    /**
+     * Helper method to check if tracing is configured at all
+     *
+     * @return true if transactions are sampled or checked for being slow
+     */
+    public static boolean isEnabled() {
+        return sampleRate > 0 || slowNanos > 0;
+    }
+
+    public TransactionTrace() {
+        active = isEnabled();
+    }
+
+    /**
+     * Takes a timestamp for the start of a span
+     *
+     * @return the time in nanoseconds, 0 if nothing is traced
+     */
+    public long now() {
+        return active ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a span that started at the given time and ends now
+     *
+     * @param phase the phase, see TracePhases
+     * @param start the start time, as returned by now()
+     * @param detail account number, message type or the like, -1 for none
+     */
+    public void span(int phase, long start, int detail) {
+        if (active) {
+            span(phase, start, System.nanoTime(), detail);
+        }
+    }
+
+    /**
+     * Records a span with given start and end, e.g. a lock wait measured elsewhere
+     */
+    public void span(int phase, long start, long end, int detail) {
+        if (!active || size == CAPACITY) return;
+
+        phases[size] = phase;
+        starts[size] = start;
+        ends[size] = end;
+        details[size] = detail;
+        size++;
+    }
+
+    /**
+     * Decides whether the transaction that is just opening is traced
+     *
+     * @return true if it is, i.e. spans recorded are worth passing on to the transaction
+     */
+    public boolean open() {
+        if (!isEnabled()) {
+            active = false;
+            return false;
+        }
+
+        sampled = sampleRate > 0 && transactionCounter.incrementAndGet() % sampleRate == 0;
+        active = sampled || slowNanos > 0;
+        return active;
+    }
+
+    /**
+     * Ends the trace of a transaction, reports it if it was sampled or slow, and gets ready for the next
+     *
+     * @param transactionID the transaction
+     * @param outcome COMMITTED or ABORTED
+     */
+    public void finish(int transactionID, String outcome) {
+        if (active && size > 0) {
+            long total = ends[size - 1] - starts[0];
+            if (sampled || (slowNanos > 0 && total > slowNanos)) {
+                EventLog.log(INFO, transactionID, waterfall(outcome, total));
+            }
+        }
+
+        size = 0;
+        sampled = false;
+        active = isEnabled();
+    }
+
+    /**
+     * Formats the spans as a waterfall, one line per span with a bar showing when it happened
+     */
+    private String waterfall(String outcome, long total) {
+        StringBuilder waterfall = new StringBuilder();
+        long origin = starts[0];
+
+        waterfall.append("TRACE ").append(outcome).append(sampled ? " (sampled)" : " (slow)")
+                 .append(String.format(" total %.3fms%n", total / 1e6));
+
+        for (int i = 0; i < size; i++) {
+            int from = (int) ((starts[i] - origin) * BAR_WIDTH / Math.max(1, total));
+            int to = (int) ((ends[i] - origin) * BAR_WIDTH / Math.max(1, total));
+
+            waterfall.append(String.format("    %-9s %6s +%9.3fms %9.3fms |", PHASE_NAMES[phases[i]],
+                    details[i] < 0 ? "" : "#" + details[i], (starts[i] - origin) / 1e6, (ends[i] - starts[i]) / 1e6));
+            for (int column = 0; column < BAR_WIDTH; column++) {
+                waterfall.append(column >= from && column <= Math.max(from, to - 1) ? '=' : ' ');
+            }
+            waterfall.append("|\n");
+        }
+
+        return waterfall.toString();
+    }
+}
@@ -0,0 +1,220 @@
+package transaction.server.transaction;
+
+import java.util.ArrayDeque;
+import java.util.Properties;
+
+/**
+ * Class [AdmissionController] Caps the number of transactions running at a time, so that under
+ * overload lock conflicts do not grow without bound and throughput levels off instead of collapsing.
+ *
+ * A transaction asks to be admitted when it opens. If the cap is reached, it waits in a queue, up
+ * to a timeout; if the queue is full, or the timeout expires, it is turned away and the client
+ * gets a BUSY reply. Restarts of aborted transactions have a queue of their own, which is served
+ * first and has no size limit, so work already invested is not thrown away twice.
+ *
+ * The cap is either STATIC, or adapted AIMD style: every adjustment period, if the share of aborts
+ * or the mean latency of the transactions that finished is above its target, the cap is cut by a
+ * quarter, otherwise, if the cap was reached, it goes up by one.
+ *
+ * Configured by the ADMISSION_* server properties.
+ *
+ * @author wolfdieterotte
+ */
+public class AdmissionController {
+
+    public static final String STATIC = "STATIC";
+    public static final String AIMD = "AIMD";
+
+    // configuration
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueSize;
+    private final long queueTimeoutMillis;
+    private final double targetAbortRate;
+    private final long targetLatencyNanos;
+    private final long adjustNanos;
+
+    // current cap and number of transactions admitted and not finished yet
+    private int limit;
+    private int active = 0;
+
+    // transactions waiting to be admitted, restarts are served first
+    private final ArrayDeque<Waiter> restarts = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> fresh = new ArrayDeque<>();
+
+    // what finished in the current adjustment period, and whether the cap was reached in it
+    private long windowEnd;
+    private long windowCommits = 0;
+    private long windowAborts = 0;
+    private long windowLatency = 0;
+    private boolean windowSaturated = false;
+
+    // counters
+    private long admitted = 0;
+    private long queued = 0;
+    private long rejected = 0;
+    private long timedOut = 0;
+    private long increases = 0;
+    private long decreases = 0;
+
+    /**
+     * A transaction waiting to be admitted, the slot is handed over to it directly
+     */
+    private static class Waiter {
+        boolean admitted = false;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serverProperties the server's properties, for the ADMISSION_* settings
+     */
+    public AdmissionController(Properties serverProperties) {
+        adaptive = AIMD.equalsIgnoreCase(serverProperties.getProperty("ADMISSION_MODE", STATIC).trim());
+        limit = Integer.parseInt(serverProperties.getProperty("ADMISSION_LIMIT").trim());
+        minLimit = Math.max(1, Integer.parseInt(serverProperties.getProperty("ADMISSION_MIN_LIMIT", "1").trim()));
+        maxLimit = Math.max(limit, Integer.parseInt(serverProperties.getProperty("ADMISSION_MAX_LIMIT", "1024").trim()));
+        queueSize = Integer.parseInt(serverProperties.getProperty("ADMISSION_QUEUE", "1000").trim());
+        queueTimeoutMillis = Long.parseLong(serverProperties.getProperty("ADMISSION_QUEUE_TIMEOUT_MILLIS", "1000").trim());
+        targetAbortRate = Double.parseDouble(serverProperties.getProperty("ADMISSION_TARGET_ABORT_RATE", "0.1").trim());
+        targetLatencyNanos = (long) (Double.parseDouble(serverProperties.getProperty("ADMISSION_TARGET_LATENCY_MILLIS", "0").trim()) * 1_000_000);
+        adjustNanos = Long.parseLong(serverProperties.getProperty("ADMISSION_ADJUST_MILLIS", "100").trim()) * 1_000_000;
+
+        windowEnd = System.nanoTime() + adjustNanos;
+    }
+
+    /**
+     * Admits a transaction, waiting for a slot if the cap is reached
+     *
+     * @param restart true if the transaction restarts one that aborted
+     * @return true if admitted, false if the transaction is turned away
+     */
+    public boolean admit(boolean restart) {
+        Waiter waiter;
+
+        synchronized (this) {
+            if (active < limit && restarts.isEmpty() && (restart || fresh.isEmpty())) {
+                active++;
+                admitted++;
+                windowSaturated |= active == limit;
+                return true;
+            }
+
+            windowSaturated = true;
+            if (!restart && fresh.size() >= queueSize) {
+                rejected++;
+                return false;
+            }
+
+            waiter = new Waiter();
+            (restart ? restarts : fresh).add(waiter);
+            queued++;
+        }
+
+        long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+        synchronized (waiter) {
+            long remaining;
+            while (!waiter.admitted && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    waiter.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            // the slot may have been handed over just as we gave up
+            if (waiter.admitted) {
+                return true;
+            }
+            restarts.remove(waiter);
+            fresh.remove(waiter);
+            timedOut++;
+            return false;
+        }
+    }
+
+    /**
+     * Gives back the slot of a finished transaction
+     *
+     * @param committed true if it committed, false if it aborted
+     * @param latencyNanos how long it ran
+     */
+    public synchronized void release(boolean committed, long latencyNanos) {
+        active--;
+
+        if (committed) {
+            windowCommits++;
+            windowLatency += latencyNanos;
+        } else {
+            windowAborts++;
+        }
+
+        if (adaptive) {
+            long now = System.nanoTime();
+            if (now >= windowEnd) {
+                adjust();
+                windowEnd = now + adjustNanos;
+            }
+        }
+
+        // hand the free slots over to the waiting transactions, restarts first
+        while (active < limit && !(restarts.isEmpty() && fresh.isEmpty())) {
+            Waiter waiter = restarts.isEmpty() ? fresh.poll() : restarts.poll();
+            active++;
+            admitted++;
+            synchronized (waiter) {
+                waiter.admitted = true;
+                waiter.notify();
+            }
+        }
+    }
+
+    /**
+     * Helper method adapting the cap to what finished in the adjustment period that just ended
+     */
+    private void adjust() {
+        long finished = windowCommits + windowAborts;
+
+        // too few to tell
+        if (finished >= 10) {
+            boolean aborting = windowAborts > targetAbortRate * finished;
+            boolean slow = targetLatencyNanos > 0 && windowCommits > 0 && windowLatency / windowCommits > targetLatencyNanos;
+
+            if (aborting || slow) {
+                limit = Math.max(minLimit, limit - Math.max(1, limit / 4));
+                decreases++;
+            } else if (windowSaturated && limit < maxLimit) {
+                limit++;
+                increases++;
+            }
+        }
+
+        windowCommits = 0;
+        windowAborts = 0;
+        windowLatency = 0;
+        windowSaturated = active >= limit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * Helper method returning the state of the controller as text
+     *
+     * @return one line
+     */
+    public synchronized String getReport() {
+        return (adaptive ? AIMD : STATIC) + " limit " + limit + ", " + active + " active, "
+                + (restarts.size() + fresh.size()) + " waiting (" + restarts.size() + " restarts); "
+                + admitted + " admitted, " + queued + " queued, " + rejected + " rejected, " + timedOut + " timed out"
+                + (adaptive ? "; limit raised " + increases + ", cut " + decreases + " times" : "");
+    }
+}
@@ -0,0 +1,128 @@
+package transaction.server.transaction;
+
+/**
+ * Class [ReadWriteSet] What a transaction read and wrote, for the history a checker verifies:
+ * for each account the version and balance it read first, unless it wrote the account before,
+ * and the balance it wrote last. Kept in primitive arrays and reused by a worker for each
+ * transaction it runs, like the undo log.
+ *
+ * @author wolfdieterotte
+ */
+public class ReadWriteSet {
+
+    // accounts touched, indices correspond
+    private int[] accounts;
+    private boolean[] read;
+    private long[] readVersions;
+    private int[] readBalances;
+    private boolean[] written;
+    private int[] writtenBalances;
+    private int size = 0;
+
+    public ReadWriteSet() {
+        accounts = new int[8];
+        read = new boolean[8];
+        readVersions = new long[8];
+        readBalances = new int[8];
+        written = new boolean[8];
+        writtenBalances = new int[8];
+    }
+
+    /**
+     * Records a read, only the first read of an account not written before counts
+     *
+     * @param account the account
+     * @param version the version read
+     * @param balance the balance read
+     */
+    public void recordRead(int account, long version, int balance) {
+        if (indexOf(account) >= 0) {
+            return;
+        }
+
+        int index = add(account);
+        read[index] = true;
+        readVersions[index] = version;
+        readBalances[index] = balance;
+    }
+
+    /**
+     * Records a write, the last write of an account counts
+     *
+     * @param account the account
+     * @param balance the balance written
+     */
+    public void recordWrite(int account, int balance) {
+        int index = indexOf(account);
+        if (index < 0) {
+            index = add(account);
+        }
+
+        written[index] = true;
+        writtenBalances[index] = balance;
+    }
+
+    /**
+     * Empties the set, so it can be reused for the next transaction
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAccount(int index) {
+        return accounts[index];
+    }
+
+    public boolean isRead(int index) {
+        return read[index];
+    }
+
+    public long getReadVersion(int index) {
+        return readVersions[index];
+    }
+
+    public int getReadBalance(int index) {
+        return readBalances[index];
+    }
+
+    public boolean isWritten(int index) {
+        return written[index];
+    }
+
+    public int getWrittenBalance(int index) {
+        return writtenBalances[index];
+    }
+
+    /**
+     * Helper method looking up an account, transactions touch few accounts so a scan will do
+     */
+    private int indexOf(int account) {
+        for (int i = 0; i < size; i++) {
+            if (accounts[i] == account) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int add(int account) {
+        if (size == accounts.length) {
+            int capacity = size * 2;
+            accounts = java.util.Arrays.copyOf(accounts, capacity);
+            read = java.util.Arrays.copyOf(read, capacity);
+            readVersions = java.util.Arrays.copyOf(readVersions, capacity);
+            readBalances = java.util.Arrays.copyOf(readBalances, capacity);
+            written = java.util.Arrays.copyOf(written, capacity);
+            writtenBalances = java.util.Arrays.copyOf(writtenBalances, capacity);
+        }
+
+        accounts[size] = account;
+        read[size] = false;
+        written[size] = false;
+        return size++;
+    }
+}
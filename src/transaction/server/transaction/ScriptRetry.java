@@ -0,0 +1,107 @@
+package transaction.server.transaction;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import transaction.server.lock.AbortCauses;
+
+/**
+ * Class [ScriptRetry] Runs a script that aborted for a conflict again on the server, instead of
+ * sending the abort back for the client to reconnect and start over. Before each retry it backs
+ * off for a random time between 0 and SCRIPT_RETRY_BASE_MICROS doubled with each retry, capped at
+ * SCRIPT_RETRY_MAX_MICROS, so scripts colliding once do not collide again in lockstep. After
+ * SCRIPT_RETRY_LIMIT retries the abort goes to the client.
+ *
+ * Only conflicts are retried, a script aborted for any other cause would abort again.
+ *
+ * @author wolfdieterotte
+ */
+public class ScriptRetry implements AbortCauses {
+
+    // configuration
+    private final int limit;
+    private final long baseNanos;
+    private final long maxNanos;
+
+    // counters
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong backoffNanos = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param serverProperties the server's properties, for the SCRIPT_RETRY_* settings
+     */
+    public ScriptRetry(Properties serverProperties) {
+        limit = Integer.parseInt(serverProperties.getProperty("SCRIPT_RETRY_LIMIT", "10").trim());
+        baseNanos = Long.parseLong(serverProperties.getProperty("SCRIPT_RETRY_BASE_MICROS", "20").trim()) * 1000;
+        maxNanos = Math.max(baseNanos, Long.parseLong(serverProperties.getProperty("SCRIPT_RETRY_MAX_MICROS", "2000").trim()) * 1000);
+    }
+
+    /**
+     * Helper method telling whether a script aborted for a cause may succeed when run again
+     *
+     * @param abortCause the cause
+     * @return true for conflicts
+     */
+    public static boolean isRetriable(int abortCause) {
+        return abortCause == LOCK_CONFLICT || abortCause == LOCK_TIMEOUT || abortCause == VALIDATION_FAILED;
+    }
+
+    /**
+     * Decides whether to run an aborted script again, and backs off if so
+     *
+     * @param attempt number of the attempt that aborted, from 0
+     * @param abortCause why it aborted
+     * @return true to retry, false if the abort goes to the client
+     */
+    public boolean retry(int attempt, int abortCause) {
+        if (!isRetriable(abortCause)) {
+            return false;
+        }
+        if (attempt >= limit) {
+            if (limit > 0) {
+                exhausted.incrementAndGet();
+            }
+            return false;
+        }
+
+        if (attempt == 0) {
+            retried.incrementAndGet();
+        }
+        retries.incrementAndGet();
+        backOff(attempt);
+        return true;
+    }
+
+    /**
+     * Waits a random time, up to twice as long as before with each retry
+     *
+     * @param attempt number of the attempt that aborted, from 0
+     */
+    public void backOff(int attempt) {
+        // doubled any further, the base would overflow
+        long ceiling = attempt >= Long.numberOfLeadingZeros(baseNanos) - 1 ? maxNanos : Math.min(maxNanos, baseNanos << attempt);
+        long nanos = ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+
+        backoffNanos.addAndGet(nanos);
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Helper method returning what was retried as text
+     *
+     * @return one line
+     */
+    public String getReport() {
+        return retried.get() + " scripts retried on the server, " + retries.get() + " retries, " + exhausted.get()
+                + " gave up after " + limit + "; " + String.format("%.1f", backoffNanos.get() / 1e6) + "ms backed off";
+    }
+}
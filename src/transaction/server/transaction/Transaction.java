@@ -1,27 +1,66 @@
 package transaction.server.transaction;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import transaction.server.TransactionServer;
+import transaction.server.account.Account;
 import transaction.server.lock.Lock;
+import transaction.server.log.EventLog;
+import transaction.server.log.LogLevels;
+import transaction.server.trace.TransactionTrace;
 
 /**
  * Class representing transactions
  * 
  * @author wolfdieterotte
  */
-public class Transaction {
+public class Transaction implements LogLevels {
 
     int transactionID;
     ArrayList<Lock> locks = null;
-    HashMap <Integer, Integer> beforeImage;
+
+    // age under wait-die, smaller is older: the ID, or the ID of the first attempt of a restart
+    int timestamp;
+    
+    // when each of the locks was acquired, indices correspond, and when the transaction started, in nanoseconds
+    long[] lockTimes = new long[8];
+    long startTime;
+ 
+    // before images, taken from the transaction manager's pool and handed back once the transaction is over
+    UndoLog undoLog;
+    
+    // private workspace with deferred updates, null with immediate updates
+    WriteBuffer writeBuffer;
+    
+    // what the transaction read and wrote while a history is kept, null otherwise
+    ReadWriteSet readWriteSet;
+    
+    // accounts read without a read lock, and their stamps then, validated when the transaction commits
+    Account[] optimisticAccounts = new Account[8];
+    long[] optimisticStamps = new long[8];
+    int optimisticReads = 0;
+    
+    // the lock the transaction is waiting for, null while it is not; cancelled once the transaction is reclaimed
+    private volatile CompletableFuture<Void> lockWait = null;
+    private volatile boolean reclaimed = false;
+    
+    // the worker's trace while this transaction is traced, null otherwise
+    TransactionTrace trace;
     
     StringBuffer log = new StringBuffer("");
     
     Transaction(int transactionID) {
+        this(transactionID, new UndoLog(), null);
+    }
+    
+    
+    Transaction(int transactionID, UndoLog undoLog, WriteBuffer writeBuffer) {
         this.transactionID = transactionID;
+        this.timestamp = transactionID;
         this.locks = new ArrayList();
-        this.beforeImage =  new HashMap();
+        this.undoLog = undoLog;
+        this.writeBuffer = writeBuffer;
+        this.startTime = System.nanoTime();
     }
     
     
@@ -30,38 +69,223 @@ public class Transaction {
     }
     
     
+    public int getTimestamp() {
+        return timestamp;
+    }
+    
+    
+    /**
+     * Makes a restart as old as the transaction it restarts, so it does not keep dying under wait-die
+     * 
+     * @param timestamp the ID of the transaction restarted
+     */
+    public void setTimestamp(int timestamp) {
+        this.timestamp = Math.min(this.timestamp, timestamp);
+    }
+    
+    
     public ArrayList<Lock> getLocks() {
         return locks;
     }
     
     
     public void addLock(Lock lock) {
+        if (locks.size() == lockTimes.length) {
+            lockTimes = java.util.Arrays.copyOf(lockTimes, lockTimes.length * 2);
+        }
+        lockTimes[locks.size()] = System.nanoTime();
         locks.add(lock);
     }
     
     
-    public HashMap getBeforeImage()
+    public long getLockTime(int index) {
+        return lockTimes[index];
+    }
+    
+    
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    
+    public UndoLog getUndoLog()
+    {
+        return undoLog;
+    }
+    
+    
+    public TransactionTrace getTrace()
+    {
+        return trace;
+    }
+    
+    
+    public void setTrace(TransactionTrace trace)
+    {
+        this.trace = trace;
+    }
+    
+    
+    public WriteBuffer getWriteBuffer()
+    {
+        return writeBuffer;
+    }
+    
+    
+    public ReadWriteSet getReadWriteSet()
+    {
+        return readWriteSet;
+    }
+    
+    
+    public void setReadWriteSet(ReadWriteSet readWriteSet)
     {
-        return beforeImage;
+        this.readWriteSet = readWriteSet;
+    }
+    
+    
+    public int[] getWrittenAccounts()
+    {
+        int[] accounts;
+        
+        if (writeBuffer != null) {
+            accounts = new int[writeBuffer.size()];
+            for (int index = 0; index < accounts.length; index++) {
+                accounts[index] = writeBuffer.getAccount(index);
+            }
+        } else {
+            accounts = new int[undoLog.size()];
+            for (int index = 0; index < accounts.length; index++) {
+                accounts[index] = undoLog.getAccount(index);
+            }
+        }
+        
+        return accounts;
+    }
+    
+    
+    /**
+     * Records a read done without a read lock, to be validated at commit
+     * 
+     * @param account the account read
+     * @param stamp its stamp before the read
+     */
+    public void addOptimisticRead(Account account, long stamp)
+    {
+        if (optimisticReads == optimisticAccounts.length) {
+            optimisticAccounts = java.util.Arrays.copyOf(optimisticAccounts, optimisticReads * 2);
+            optimisticStamps = java.util.Arrays.copyOf(optimisticStamps, optimisticReads * 2);
+        }
+        optimisticAccounts[optimisticReads] = account;
+        optimisticStamps[optimisticReads] = stamp;
+        optimisticReads++;
+    }
+    
+    
+    public int getOptimisticReadCount()
+    {
+        return optimisticReads;
+    }
+    
+    
+    public Account getOptimisticAccount(int index)
+    {
+        return optimisticAccounts[index];
+    }
+    
+    
+    public long getOptimisticStamp(int index)
+    {
+        return optimisticStamps[index];
+    }
+    
+    
+    /**
+     * Sets the lock the transaction is about to wait for, cancelled right away if the transaction
+     * was reclaimed meanwhile
+     * 
+     * @param lockWait the future of the lock request, null once the wait is over
+     */
+    public void setLockWait(CompletableFuture<Void> lockWait)
+    {
+        this.lockWait = lockWait;
+        if (lockWait != null && reclaimed) 
+        {
+            lockWait.cancel(false);
+        }
+    }
+    
+    
+    public boolean isWaitingForLock()
+    {
+        return lockWait != null;
+    }
+    
+    
+    /**
+     * Gets the transaction out of a lock wait it is in or about to begin, e.g. when the server
+     * shuts down; the wait ends with an abort
+     */
+    public void reclaim()
+    {
+        reclaimed = true;
+        CompletableFuture<Void> wait = lockWait;
+        if (wait != null) 
+        {
+            wait.cancel(false);
+        }
     }
     
     
     public void addBeforeImage(int account, int balance)
     {
-        beforeImage.put(account, balance);
+        // with deferred updates the accounts are not touched before commit, nothing to undo
+        if (writeBuffer != null) return;
         
-        this.log("[Transaction.addBeforeImage]   | set before image for account #" + account + " to $" + balance); 
+        undoLog.record(account, balance);
+        
+        this.log(DEBUG, "[Transaction.addBeforeImage]   | set before image for account #{}", account);
     }
 
     
     public void log (String logString) {
+        log(INFO, logString);
+    }
+    
+    
+    public void log (int level, String text) {
+        log(level, text, null, 0, 0);
+    }
+    
+    
+    public void log (int level, String text, int value) {
+        log(level, text, null, value, 1);
+    }
+    
+    
+    public void log (int level, String text, String detail, int value) {
+        log(level, text, detail, value, 2);
+    }
+    
+    
+    private void log (int level, String text, String detail, int value, int arguments) {
         
-        int messageCount = TransactionServer.getMessageCount();
-        
-        log.append("\n").append(messageCount).append(" ").append(logString);
+        if (!EventLog.isEnabled(level)) return;
         
-        if (!TransactionServer.transactionView) {
-            System.out.println(messageCount + " Transaction #" + transactionID + " " + logString);            
+        if (TransactionServer.transactionView) {
+            // keep the log with the transaction, it is printed in the summary
+            StringBuilder line = new StringBuilder();
+            EventLog.format(line, text, detail, value, arguments);
+            
+            synchronized (log) {
+                log.append("\n").append(EventLog.nextSequence()).append(" ").append(line);
+            }
+        } else {
+            switch (arguments) {
+                case 0:  EventLog.log(level, transactionID, text); break;
+                case 1:  EventLog.log(level, transactionID, text, value); break;
+                default: EventLog.log(level, transactionID, text, detail, value);
+            }
         }
     }
     
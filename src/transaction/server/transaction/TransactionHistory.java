@@ -0,0 +1,129 @@
+package transaction.server.transaction;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Class [TransactionHistory] Keeps finished transactions according to a retention policy.
+ * Either all of them are kept (what a short test run wants for its summary), only the most recent
+ * ones in a ring buffer, or none at all, in which case only the count is maintained.
+ * Either way heap usage of a long running server stays flat unless all transactions are kept.
+ *
+ * @author wolfdieterotte
+ */
+public class TransactionHistory {
+
+    // retention policies
+    public static final int KEEP_ALL    = 1;
+    public static final int KEEP_RECENT = 2;
+    public static final int KEEP_NONE   = 3;
+
+    private final int retentionPolicy;
+
+    // ring buffer used with KEEP_RECENT, list used with KEEP_ALL
+    private final Transaction[] recent;
+    private final ArrayList<Transaction> all;
+
+    // total number of transactions ever added, also the next write position in the ring buffer
+    private long count = 0;
+
+    /**
+     * Constructor
+     *
+     * @param retentionPolicy one of KEEP_ALL, KEEP_RECENT, KEEP_NONE
+     * @param capacity number of transactions kept with KEEP_RECENT, KEEP_RECENT with none kept is KEEP_NONE
+     */
+    public TransactionHistory(int retentionPolicy, int capacity) {
+        this.retentionPolicy = retentionPolicy == KEEP_RECENT && capacity <= 0 ? KEEP_NONE : retentionPolicy;
+        this.recent = this.retentionPolicy == KEEP_RECENT ? new Transaction[capacity] : null;
+        this.all = this.retentionPolicy == KEEP_ALL ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Adds a finished transaction, possibly evicting the oldest one kept
+     *
+     * @param transaction the finished transaction
+     */
+    public synchronized void add(Transaction transaction) {
+        switch (retentionPolicy) {
+            case KEEP_ALL:
+                all.add(transaction);
+                break;
+            case KEEP_RECENT:
+                recent[(int) (count % recent.length)] = transaction;
+                break;
+            default:
+                // only counted
+        }
+        count++;
+    }
+
+    /**
+     * Helper method returning the transactions kept
+     *
+     * @return the transactions kept, oldest first
+     */
+    public synchronized ArrayList<Transaction> getTransactions() {
+        switch (retentionPolicy) {
+            case KEEP_ALL:
+                return new ArrayList<>(all);
+            case KEEP_RECENT:
+                int kept = (int) Math.min(count, recent.length);
+                ArrayList<Transaction> transactions = new ArrayList<>(kept);
+                for (long index = count - kept; index < count; index++) {
+                    transactions.add(recent[(int) (index % recent.length)]);
+                }
+                return transactions;
+            default:
+                return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Hands the transactions kept to an action, oldest first, without copying them; transactions
+     * finishing meanwhile wait
+     *
+     * @param action what to do with each transaction
+     */
+    public synchronized void forEach(Consumer<Transaction> action) {
+        switch (retentionPolicy) {
+            case KEEP_ALL:
+                all.forEach(action);
+                break;
+            case KEEP_RECENT:
+                int kept = (int) Math.min(count, recent.length);
+                for (long index = count - kept; index < count; index++) {
+                    action.accept(recent[(int) (index % recent.length)]);
+                }
+                break;
+            default:
+                // none kept
+        }
+    }
+
+    /**
+     * Helper method returning how many transactions were ever added, kept or not
+     *
+     * @return the number of transactions
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Helper method to translate a retention policy name from the properties into its constant
+     *
+     * @param retentionPolicyString ALL, RECENT or NONE
+     * @return the retention policy constant, KEEP_RECENT if the name is not known
+     */
+    public static int getRetentionPolicy(String retentionPolicyString) {
+        switch (retentionPolicyString == null ? "" : retentionPolicyString.trim().toUpperCase()) {
+            case "ALL":
+                return KEEP_ALL;
+            case "NONE":
+                return KEEP_NONE;
+            default:
+                return KEEP_RECENT;
+        }
+    }
+}
@@ -1,18 +1,37 @@
 package transaction.server.transaction;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import transaction.comm.Message;
+import transaction.comm.MessageChannel;
 import transaction.comm.MessageTypes;
+import transaction.comm.TransactionScript;
 import static transaction.comm.MessageTypes.TRANSACTION_ABORTED;
 import transaction.server.TransactionServer;
 import transaction.server.account.Account;
+import transaction.server.account.AccountManager;
+import transaction.server.lock.AbortCauses;
+import transaction.server.lock.LockManager;
+import transaction.server.lock.LockTypes;
 import transaction.server.lock.TransactionAbortedException;
+import transaction.server.log.HistoryLog;
+import transaction.server.log.LogLevels;
+import transaction.server.log.WorkloadCapture;
+import transaction.server.metrics.Metrics;
+import transaction.server.metrics.ServerStats;
+import transaction.server.trace.TracePhases;
+import transaction.server.trace.TransactionAbortEvent;
+import transaction.server.trace.TransactionTrace;
 import utils.TerminalColors;
 import static utils.TerminalColors.ABORT_COLOR;
 import static utils.TerminalColors.READ_COLOR;
@@ -24,55 +43,393 @@ import static utils.TerminalColors.WRITE_COLOR;
  *
  * @author Dr.-Ing. Wolf-Dieter Otte
  */
-public class TransactionManager implements MessageTypes, TerminalColors {
+public class TransactionManager implements MessageTypes, TerminalColors, LogLevels, AbortCauses, LockTypes {
 
-    // counter for transaction IDs
-    private static int transactionIdCounter = 0;
+    // allocator for transaction IDs
+    private final AtomicInteger transactionIdCounter = new AtomicInteger(0);
 
-    // lists of transactions    
-    private static final ArrayList<Transaction> runningTransactions = new ArrayList<>();
-    private static final ArrayList<Transaction> committedTransactions = new ArrayList<>();
-    private static final ArrayList<Transaction> abortedTransactions = new ArrayList<>();
+    // running transactions by transaction ID, finished ones as far as the retention policy keeps them
+    private final ConcurrentHashMap<Integer, Transaction> runningTransactions = new ConcurrentHashMap<>();
+    private final TransactionHistory committedTransactions;
+    private final TransactionHistory abortedTransactions;
+
+    // undo logs not in use, handed back when a worker ends or a script or internal transaction is done with
+    // its log, so the number of logs is bounded by the number of transactions running at the same time
+    private final ConcurrentLinkedQueue<UndoLog> freeUndoLogs = new ConcurrentLinkedQueue<>();
+
+    // the server this transaction manager works for, and its managers
+    private final TransactionServer server;
+    private final AccountManager accountManager;
+    private final LockManager lockManager;
+
+    // where incoming requests are captured to, null if they are not
+    private final WorkloadCapture capture;
+
+    // where committed transactions are written to for the checker, null if they are not
+    private final HistoryLog history;
+
+    // caps the number of transactions running at a time, null if there is no cap
+    private final AdmissionController admission;
+
+    // how long a connection may stay silent, and a transaction idle, before it is dropped, 0 for ever
+    private final int receiveTimeoutMillis;
+    private final long idleTimeoutMillis;
+
+    // the workers currently serving a connection, looked over by the reaper
+    private final Set<TransactionManagerWorker> workers = ConcurrentHashMap.newKeySet();
+    private Thread reaper = null;
+    private volatile boolean reaping = true;
+
+    // set when the server shuts down, no more transactions are opened
+    private volatile boolean draining = false;
+
+    // transactions aborted because their client went away or idled, and connections dropped while silent
+    private final AtomicLong reclaimedTransactions = new AtomicLong(0);
+    private final AtomicLong timedOutConnections = new AtomicLong(0);
+
+    /**
+     * Constructor, the server's account and lock manager, and its capture, history and admission
+     * controller if any, must exist already
+     *
+     * @param server the server this transaction manager works for
+     * @param retentionPolicy how finished transactions are kept, see TransactionHistory
+     * @param historySize number of committed and of aborted transactions kept, if only recent ones are kept
+     * @param receiveTimeoutMillis how long a worker waits for the next request before it drops the connection, 0 for ever
+     * @param idleTimeoutMillis how long a transaction may go without a request before the reaper aborts it, 0 for ever
+     */
+    public TransactionManager(TransactionServer server, int retentionPolicy, int historySize, int receiveTimeoutMillis, long idleTimeoutMillis) {
+        this.server = server;
+        this.accountManager = server.getAccountManager();
+        this.lockManager = server.getLockManager();
+        this.capture = server.getWorkloadCapture();
+        this.history = server.getHistoryLog();
+        this.admission = server.getAdmissionController();
+        this.receiveTimeoutMillis = receiveTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        committedTransactions = new TransactionHistory(retentionPolicy, historySize);
+        abortedTransactions = new TransactionHistory(retentionPolicy, historySize);
+
+        if (idleTimeoutMillis > 0) {
+            reaper = new Thread(this::reap, "Reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+    }
+
+    /**
+     * Loop of the reaper thread: drops the connections of transactions whose clients have been
+     * idle for too long. A transaction waiting for a lock is waiting for the server, not idle. The
+     * reaper only reclaims the worker, see TransactionManagerWorker.reclaim(); the worker then rolls
+     * the transaction back and releases its locks itself
+     */
+    private void reap() {
+        long interval = Math.max(10, idleTimeoutMillis / 4);
+
+        while (reaping) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            for (TransactionManagerWorker worker : workers) {
+                if (worker.active && !worker.transaction.isWaitingForLock() && now - worker.lastActivity > idleTimeoutMillis * 1_000_000) {
+                    worker.reclaim(IDLE_TIMEOUT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets the running transactions finish, up to a deadline, and aborts the ones still running
+     * then; transactions opened meanwhile are turned away as if the server were busy. Like the
+     * reaper, this only reclaims the workers, which roll back themselves
+     *
+     * @param timeoutMillis how long to wait for the running transactions
+     * @return the number of transactions aborted because they did not finish in time
+     */
+    public int drain(long timeoutMillis) {
+        draining = true;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!runningTransactions.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        int cut = 0;
+        for (TransactionManagerWorker worker : workers) {
+            if (worker.active) {
+                worker.reclaim(SERVER_SHUTDOWN);
+                cut++;
+            }
+        }
+
+        // give them a moment to roll back
+        deadline = System.currentTimeMillis() + 1000;
+        while (!runningTransactions.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return cut;
+    }
 
     /**
-     * Default constructor, nothing to do
+     * Stops the reaper, transactions left idle are not reclaimed any more
      */
-    public TransactionManager() {
+    public void shutDown() {
+        reaping = false;
+        if (reaper != null) {
+            reaper.interrupt();
+        }
     }
 
     /**
      * Helper method returning currently running transactions
      *
-     * @return the list of currently running transactions
+     * @return the currently running transactions
      */
-    public ArrayList<Transaction> getRunningTransactions() {
-        return runningTransactions;
+    public Collection<Transaction> getRunningTransactions() {
+        return runningTransactions.values();
     }
 
     /**
      * Helper method returning committed transactions
      *
-     * @return the list of aborted transactions
+     * @return the committed transactions kept, oldest first
      */
     public ArrayList<Transaction> getCommittedTransactions() {
-        return committedTransactions;
+        return committedTransactions.getTransactions();
     }
 
     /**
      * Helper method returning aborted transactions
      *
-     * @return the list of aborted transactions
+     * @return the aborted transactions kept, oldest first
      */
     public ArrayList<Transaction> getAbortedTransactions() {
-        return abortedTransactions;
+        return abortedTransactions.getTransactions();
+    }
+
+    /**
+     * Hands the committed transactions kept to an action, oldest first, without copying them
+     *
+     * @param action what to do with each transaction
+     */
+    public void forEachCommittedTransaction(Consumer<Transaction> action) {
+        committedTransactions.forEach(action);
+    }
+
+    /**
+     * Helper method returning the number of transactions committed so far
+     *
+     * @return the number of committed transactions, kept or not
+     */
+    public long getCommittedCount() {
+        return committedTransactions.getCount();
+    }
+
+    /**
+     * Helper method returning the number of transactions aborted so far
+     *
+     * @return the number of aborted transactions, kept or not
+     */
+    public long getAbortedCount() {
+        return abortedTransactions.getCount();
+    }
+
+    /**
+     * Helper method returning the number of transactions aborted because their client went away
+     * or idled, releasing the locks they held
+     *
+     * @return the number of reclaimed transactions
+     */
+    public long getReclaimedCount() {
+        return reclaimedTransactions.get();
+    }
+
+    /**
+     * Helper method returning the number of connections dropped because the client sent nothing
+     * for too long while no transaction was running
+     *
+     * @return the number of timed out connections
+     */
+    public long getTimedOutConnectionCount() {
+        return timedOutConnections.get();
+    }
+
+    /**
+     * Creates a transaction that the server runs on its own behalf, e.g. to take a snapshot
+     * or to apply replicated writes. Such transactions are not listed as running transactions
+     *
+     * @return the new transaction
+     */
+    public Transaction createInternalTransaction() {
+        return new Transaction(transactionIdCounter.getAndIncrement(), acquireUndoLog(),
+                accountManager.isDeferredUpdates() ? new WriteBuffer() : null);
+    }
+
+    /**
+     * Hands the undo log of a transaction that is done back for reuse. The transaction must not
+     * record or roll back anything afterwards
+     *
+     * @param transaction the committed or rolled back transaction
+     */
+    public void releaseUndoLog(Transaction transaction) {
+        releaseUndoLog(transaction.getUndoLog());
+    }
+
+    private void releaseUndoLog(UndoLog undoLog) {
+        undoLog.clear();
+        freeUndoLogs.add(undoLog);
+    }
+
+    private UndoLog acquireUndoLog() {
+        UndoLog undoLog = freeUndoLogs.poll();
+        return undoLog != null ? undoLog : new UndoLog();
+    }
+
+    /**
+     * Runs a script, and if it aborts for a conflict, runs it again right here as configured by the
+     * server's ScriptRetry, backing off in between. All attempts are as old as the first, so under
+     * wait-die a retried script gets older, not younger, and is not starved
+     *
+     * @param script the script
+     * @return the balances read, one per step
+     * @throws TransactionAbortedException if the last attempt aborted
+     */
+    public int[] runScript(TransactionScript script) throws TransactionAbortedException {
+        int timestamp = nextTimestamp();
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return executeScript(script, timestamp);
+            } catch (TransactionAbortedException ex) {
+                if (!server.getScriptRetry().retry(attempt, ex.getAbortCause())) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method reserving an age older than any transaction created from now on, and
+     * different from any other
+     *
+     * @return the timestamp
+     */
+    public int nextTimestamp() {
+        return transactionIdCounter.getAndIncrement();
+    }
+
+    /**
+     * Checks that all accounts a script names exist, before any of them is locked
+     *
+     * @param script the script
+     * @throws TransactionAbortedException with INVALID_REQUEST if an account does not exist
+     */
+    public void checkScript(TransactionScript script) throws TransactionAbortedException {
+        for (int step = 0; step < script.size(); step++) {
+            if (accountManager.getAccount(script.getAccount(step)) == null) {
+                throw new TransactionAbortedException(INVALID_REQUEST);
+            }
+        }
+    }
+
+    /**
+     * Runs a script as one transaction under the locks of the lock manager, and commits it. Write
+     * locks are taken right away for the accounts the script writes, so it does not read-lock them
+     * first and then conflict upgrading
+     *
+     * @param script the script
+     * @param timestamp age of the transaction under wait-die, from nextTimestamp() for the first attempt
+     * @return the balances read, one per step
+     * @throws TransactionAbortedException if the transaction aborted, its writes are rolled back
+     */
+    public int[] executeScript(TransactionScript script, int timestamp) throws TransactionAbortedException {
+        checkScript(script);
+
+        Transaction transaction = createInternalTransaction();
+        transaction.setReadWriteSet(history != null ? new ReadWriteSet() : null);
+        transaction.setTimestamp(timestamp);
+        runningTransactions.put(transaction.getTransactionID(), transaction);
+
+        int[] balances = new int[script.size()];
+        try {
+            // a replica only serves read-only transactions, and only while it is in sync with the primary
+            if (server.getReplicaApplier() != null && (!script.isReadOnly() || !server.getReplicaApplier().isInSync())) {
+                throw new TransactionAbortedException(READ_ONLY_REPLICA);
+            }
+
+            for (int step = 0; step < script.size(); step++) {
+                int account = script.getAccount(step);
+                if (script.getAmount(step) != 0) {
+                    lockManager.lock(accountManager.getAccount(account), transaction, WRITE_LOCK);
+                }
+                balances[step] = accountManager.read(account, transaction);
+                if (script.getAmount(step) != 0) {
+                    accountManager.write(account, transaction, balances[step] + script.getAmount(step));
+                }
+            }
+
+            // the reads done without a lock must still hold
+            lockManager.validate(transaction);
+        } catch (TransactionAbortedException ex) {
+            transaction.log(INFO, "Aborted, {}", TransactionAbortedException.getAbortCauseString(ex.getAbortCause()), 0);
+            rollBackScript(transaction);
+            Metrics.recorder().recordAbort(ex.getAbortCause(), System.nanoTime() - transaction.getStartTime());
+            throw ex;
+        } catch (RuntimeException ex) {
+            // whatever went wrong, the accounts must not stay written or locked
+            transaction.log(ERROR, "[TransactionManager.executeScript] Failed: " + ex);
+            rollBackScript(transaction);
+            throw ex;
+        }
+
+        // same order as closing an interactive transaction
+        accountManager.install(transaction);
+        if (history != null) {
+            history.commit(transaction, accountManager);
+        }
+        if (server.getReplicationPublisher() != null) {
+            server.getReplicationPublisher().publish(transaction);
+        }
+        lockManager.unLock(transaction);
+        runningTransactions.remove(transaction.getTransactionID());
+        committedTransactions.add(transaction);
+        releaseUndoLog(transaction);
+        Metrics.recorder().recordCommit(System.nanoTime() - transaction.getStartTime());
+        transaction.log("Script committed");
+
+        return balances;
+    }
+
+    /**
+     * Helper method undoing the writes of a script that did not commit and releasing its locks
+     */
+    private void rollBackScript(Transaction transaction) {
+        if (!transaction.getUndoLog().isEmpty()) {
+            transaction.getUndoLog().rollback(accountManager);
+        }
+        lockManager.unLock(transaction);
+        runningTransactions.remove(transaction.getTransactionID());
+        abortedTransactions.add(transaction);
+        releaseUndoLog(transaction);
     }
 
     /**
      * Run the transaction for an incoming client request
      *
-     * @param client Socket object representing connection to client
+     * @param client channel to the client, over the network or in-process
      */
-    public void runTransaction(Socket client) {
+    public void runTransaction(MessageChannel client) {
         (new TransactionManagerWorker(client)).start();
     }
 
@@ -83,48 +440,196 @@ public class TransactionManager implements MessageTypes, TerminalColors {
     public class TransactionManagerWorker extends Thread {
 
         // networking communication related fields
-        Socket client = null;
-        ObjectInputStream readFromNet = null;
-        ObjectOutputStream writeToNet = null;
+        MessageChannel client = null;
         Message message = null;
 
+        // number of the connection in the capture, if requests are captured
+        int connection = 0;
+
         // transaction related fields
         Transaction transaction = null;
+        UndoLog undoLog = acquireUndoLog();
+        WriteBuffer writeBuffer = new WriteBuffer();
+        ReadWriteSet readWriteSet = new ReadWriteSet();
         int accountNumber = 0;
         int balance = 0;
 
+        // phase timestamps of the running transaction, reused across transactions
+        TransactionTrace trace = new TransactionTrace();
+
         // flag for jumping out of while loop after this transaction closed
         boolean keepgoing = true;
 
-        // the constructor just opens up the network channels
-        private TransactionManagerWorker(Socket client) {
+        // true while the transaction holds a slot of the admission controller
+        boolean admitted = false;
+
+        // looked at by the reaper: whether a transaction is open, when the last request came in or
+        // the last reply went out, and why the reaper dropped the connection, -1 if it did not
+        volatile boolean active = false;
+        volatile long lastActivity = System.nanoTime();
+        volatile int reapCause = -1;
+
+        // the constructor runs on the acceptor thread, so it does no more than take the channel,
+        // which is opened in run()
+        private TransactionManagerWorker(MessageChannel client) {
             this.client = client;
-            // setting up object streams
-            try {
-                readFromNet = new ObjectInputStream(client.getInputStream());
-                writeToNet = new ObjectOutputStream(client.getOutputStream());
-            } catch (IOException e) {
-                System.out.println("[TransactionManagerWorker.run] Failed to open object streams");
-                System.exit(1);
+        }
+
+        /**
+         * Reclaims the worker's transaction: closes the channel, which gets the worker out of
+         * receiving the next request, and cancels the lock wait it may be in or about to begin.
+         * The worker then aborts the transaction
+         *
+         * @param cause why, IDLE_TIMEOUT or SERVER_SHUTDOWN
+         */
+        void reclaim(int cause) {
+            reapCause = cause;
+            client.close();
+            transaction.reclaim();
+        }
+
+        /**
+         * Aborts the running transaction: restores the before images, releases all locks,
+         * tells the client and closes the connection
+         *
+         * @param abortCause why it aborted
+         * @param contention how many others were in the way, goes to the client as a hint for its back off
+         */
+        private void abortTransaction(int abortCause, int contention) {
+            // a lock wait cancelled by reclaim() ends in an abort that does not tell why
+            if (reapCause >= 0) {
+                abortCause = reapCause;
+            }
+            transaction.log(INFO, "Aborted, {}", TransactionAbortedException.getAbortCauseString(abortCause), 0);
+
+            keepgoing = false;
+            active = false;
+            long abortStart = trace.now();
+
+            // low-level write to the accounts what the balance was before, if the transaction wrote at all;
+            // with deferred updates the accounts were never touched and the write buffer is simply dropped
+            if (!undoLog.isEmpty()) {
+                undoLog.rollback(accountManager);
+            }
+
+            // release all acquired locks (lock manager)
+            lockManager.unLock(transaction);
+            leave(false);
+
+            // remove it from running transactions and move it to aborted transactions
+            runningTransactions.remove(transaction.getTransactionID());
+            abortedTransactions.add(transaction);
+            Metrics.recorder().recordAbort(abortCause, System.nanoTime() - transaction.getStartTime());
+            if (capture != null) {
+                capture.outcome(connection, TRANSACTION_ABORTED);
+            }
+            trace.span(TracePhases.ABORT, abortStart, abortCause);
+
+            TransactionAbortEvent abortEvent = new TransactionAbortEvent();
+            if (abortEvent.shouldCommit()) {
+                abortEvent.transactionID = transaction.getTransactionID();
+                abortEvent.cause = TransactionAbortedException.getAbortCauseString(abortCause);
+                abortEvent.commit();
+            }
+
+            try
+            {
+                // send message to client stating it aborted, unless it is gone or was cut off by the reaper
+                if (abortCause != CLIENT_DISCONNECTED && reapCause < 0) {
+                    long replyStart = trace.now();
+                    client.send(new Message(TRANSACTION_ABORTED, new int[]{abortCause, contention}));
+                    trace.span(TracePhases.REPLY, replyStart, TRANSACTION_ABORTED);
+                }
+
+                // close the channel
+                client.close();
+            }
+            catch(Exception e)
+            {
+                transaction.log(ERROR, "[TransactionManager - abort] Error sending abortion warning");
+            }
+
+            transaction.setTrace(null);
+            trace.finish(transaction.getTransactionID(), "ABORTED");
+        }
+
+        /**
+         * Cleans up after the connection broke, timed out or was dropped by the reaper: a transaction
+         * still open is aborted, so its writes are rolled back and its locks released
+         */
+        private void connectionLost(IOException e) {
+            int cause = reapCause >= 0 ? reapCause : e instanceof SocketTimeoutException ? IDLE_TIMEOUT : CLIENT_DISCONNECTED;
+
+            if (active) {
+                abortTransaction(cause, 0);
+                if (cause != SERVER_SHUTDOWN) {
+                    reclaimedTransactions.incrementAndGet();
+                }
+                System.out.println("[TransactionManagerWorker.run] Transaction #" + transaction.getTransactionID()
+                        + " reclaimed, " + TransactionAbortedException.getAbortCauseString(cause));
+                return;
+            }
+
+            if (cause == IDLE_TIMEOUT) {
+                timedOutConnections.incrementAndGet();
+            }
+            client.close();
+            leave(false);
+
+            System.out.println("[TransactionManagerWorker.run] Client shut down, shutting down as well ...");
+
+            // Prints what exception has been thrown 
+            System.out.println(e);
+        }
+
+        /**
+         * Gives the slot of the admission controller back, if the transaction holds one
+         */
+        private void leave(boolean committed) {
+            if (admitted) {
+                admitted = false;
+                admission.release(committed, System.nanoTime() - transaction.getStartTime());
             }
         }
 
         @Override
         public void run() {
             String log;
+
+            // set up the channel, which waits for the client's stream header, off the accept path;
+            // a client failing here only loses its own connection
+            long acceptStart = trace.now();
+            try {
+                client.open();
+                client.setReceiveTimeout(receiveTimeoutMillis);
+            } catch (IOException e) {
+                System.out.println("[TransactionManagerWorker.run] Failed to open object streams: " + e.getMessage());
+                client.close();
+                return;
+            }
+            trace.span(TracePhases.ACCEPT, acceptStart, -1);
+
+            if (capture != null) {
+                connection = capture.newConnection();
+            }
+
+            workers.add(this);
             
             // loop is left when transaction closes
             while (keepgoing) {
                 // reading message
+                long receiveStart = trace.now();
                 try {
-                    message = (Message) readFromNet.readObject();
-                } catch (IOException | ClassNotFoundException e) {
-                    System.out.println("[TransactionManagerWorker.run] Client shut down, shutting down as well ...");
-
-                    // Prints what exception has been thrown 
-                    System.out.println(e);
+                    message = client.receive();
+                } catch (IOException e) {
+                    connectionLost(e);
+                    break;
+                }
+                lastActivity = System.nanoTime();
+                trace.span(TracePhases.RECEIVE, receiveStart, message.getType());
 
-                    return;
+                if (capture != null) {
+                    capture.request(connection, message);
                 }
 
                 // processing message
@@ -133,22 +638,65 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                     case OPEN_TRANSACTION:
                     // -------------------------------------------------------------------------------------------
 
+                        // a server whose accounts belong to partitions only runs scripts, which is not
+                        // going to change, so the client must not take this for being busy
+                        if (server.getPartitionedExecutor() != null) {
+                            try {
+                                client.send(new Message(TRANSACTION_ABORTED, new int[]{INVALID_REQUEST, 0}));
+                            } catch (IOException e) {
+                                // the client is gone anyway
+                            }
+                            client.close();
+                            keepgoing = false;
+                            break;
+                        }
+
+                        // wait for a slot if the number of running transactions is capped, restarts of
+                        // aborted transactions, which tell the ID of the aborted one, go first;
+                        // a server shutting down admits none
+                        if (draining || (admission != null && !admission.admit(message.getContent() != null))) {
+                            try {
+                                client.send(new Message(TRANSACTION_BUSY));
+                            } catch (IOException e) {
+                                // the client is gone anyway
+                            }
+                            client.close();
+                            keepgoing = false;
+                            break;
+                        }
+                        admitted = admission != null;
+
                         // create a transaction based on the info received from the message
-                        transaction = new Transaction(transactionIdCounter);
+                        // the undo log and write buffer of the previous transaction, if any, are not needed any more
+                        long openStart = trace.now();
+                        undoLog.clear();
+                        writeBuffer.clear();
+                        readWriteSet.clear();
+                        transaction = new Transaction(transactionIdCounter.getAndIncrement(), undoLog,
+                                accountManager.isDeferredUpdates() ? writeBuffer : null);
+                        transaction.setReadWriteSet(history != null ? readWriteSet : null);
+                        if (message.getContent() != null) {
+                            transaction.setTimestamp((Integer) message.getContent());
+                        }
 
-                        transactionIdCounter++;
+                        // decide whether this one is traced, so lock waits go into the trace
+                        transaction.setTrace(trace.open() ? trace : null);
 
                         // add transaction to running transactions for logging purposes
-                        runningTransactions.add(transaction);
+                        runningTransactions.put(transaction.getTransactionID(), transaction);
+                        active = true;
+                        trace.span(TracePhases.OPEN, openStart, transaction.getTransactionID());
 
                         try
                         {
                             // send read request response back to client
-                            writeToNet.writeObject(new Message(OPEN_TRANSACTION, transaction.getTransactionID()));
+                            long replyStart = trace.now();
+                            client.send(new Message(OPEN_TRANSACTION, transaction.getTransactionID()));
+                            trace.span(TracePhases.REPLY, replyStart, OPEN_TRANSACTION);
                         }
                         catch(Exception e)
                         {
-                            transaction.log("[TransactionManager - open transaction] Error sending open transaction message");
+                            transaction.log(ERROR, "[TransactionManager - open transaction] Error sending open transaction message");
                         }
 
                         // log creation
@@ -160,30 +708,69 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                     case CLOSE_TRANSACTION:
                     // -------------------------------------------------------------------------------------------
 
+                        // the reads done without a lock must still hold, otherwise the transaction aborts
+                        long commitStart = trace.now();
+                        try {
+                            lockManager.validate(transaction);
+                        } catch (TransactionAbortedException ex) {
+                            abortTransaction(ex.getAbortCause(), ex.getContention());
+                            break;
+                        }
+
+                        // with deferred updates, the writes go to the accounts now, in one batch
+                        accountManager.install(transaction);
+
+                        // the history, and the versions of the accounts written, follow the commit order
+                        if (history != null) {
+                            history.commit(transaction, accountManager);
+                        }
+
+                        // ship the writes to the replicas while we still hold the write locks,
+                        // so that conflicting transactions are shipped in commit order
+                        if (server.getReplicationPublisher() != null) {
+                            server.getReplicationPublisher().publish(transaction);
+                        }
+
                         // use lock manager to release all locks
-                        TransactionServer.lockManager.unLock(transaction);
+                        lockManager.unLock(transaction);
+                        leave(true);
+                        active = false;
 
                         // remove it from running transactions and move it to committed transactions
-                        runningTransactions.remove(transaction);
+                        runningTransactions.remove(transaction.getTransactionID());
                         committedTransactions.add(transaction);
+                        Metrics.recorder().recordCommit(System.nanoTime() - transaction.getStartTime());
+                        if (capture != null) {
+                            capture.outcome(connection, TRANSACTION_COMMITTED);
+                        }
+                        trace.span(TracePhases.COMMIT, commitStart, -1);
 
                         transaction.log("Closed");
 
                         // send message to client that transaction committed
                         try
                         {
-                            transaction.log("trying to send close message to client");
+                            transaction.log(DEBUG, "trying to send close message to client");
                             
-                            // send read request response back to client
-                            writeToNet.writeObject(new Message(TRANSACTION_COMMITTED));
+                            // send read request response back to client, a replica tells how far it is behind
+                            long replyStart = trace.now();
+                            if (server.getReplicaApplier() != null) {
+                                client.send(new Message(TRANSACTION_COMMITTED, server.getReplicaApplier().getReplicationLag()));
+                            } else {
+                                client.send(new Message(TRANSACTION_COMMITTED));
+                            }
+                            trace.span(TracePhases.REPLY, replyStart, TRANSACTION_COMMITTED);
 
-                            transaction.log("sent closed message to client");
+                            transaction.log(DEBUG, "sent closed message to client");
                         }
                         catch(Exception e)
                         {
-                            transaction.log("[TransactionManager - close transaction] Error sending close transaction message");
+                            transaction.log(ERROR, "[TransactionManager - close transaction] Error sending close transaction message");
                         }
 
+                        transaction.setTrace(null);
+                        trace.finish(transaction.getTransactionID(), "COMMITTED");
+
                         break;
 
                     // -------------------------------------------------------------------------------------------
@@ -196,9 +783,21 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                         Integer accountNumber = (Integer)message.getContent();
                                                 
                         try {
+                            // a replica resubscribing to the primary has nothing recent to read
+                            if (server.getReplicaApplier() != null && !server.getReplicaApplier().isInSync()) {
+                                throw new TransactionAbortedException(READ_ONLY_REPLICA);
+                            }
+
+                            long applyStart = trace.now();
                             // ==================================================================>
-                            balance = TransactionServer.accountManager.read(accountNumber, transaction);
+                            balance = accountManager.read(accountNumber, transaction);
                             // <==================================================================
+                            trace.span(TracePhases.APPLY, applyStart, accountNumber);
+
+                            // the capture records the writes following relative to this balance
+                            if (capture != null) {
+                                capture.read(connection, accountNumber, balance);
+                            }
                             
                             // ...
                             transaction.log("Processing read request");
@@ -206,46 +805,17 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                             try
                             {
                                // send read request response back to client
-                                writeToNet.writeObject(new Message(READ_REQUEST_RESPONSE, balance));
+                                long replyStart = trace.now();
+                                client.send(new Message(READ_REQUEST_RESPONSE, balance));
+                                trace.span(TracePhases.REPLY, replyStart, READ_REQUEST_RESPONSE);
                             }
                             catch(Exception e)
                             {
-                                transaction.log("[TransactionManager - read request] Error sending read request response message");
+                                transaction.log(ERROR, "[TransactionManager - read request] Error sending read request response message");
                             }
                                                     
                         } catch (TransactionAbortedException ex) {
-
-                            // ...`
-                            transaction.log("Aborted");
-                            
-                            keepgoing = false;
-
-                            // write before image to accounts
-                            transaction.beforeImage.forEach( (a, b) ->
-                            
-                               { TransactionServer.accountManager.getAccount(a)._write(b); }
-
-                            );
-
-                            // low-level write to the accounts what the balance was before
-
-                            // release all acquired locks (lock manager)
-                            TransactionServer.lockManager.unLock(transaction);
-
-                            try
-                            {
-                               // send message to client stating it aborted
-                                writeToNet.writeObject(new Message(TRANSACTION_ABORTED));
-
-                                // close streams
-                                readFromNet.close();
-                                writeToNet.close();
-                                client.close();
-                            }
-                            catch(Exception e)
-                            {
-                                transaction.log("[TransactionManager - read request] Error sending abortion warning");
-                            }
+                            abortTransaction(ex.getAbortCause(), ex.getContention());
                         }
 
                         break;
@@ -259,9 +829,17 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                         
 
                         try {
+                            // a replica only serves read-only transactions
+                            if (server.getReplicaApplier() != null) {
+                                transaction.log(ERROR, "[TransactionManager - write request] Write request on replica");
+                                throw new TransactionAbortedException(READ_ONLY_REPLICA);
+                            }
+
+                            long applyStart = trace.now();
                             // ====================================================================================
-                            TransactionServer.accountManager.write(accountNumber, transaction, balance);
+                            accountManager.write(accountNumber, transaction, balance);
                             // <===================================================================================
+                            trace.span(TracePhases.APPLY, applyStart, accountNumber);
 
                             // ...
                             transaction.log("Processing write request");
@@ -269,48 +847,90 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                             try
                             {
                                 // send write request response back to client
-                                writeToNet.writeObject(new Message(WRITE_REQUEST_RESPONSE));
+                                long replyStart = trace.now();
+                                client.send(new Message(WRITE_REQUEST_RESPONSE));
+                                trace.span(TracePhases.REPLY, replyStart, WRITE_REQUEST_RESPONSE);
                             }
                             catch(Exception e)
                             {
-                                transaction.log("[TransactionManager - write request] Error sending write request response message");
+                                transaction.log(ERROR, "[TransactionManager - write request] Error sending write request response message");
                             }
 
                         } catch (TransactionAbortedException ex) {
+                            abortTransaction(ex.getAbortCause(), ex.getContention());
+                        }
 
-                            // ...
-                            transaction.log("Aborted");
-                            
-                            keepgoing = false;
-
-                            // write before image to accounts
-                            transaction.beforeImage.forEach( (a, b) ->
-                            
-                                { TransactionServer.accountManager.getAccount(a)._write(b); }
-
-                            );
 
-                            // low-level write to the accounts what the balance was before
+                        break;
 
-                            // release all acquired locks (lock manager)
-                            TransactionServer.lockManager.unLock(transaction);
+                    // -------------------------------------------------------------------------------------------
+                    case EXECUTE_SCRIPT:
+                    // -------------------------------------------------------------------------------------------
 
-                            try
-                            {
-                                // send message to client stating it aborted
-                                writeToNet.writeObject(new Message(TRANSACTION_ABORTED, transaction.transactionID));
+                        // a transaction whose accounts are known up front, run in one go, in the order of
+                        // the sequencer in deterministic mode, by the partitions owning its accounts in
+                        // partitioned mode, otherwise right here under the lock manager; either way, only
+                        // the final outcome goes back to the client. Scripts count against the cap on
+                        // running transactions like any other
+                        long scriptStart = System.nanoTime();
+                        boolean scriptAdmitted = !draining && (admission == null || admission.admit(false));
+                        int scriptOutcome = TRANSACTION_ABORTED;
+                        try
+                        {
+                            TransactionScript script = (TransactionScript) message.getContent();
+                            if (!scriptAdmitted) {
+                                client.send(new Message(TRANSACTION_BUSY));
+                            } else try {
+                                int[] balances;
+                                if (server.getSequencer() != null) {
+                                    balances = server.getSequencer().execute(script);
+                                } else if (server.getPartitionedExecutor() != null) {
+                                    balances = server.getPartitionedExecutor().execute(script);
+                                } else {
+                                    balances = runScript(script);
+                                }
+                                scriptOutcome = TRANSACTION_COMMITTED;
+                                client.send(new Message(EXECUTE_SCRIPT_RESPONSE, balances));
+                            } catch (TransactionAbortedException ex) {
+                                client.send(new Message(TRANSACTION_ABORTED, new int[]{ex.getAbortCause(), ex.getContention()}));
+                            } catch (RuntimeException ex) {
+                                System.out.println("[TransactionManagerWorker.run] Script failed: " + ex);
+                                client.send(new Message(TRANSACTION_ABORTED, new int[]{INVALID_REQUEST, 0}));
+                            }
+                        }
+                        catch(IOException e)
+                        {
+                            System.out.println("[TransactionManagerWorker.run] Error sending script response");
+                        }
 
-                                // close streams
-                                readFromNet.close();
-                                writeToNet.close();
-                                client.close();
+                        if (scriptAdmitted) {
+                            if (admission != null) {
+                                admission.release(scriptOutcome == TRANSACTION_COMMITTED, System.nanoTime() - scriptStart);
                             }
-                            catch(Exception e)
-                            {
-                                transaction.log("[TransactionManager - write request] Error sending abortion warning");
+                            if (capture != null) {
+                                capture.outcome(connection, scriptOutcome);
                             }
                         }
 
+                        // a script is the only request on its connection
+                        client.close();
+                        keepgoing = false;
+                        break;
+
+                    // -------------------------------------------------------------------------------------------
+                    case STATS_REQUEST:
+                    // -------------------------------------------------------------------------------------------
+
+                        // operator asks what is going on, the content is the number of contended accounts to list
+                        try
+                        {
+                            int topN = message.getContent() == null ? 10 : (Integer) message.getContent();
+                            client.send(new Message(STATS_RESPONSE, ServerStats.getReport(server, topN)));
+                        }
+                        catch(IOException e)
+                        {
+                            System.out.println("[TransactionManagerWorker.run] Error sending stats response");
+                        }
 
                         break;
 
@@ -319,7 +939,7 @@ public class TransactionManager implements MessageTypes, TerminalColors {
                         // -------------------------------------------------------------------------------------------
 
                         // client sent shutdown message, tell the server
-                        TransactionServer.shutDown();
+                        server.shutDown();
 
                         transaction.log("Shutting down...");
 
@@ -334,7 +954,14 @@ public class TransactionManager implements MessageTypes, TerminalColors {
 
                         System.out.println("[TransactionManagerWorker.run] Warning: Message type not implemented");
                 }
+
+                // the reaper counts idle time from here, a reply stuck in sending counts as idle
+                lastActivity = System.nanoTime();
             }
+
+            workers.remove(this);
+            releaseUndoLog(undoLog);
+            Metrics.releaseRecorder();
         }
     }
 }
@@ -0,0 +1,79 @@
+package transaction.server.transaction;
+
+import transaction.server.account.AccountManager;
+
+/**
+ * Class [UndoLog] The before images of a transaction, as an append-only log of
+ * (account, balance) pairs kept in primitive arrays. The transaction manager pools the undo logs:
+ * a worker takes one when it starts and hands it back when it ends, a script or internal
+ * transaction when it is done, so recording a before image does not allocate in the common case.
+ *
+ * @author wolfdieterotte
+ */
+public class UndoLog {
+
+    // accounts and their balances before the first write, indices correspond
+    private int[] accounts;
+    private int[] balances;
+    private int size = 0;
+
+    public UndoLog() {
+        accounts = new int[8];
+        balances = new int[8];
+    }
+
+    /**
+     * Appends a before image
+     *
+     * @param account the account about to be written
+     * @param balance its balance before the write
+     */
+    public void record(int account, int balance) {
+        if (size == accounts.length) {
+            int[] newAccounts = new int[size * 2];
+            int[] newBalances = new int[size * 2];
+            System.arraycopy(accounts, 0, newAccounts, 0, size);
+            System.arraycopy(balances, 0, newBalances, 0, size);
+            accounts = newAccounts;
+            balances = newBalances;
+        }
+
+        accounts[size] = account;
+        balances[size] = balance;
+        size++;
+    }
+
+    /**
+     * Writes the before images back to the accounts, the most recent one first
+     *
+     * @param accountManager the accounts to restore
+     */
+    public void rollback(AccountManager accountManager) {
+        for (int i = size - 1; i >= 0; i--) {
+            accountManager.getAccount(accounts[i])._write(balances[i]);
+        }
+    }
+
+    /**
+     * Empties the log, so it can be reused for the next transaction
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAccount(int index) {
+        return accounts[index];
+    }
+
+    public int getBalance(int index) {
+        return balances[index];
+    }
+}
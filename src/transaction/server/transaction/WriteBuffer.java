@@ -0,0 +1,101 @@
+package transaction.server.transaction;
+
+import transaction.server.account.AccountManager;
+
+/**
+ * Class [WriteBuffer] The private workspace of a transaction running with deferred updates.
+ * Writes are kept here, as (account, balance) pairs in primitive arrays, and only installed into
+ * the accounts when the transaction commits; aborting just drops them. Transactions touch few
+ * accounts, so a linear scan beats hashing here. A worker reuses its write buffer for each
+ * transaction it runs.
+ *
+ * @author wolfdieterotte
+ */
+public class WriteBuffer {
+
+    // accounts written and their new balances, indices correspond
+    private int[] accounts;
+    private int[] balances;
+    private int size = 0;
+
+    public WriteBuffer() {
+        accounts = new int[8];
+        balances = new int[8];
+    }
+
+    /**
+     * Buffers a write, overwriting an earlier write to the same account
+     *
+     * @param account the account written
+     * @param balance its new balance
+     */
+    public void put(int account, int balance) {
+        int index = indexOf(account);
+        if (index >= 0) {
+            balances[index] = balance;
+            return;
+        }
+
+        if (size == accounts.length) {
+            int[] newAccounts = new int[size * 2];
+            int[] newBalances = new int[size * 2];
+            System.arraycopy(accounts, 0, newAccounts, 0, size);
+            System.arraycopy(balances, 0, newBalances, 0, size);
+            accounts = newAccounts;
+            balances = newBalances;
+        }
+
+        accounts[size] = account;
+        balances[size] = balance;
+        size++;
+    }
+
+    /**
+     * Helper method to find a buffered write
+     *
+     * @param account the account in question
+     * @return its position in the buffer, -1 if the account was not written
+     */
+    public int indexOf(int account) {
+        for (int i = 0; i < size; i++) {
+            if (accounts[i] == account) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes all buffered balances to the accounts, in the order they were first written
+     *
+     * @param accountManager the accounts to write to
+     */
+    public void install(AccountManager accountManager) {
+        for (int i = 0; i < size; i++) {
+            accountManager.getAccount(accounts[i])._write(balances[i]);
+        }
+    }
+
+    /**
+     * Drops all buffered writes, so the buffer can be reused for the next transaction
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAccount(int index) {
+        return accounts[index];
+    }
+
+    public int getBalance(int index) {
+        return balances[index];
+    }
+}
@@ -0,0 +1,132 @@
+package utils;
+
+/**
+ * class [Histogram]
+ * <p>
+ * Histogram of non-negative long values, e.g. latencies in nanoseconds, with log-linear buckets:
+ * each power of two is split into 8 linear sub-buckets, so any recorded value is reported with a
+ * relative error of at most 12.5%, across the whole range of long, in 488 buckets.
+ * <p>
+ * Recording is a few arithmetic operations and one array increment. The class is not thread-safe:
+ * every thread records into a histogram of its own, and the histograms are merged for reading.
+ *
+ * @author wolfdieterotte
+ */
+public class Histogram {
+
+    // number of linear sub-buckets per power of two is 2^SUB_BUCKET_BITS
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Records a value, negative values are recorded as 0
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one
+     *
+     * @param other the histogram to add
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forgets all values recorded
+     */
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Helper method returning the value below which a given percentage of the recorded values fall
+     *
+     * @param percentile the percentage, 0 to 100
+     * @return the upper bound of the bucket the percentile falls into, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Helper method to map a value to its bucket
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Helper method returning the largest value mapped to a bucket
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (msb - SUB_BUCKET_BITS);
+
+        return ((SUB_BUCKETS + subBucket) << (msb - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,82 @@
+package utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * class [ZipfianGenerator]
+ * <p>
+ * Draws numbers from 0 to n-1 following a Zipfian distribution: number i is drawn with a
+ * probability proportional to 1/(i+1)^theta, so 0 is the most popular number, 1 the second most
+ * popular, and so on. theta = 0 is uniform, the closer theta gets to 1 the more skewed.
+ * <p>
+ * This is the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases":
+ * after an O(n) setup computing the zeta constant, every draw is O(1). Once set up, a generator
+ * holds no mutable state and can be shared by threads.
+ *
+ * @author wolfdieterotte
+ */
+public class ZipfianGenerator {
+
+    private final long n;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    /**
+     * Constructor
+     *
+     * @param n number of items
+     * @param theta skew, 0 <= theta < 1
+     */
+    public ZipfianGenerator(long n, double theta) {
+        if (n < 1 || theta < 0 || theta >= 1) {
+            throw new IllegalArgumentException("[ZipfianGenerator] need n >= 1 and 0 <= theta < 1, got n=" + n + ", theta=" + theta);
+        }
+
+        this.n = n;
+        this.theta = theta;
+        this.zetaN = zeta(n, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(Math.min(2, n), theta) / zetaN);
+        this.halfPowTheta = 1.0 + Math.pow(0.5, theta);
+    }
+
+    /**
+     * Draws the next number
+     *
+     * @return a number from 0 to n-1
+     */
+    public long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < halfPowTheta && n > 1) {
+            return 1;
+        }
+        return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * Helper method computing sum of 1/i^theta for i from 1 to n
+     */
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}